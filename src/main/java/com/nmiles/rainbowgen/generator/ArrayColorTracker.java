@@ -0,0 +1,159 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * A ColorTracker that stores the cube as a flat int array, alongside a dense
+ * list of every unused color. The list makes picking a random unused color
+ * take constant time no matter how full the tracker is: used colors are
+ * removed from it by moving the last entry into their place. Each cell of the
+ * cube holds its color's position in that list, or -1 once that color has
+ * been used. The color itself is calculated from the cell's coordinates. This
+ * is the simplest and most direct representation, but it takes 8 bytes per
+ * color.
+ *
+ * Cells are numbered (r << 2 * dimensionShift) | (g << dimensionShift) | b,
+ * both in the cube and in the list. Since every tracker of a given dimension
+ * starts out with both arrays holding 0, 1, 2, and so on, they are both copied
+ * from a single shared template for that dimension rather than being built
+ * cell by cell.
+ *
+ * @author Nathan Miles
+ *
+ */
+class ArrayColorTracker extends ColorTracker {
+    /** The finest level of the OccupancyIndex, which has 4x4x4 nodes. */
+    private static final int LEAF_LEVEL = 2;
+
+    /**
+     * The shared starting contents of the tracker and freeCells arrays, by
+     * dimensionShift. Each one holds the numbers from 0 to the number of
+     * cells - 1, and is never modified after it is built. They are built the
+     * first time they're needed.
+     */
+    private static final int[][] TEMPLATES = new int[9][];
+
+    /**
+     * The actual array that keeps track of the color usage. A cell holds the
+     * position of its color in freeCells, or -1 if the color has been used.
+     */
+    private int[] tracker;
+
+    /** Every unused color, in no particular order, as cell numbers. */
+    private int[] freeCells;
+
+    /**
+     * The number of unused colors. Only the first freeCount entries of
+     * freeCells are meaningful.
+     */
+    private int freeCount;
+
+    /**
+     * Constructs a new ArrayColorTracker with the given number of colors in
+     * it.
+     *
+     * @param colors
+     *            The number of colors this ColorTracker should hold.
+     * @param rand
+     *            The random number generator for the tracker to use
+     */
+    ArrayColorTracker(int colors, XoshiroRandom rand) {
+        super(colors, rand);
+    }
+
+    /**
+     * Gets the template for the given dimension, building it if it doesn't
+     * exist yet.
+     *
+     * @param dimensionShift
+     *            The base 2 log of the dimension
+     * @return The template. It MUST NOT be modified.
+     */
+    private static synchronized int[] getTemplate(int dimensionShift) {
+        if (TEMPLATES[dimensionShift] == null) {
+            int[] template = new int[1 << (3 * dimensionShift)];
+            for (int i = 0; i < template.length; i++) {
+                template[i] = i;
+            }
+            TEMPLATES[dimensionShift] = template;
+        }
+        return TEMPLATES[dimensionShift];
+    }
+
+    /**
+     * Copies the backing array and the list of unused colors from the
+     * template, so that every color is unused. Then it removes a random set of
+     * colors, of exactly the right size, with a partial Fisher-Yates shuffle
+     * of the list: each step swaps a random unused color to the end of the
+     * list and drops it.
+     *
+     * @param colors
+     *            The number of colors to fill.
+     */
+    @Override
+    protected void fill(int colors) {
+        int[] template = getTemplate(dimensionShift);
+        tracker = template.clone();
+        freeCells = template.clone();
+        occupancy = new OccupancyIndex(dimensionShift, LEAF_LEVEL);
+        occupancy.setFull(dimension);
+        // remove colors randomly until we have the correct number of colors
+        for (int last = template.length - 1; last >= colors; last--) {
+            int position = rand.nextInt(last + 1);
+            int removed = freeCells[position];
+            int kept = freeCells[last];
+            freeCells[position] = kept;
+            tracker[kept] = position;
+            tracker[removed] = -1;
+            occupancy.addToLeaf(removed >> (2 * dimensionShift), (removed >> dimensionShift) & lastCell,
+                    removed & lastCell, -1);
+        }
+        freeCount = Math.min(colors, template.length);
+        occupancy.sumLeaves();
+    }
+
+    @Override
+    protected void scanBox(int redStart, int redEnd, int greenStart, int greenEnd,
+            int blueStart, int blueEnd, IntList closestColors) {
+        for (int r = redStart; r <= redEnd; r++) {
+            for (int g = greenStart; g <= greenEnd; g++) {
+                int row = (((r << dimensionShift) | g) << dimensionShift);
+                for (int b = blueStart; b <= blueEnd; b++) {
+                    // if this cell is not -1, add its color to the return list
+                    if (tracker[row | b] >= 0) {
+                        closestColors.add(colorAt(r, g, b));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void markUsed(int r, int g, int b) {
+        int cell = (((r << dimensionShift) | g) << dimensionShift) | b;
+        int position = tracker[cell];
+        if (position >= 0) {
+            // move the last unused color into this one's place in the list
+            int last = freeCells[--freeCount];
+            freeCells[position] = last;
+            tracker[last] = position;
+            tracker[cell] = -1;
+            occupancy.markUsed(r, g, b);
+        }
+    }
+
+    @Override
+    protected boolean isUnused(int r, int g, int b) {
+        return tracker[(((r << dimensionShift) | g) << dimensionShift) | b] >= 0;
+    }
+
+    /**
+     * Gets a random unused color. This takes constant time, since it just
+     * picks a random entry of the list of unused colors.
+     *
+     * @return The color
+     */
+    @Override
+    int getRandomUnused() {
+        int cell = freeCells[rand.nextInt(freeCount)];
+        return colorAt(cell >> (2 * dimensionShift), (cell >> dimensionShift) & lastCell, cell & lastCell);
+    }
+}
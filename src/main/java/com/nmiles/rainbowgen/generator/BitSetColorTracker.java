@@ -0,0 +1,373 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+/**
+ * A ColorTracker that stores the cube as one bit per color in a flat array of
+ * longs. A set bit means that color is unused. The color itself is never
+ * stored, since it can be calculated from the cell's coordinates.
+ *
+ * The bits are laid out in Morton (Z-order), which interleaves the bits of the
+ * r, g, and b indices. That means each long holds a 4x4x4 sub-cube, and each
+ * group of 8 longs holds an 8x8x8 sub-cube, and so on, so cells that are close
+ * together in the cube are close together in memory. It also means a box can
+ * be scanned a long at a time: the bits of a long that are inside the box are
+ * selected with a mask, and the unused colors among them are found with
+ * Long.numberOfTrailingZeros() rather than by testing every cell.
+ *
+ * At full size, this takes 2 MB where an ArrayColorTracker takes 64 MB.
+ *
+ * @author Nathan Miles
+ *
+ */
+class BitSetColorTracker extends ColorTracker {
+    /**
+     * The finest level of the OccupancyIndex. Its nodes are 8x8x8, or 8 longs,
+     * since counting a single long is just a Long.bitCount() away.
+     */
+    static final int LEAF_LEVEL = 3;
+
+    /** SPREAD[i] is i with its bits spread out to every third bit. */
+    static final int[] SPREAD = new int[256];
+
+    /**
+     * The masks that select the bits of a long whose r index is within a range.
+     * The mask for the range lo to hi (inclusive, both from 0 to 3) is at index
+     * lo * 4 + hi.
+     */
+    static final long[] R_MASKS = new long[16];
+
+    /** The same as R_MASKS, but for the g index. */
+    static final long[] G_MASKS = new long[16];
+
+    /** The same as R_MASKS, but for the b index. */
+    static final long[] B_MASKS = new long[16];
+
+    /**
+     * The r index inside its 4x4x4 sub-cube of the cell stored at each bit of
+     * a long.
+     */
+    static final int[] LOCAL_R = new int[64];
+
+    /** The same as LOCAL_R, but for the g index. */
+    static final int[] LOCAL_G = new int[64];
+
+    /** The same as LOCAL_R, but for the b index. */
+    static final int[] LOCAL_B = new int[64];
+
+    static {
+        for (int i = 0; i < SPREAD.length; i++) {
+            int spread = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                spread |= ((i >> bit) & 1) << (3 * bit);
+            }
+            SPREAD[i] = spread;
+        }
+        for (int bit = 0; bit < 64; bit++) {
+            LOCAL_R[bit] = ((bit >> 4) & 2) | ((bit >> 2) & 1);
+            LOCAL_G[bit] = ((bit >> 3) & 2) | ((bit >> 1) & 1);
+            LOCAL_B[bit] = ((bit >> 2) & 2) | (bit & 1);
+        }
+        for (int lo = 0; lo < 4; lo++) {
+            for (int hi = lo; hi < 4; hi++) {
+                for (int bit = 0; bit < 64; bit++) {
+                    if (LOCAL_R[bit] >= lo && LOCAL_R[bit] <= hi) {
+                        R_MASKS[lo * 4 + hi] |= 1L << bit;
+                    }
+                    if (LOCAL_G[bit] >= lo && LOCAL_G[bit] <= hi) {
+                        G_MASKS[lo * 4 + hi] |= 1L << bit;
+                    }
+                    if (LOCAL_B[bit] >= lo && LOCAL_B[bit] <= hi) {
+                        B_MASKS[lo * 4 + hi] |= 1L << bit;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The bits, in Morton order. A set bit is an unused color. A
+     * ConcurrentColorTracker moves them into an array of its own, and sets
+     * this to null.
+     */
+    protected long[] words;
+
+    /**
+     * Constructs a new BitSetColorTracker with the given number of colors in
+     * it.
+     *
+     * @param colors
+     *            The number of colors this ColorTracker should hold.
+     * @param rand
+     *            The random number generator for the tracker to use
+     */
+    BitSetColorTracker(int colors, XoshiroRandom rand) {
+        super(colors, rand);
+    }
+
+    /**
+     * Constructs a new BitSetColorTracker with the same cube as the given one,
+     * holding exactly the colors whose bits are set in the given words.
+     *
+     * @param cube
+     *            The tracker whose cube to use
+     * @param rand
+     *            The random number generator for the tracker to use
+     * @param words
+     *            The bits, in Morton order. The tracker takes them over.
+     */
+    private BitSetColorTracker(BitSetColorTracker cube, XoshiroRandom rand, long[] words) {
+        super(cube, rand);
+        this.words = words;
+        summarize();
+    }
+
+    /**
+     * Gets the position of the given cell in Morton order.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @return The cell's bit index
+     */
+    static int morton(int r, int g, int b) {
+        return (SPREAD[r] << 2) | (SPREAD[g] << 1) | SPREAD[b];
+    }
+
+    /**
+     * Sets every bit, then clears a random set of bits, of exactly the right
+     * size, so that the number of set bits is equal to the number of colors.
+     * The set is chosen with Floyd's algorithm, which needs exactly one random
+     * number per removed color and never has to retry.
+     *
+     * @param colors
+     *            The number of colors to fill.
+     */
+    @Override
+    protected void fill(int colors) {
+        int cells = dimension * dimension * dimension;
+        words = new long[Math.max(1, cells >> 6)];
+        if (cells >= 64) {
+            Arrays.fill(words, -1L);
+        } else {
+            // the cube is smaller than a single long
+            words[0] = (1L << cells) - 1;
+        }
+        // remove colors randomly until we have the correct number of colors
+        for (int candidate = colors; candidate < cells; candidate++) {
+            int cell = rand.nextInt(candidate + 1);
+            if ((words[cell >>> 6] & (1L << cell)) == 0) {
+                // already removed, so remove the candidate instead
+                cell = candidate;
+            }
+            words[cell >>> 6] &= ~(1L << cell);
+        }
+        summarize();
+    }
+
+    /**
+     * Builds the OccupancyIndex from the bits, a long at a time.
+     */
+    private void summarize() {
+        occupancy = newOccupancyIndex();
+        int blocks = Math.max(1, dimension >> 2);
+        for (int r = 0; r < blocks; r++) {
+            for (int g = 0; g < blocks; g++) {
+                for (int b = 0; b < blocks; b++) {
+                    occupancy.addToLeaf(r << 2, g << 2, b << 2, Long.bitCount(words[morton(r, g, b)]));
+                }
+            }
+        }
+        occupancy.sumLeaves();
+    }
+
+    /**
+     * Creates the empty OccupancyIndex that the counts are added up in. It is
+     * called while the tracker is being filled.
+     *
+     * @return The OccupancyIndex
+     */
+    OccupancyIndex newOccupancyIndex() {
+        return new OccupancyIndex(dimensionShift, LEAF_LEVEL);
+    }
+
+    /**
+     * Gets one long of the bits. The searches only read the bits through
+     * this, so a subclass that keeps them elsewhere only has to override it.
+     *
+     * @param index
+     *            The index of the long, in Morton order
+     * @return The long
+     */
+    protected long wordAt(int index) {
+        return words[index];
+    }
+
+    /**
+     * Splits the unused colors into disjoint random sets of the given sizes,
+     * each in a new tracker with the same cube. Every unused color ends up in
+     * exactly one of them, so images that draw from different ones can never
+     * use the same color. Each color is dealt to a tracker with a chance in
+     * proportion to how many colors that tracker still needs, which makes
+     * every split with the right sizes equally likely. This tracker must not
+     * be used afterwards. A ConcurrentColorTracker can't be split.
+     *
+     * @param sizes
+     *            The number of colors for each tracker. They must add up to
+     *            getRemaining().
+     * @return The new trackers, in the same order as the sizes
+     */
+    BitSetColorTracker[] partition(int[] sizes) {
+        long[][] parts = new long[sizes.length][words.length];
+        int[] needed = sizes.clone();
+        int total = getRemaining();
+        for (int word = 0; word < words.length; word++) {
+            for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+                int pick = rand.nextInt(total--);
+                int part = 0;
+                while (pick >= needed[part]) {
+                    pick -= needed[part++];
+                }
+                needed[part]--;
+                parts[part][word] |= Long.lowestOneBit(bits);
+            }
+        }
+        BitSetColorTracker[] trackers = new BitSetColorTracker[sizes.length];
+        for (int part = 0; part < sizes.length; part++) {
+            trackers[part] = new BitSetColorTracker(this, rand.split(), parts[part]);
+        }
+        return trackers;
+    }
+
+    @Override
+    protected void scanBox(int redStart, int redEnd, int greenStart, int greenEnd,
+            int blueStart, int blueEnd, IntList closestColors) {
+        // step through the 4x4x4 sub-cubes (longs) that the box touches
+        for (int blockR = redStart >> 2; blockR <= redEnd >> 2; blockR++) {
+            int baseR = blockR << 2;
+            long rMask = R_MASKS[(Math.max(redStart, baseR) - baseR) * 4
+                    + Math.min(redEnd, baseR + 3) - baseR];
+            for (int blockG = greenStart >> 2; blockG <= greenEnd >> 2; blockG++) {
+                int baseG = blockG << 2;
+                long rgMask = rMask & G_MASKS[(Math.max(greenStart, baseG) - baseG) * 4
+                        + Math.min(greenEnd, baseG + 3) - baseG];
+                for (int blockB = blueStart >> 2; blockB <= blueEnd >> 2; blockB++) {
+                    int baseB = blockB << 2;
+                    long bits = wordAt(morton(blockR, blockG, blockB)) & rgMask
+                            & B_MASKS[(Math.max(blueStart, baseB) - baseB) * 4
+                                    + Math.min(blueEnd, baseB + 3) - baseB];
+                    // every set bit left is an unused color inside the box
+                    while (bits != 0) {
+                        int bit = Long.numberOfTrailingZeros(bits);
+                        closestColors.add(colorAt(baseR | LOCAL_R[bit], baseG | LOCAL_G[bit],
+                                baseB | LOCAL_B[bit]));
+                        bits &= bits - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void markUsed(int r, int g, int b) {
+        int cell = morton(r, g, b);
+        long bit = 1L << cell;
+        if ((words[cell >>> 6] & bit) != 0) {
+            words[cell >>> 6] &= ~bit;
+            occupancy.markUsed(r, g, b);
+        }
+    }
+
+    @Override
+    protected boolean isUnused(int r, int g, int b) {
+        int cell = morton(r, g, b);
+        return (words[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    /**
+     * Gets a random unused color. Rather than keeping a separate list of
+     * unused colors, which would take far more memory than the bits do, this
+     * picks a random rank and walks down the OccupancyIndex to the color with
+     * that rank, using the counts to choose which child to go to at each
+     * level. That takes the same bounded number of steps no matter how full
+     * the tracker is.
+     *
+     * @return The color
+     */
+    @Override
+    int getRandomUnused() {
+        int color;
+        do {
+            color = colorWithRank(rand.nextInt(getRemaining()));
+        } while (color == 0);
+        return color;
+    }
+
+    /**
+     * Finds the unused color with the given rank, counting in Morton order.
+     *
+     * @param rank
+     *            The rank, from 0 to getRemaining() - 1
+     * @return The color, or 0 if there are fewer unused colors than the
+     *         counts say. That only happens in a ConcurrentColorTracker,
+     *         while another thread is marking a color as used.
+     */
+    private int colorWithRank(int rank) {
+        // find the leaf node holding the color with that rank
+        int r = 0, g = 0, b = 0;
+        for (int level = occupancy.getTopLevel() - 1; level >= LEAF_LEVEL; level--) {
+            r <<= 1;
+            g <<= 1;
+            b <<= 1;
+            int child = 0;
+            for (; child < 8; child++) {
+                int count = occupancy.count(level, r | (child >> 2), g | ((child >> 1) & 1), b | (child & 1));
+                if (rank < count) {
+                    r |= child >> 2;
+                    g |= (child >> 1) & 1;
+                    b |= child & 1;
+                    break;
+                }
+                rank -= count;
+            }
+            if (child == 8) {
+                return 0;
+            }
+        }
+        // a leaf node's longs are next to each other in Morton order
+        int word = morton(r, g, b) << 3;
+        int end = Math.min(word + 8, Math.max(1, (dimension * dimension * dimension) >> 6));
+        for (; word < end; word++) {
+            long bits = wordAt(word);
+            int count = Long.bitCount(bits);
+            if (rank < count) {
+                for (; rank > 0; rank--) {
+                    bits &= bits - 1;
+                }
+                int cell = (word << 6) | Long.numberOfTrailingZeros(bits);
+                return colorAt(compact(cell >> 2), compact(cell >> 1), compact(cell));
+            }
+            rank -= count;
+        }
+        return 0;
+    }
+
+    /**
+     * Undoes the bit spreading of morton() for one index. It gathers every
+     * third bit of the given value, starting with the lowest.
+     *
+     * @param cell
+     *            The Morton position, shifted so the index's lowest bit is bit
+     *            0
+     * @return The index
+     */
+    static int compact(int cell) {
+        int index = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            index |= ((cell >> (3 * bit)) & 1) << bit;
+        }
+        return index;
+    }
+}
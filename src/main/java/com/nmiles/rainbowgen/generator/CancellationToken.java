@@ -0,0 +1,85 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * Tells an image to stop generating before it is finished. A RandomImage
+ * checks its token at the start of every step(), so a runner on another
+ * thread can stop it by calling cancel(), and a token with a deadline stops
+ * it once the deadline has passed. Either way, the image stops at its next
+ * batch, releases everything but its record, and from then on isStopped()
+ * returns true, so its record holds whatever part of the image was generated
+ * in time.
+ *
+ * Once a token is cancelled or its deadline has passed, it stays that way, so
+ * each job should have its own.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class CancellationToken {
+    /** Whether cancel() has been called. */
+    private volatile boolean cancelled;
+
+    /**
+     * The System.nanoTime() at which the token expires. It is only meaningful
+     * if hasDeadline is true.
+     */
+    private final long deadline;
+
+    /** Whether the token has a deadline. */
+    private final boolean hasDeadline;
+
+    /**
+     * Constructs a new CancellationToken without a deadline, which is only
+     * cancelled when cancel() is called.
+     */
+    public CancellationToken() {
+        deadline = 0;
+        hasDeadline = false;
+    }
+
+    /**
+     * Constructs a new CancellationToken that expires maxMillis milliseconds
+     * from now, unless cancel() is called first.
+     *
+     * @param maxMillis
+     *            The number of milliseconds until the token expires, at least
+     *            0
+     */
+    public CancellationToken(long maxMillis) {
+        if (maxMillis < 0) {
+            throw new IllegalArgumentException("maxMillis must not be negative");
+        }
+        deadline = System.nanoTime() + maxMillis * 1000000L;
+        hasDeadline = true;
+    }
+
+    /**
+     * Cancels the token. It may be called from any thread, any number of
+     * times.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns true if the token has been cancelled, or if its deadline has
+     * passed.
+     *
+     * @return true if the image should stop
+     */
+    public boolean isCancelled() {
+        return cancelled || isExpired();
+    }
+
+    /**
+     * Returns true if the token has a deadline and it has passed, whether or
+     * not cancel() has been called too. Runners can use it to tell an image
+     * that ran out of time, whose partial result is still wanted, from one
+     * that was cancelled.
+     *
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadline >= 0;
+    }
+}
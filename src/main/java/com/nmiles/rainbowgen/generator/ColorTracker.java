@@ -1,263 +1,617 @@
 package com.nmiles.rainbowgen.generator;
 
-import java.awt.Color;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-
 /**
  * Keeps track of colors which have been used for the RainbowGen program. Read
  * individual method documentation for how to use.
- * 
+ *
+ * The colors are thought of as a cube with r, g, and b on the different axes.
+ * Each cell of the cube is one color, and the cube is scaled down so that it
+ * has the smallest power of 2 dimension that holds enough colors. How the
+ * cube is stored is up to the subclasses. This class holds everything that
+ * doesn't depend on that, most importantly the closest color search. To get a
+ * ColorTracker, use create().
+ *
  * @author Nathan Miles
  *
  */
-class ColorTracker {
-    /** The actual array that keeps track of the color usage. */
-    private int[][][] tracker;
-
+abstract class ColorTracker {
     /**
      * The highest dimension that a particular ColorTracker can have on each
      * side.
      */
-    private int MAX_DIMENSION = 256;
+    private static final int MAX_DIMENSION = 256;
+
+    /**
+     * Boxes with at most this many cells are scanned directly with scanBox()
+     * instead of through the OccupancyIndex, because walking the index costs
+     * more than it saves for them.
+     */
+    private static final int DIRECT_SCAN_CELLS = 64;
+
+    /**
+     * Boxes of any size are scanned directly until there is less than one
+     * unused color for every this many leaves of the OccupancyIndex, on
+     * average. Before that, nearly every leaf a box touches still has an
+     * unused color in it, so the index can't skip anything and only adds
+     * overhead.
+     */
+    private static final int SPARSE_LEAVES = 20;
+
+    /**
+     * In DistanceMode.EUCLIDEAN, the most offsets that are worth testing one
+     * at a time. Past this, the colors are nearly used up around the color
+     * being matched, and it's cheaper to let the OccupancyIndex find the few
+     * that are left in a box.
+     */
+    private static final int RING_WALK_OFFSETS = 512;
+
+    /** The maximum number of colors that any given ColorTracker may hold. */
+    public static final int MAX_COLORS = 16777216;
 
     /** The dimension of this ColorTracker */
-    private int dimension;
+    protected int dimension;
+
+    /** The base 2 log of the dimension. */
+    protected int dimensionShift;
 
     /**
-     * The index of the last cell in each array of the tracker. This exists to
+     * The index of the last cell on each side of the cube. This exists to
      * avoid inlining the calculation of dimension - 1 every time it's needed.
      */
-    private int lastCell;
+    protected int lastCell;
 
     /**
      * The scalar that each index must be multiplied by to calculate the color
      * stored at its coordinates. Conversely, this is the number that each RGB
-     * value must be divided by to get its index in the array.
+     * value must be divided by to get its index in the cube.
      */
-    private int scalar;
+    protected int scalar;
 
-    /** The maximum number of colors that any given ColorTracker may hold. */
-    public static final int MAX_COLORS = 16777216;
+    /**
+     * The base 2 log of the scalar. Since the scalar is always a power of 2,
+     * multiplying and dividing by it is done by shifting by this instead.
+     */
+    protected int scalarShift;
+
+    /**
+     * A summary of how many unused colors are left in each region of the
+     * cube. It lets searches skip regions with no unused colors. Subclasses
+     * must create it in fill() and keep it up to date.
+     */
+    protected OccupancyIndex occupancy;
 
-    /** A Random instance for various uses. */
-    private Random rand;
+    /** The random number generator behind the tracker's random choices. */
+    protected XoshiroRandom rand;
+
+    /** How getClosestColors() measures how close colors are. */
+    private DistanceMode distanceMode = DistanceMode.CUBE;
+
+    /**
+     * The offsets around a cell in order of distance. This is only set in
+     * DistanceMode.EUCLIDEAN.
+     */
+    private OffsetRings rings;
 
     /**
      * Constructs a new ColorTracker with the given number of colors in it. The
-     * backing array will be scaled to have the smallest possible dimensions to
-     * avoid searching overhead.
-     * 
+     * cube will be scaled to have the smallest possible dimensions to avoid
+     * searching overhead.
+     *
      * @param colors
      *            The number of colors this ColorTracker should hold. This
      *            number should be equal to the product of the width and height
      *            of the image being built.
+     * @param rand
+     *            The random number generator for the tracker to use
      */
-    ColorTracker(int colors) {
-        rand = new Random();
-        fill(colors);
+    ColorTracker(int colors, XoshiroRandom rand) {
+        this.rand = rand;
+        // Under the current implementation, the scalar must be a multiple of 2,
+        // so choose the smallest multiple of 2 that accommodates the needed
+        // number of colors
+        dimension = 1;
+        dimensionShift = 0;
+        while (dimension * dimension * dimension < colors) {
+            dimension *= 2;
+            dimensionShift++;
+        }
+        scalar = MAX_DIMENSION / dimension;
+        scalarShift = Integer.numberOfTrailingZeros(scalar);
         lastCell = dimension - 1;
+        fill(colors);
     }
 
     /**
-     * Fills the backing array with the appropriate colors (represented as
-     * ints). After it finishes that, it removes cells randomly until the number
-     * of non-zero cells is equal to the number of colors.
-     * 
+     * Constructs a new ColorTracker with the same cube as the given one, but
+     * without filling it. The subclass must set up its storage and the
+     * OccupancyIndex itself. The distance mode is copied.
+     *
+     * @param cube
+     *            The ColorTracker whose cube to use
+     * @param rand
+     *            The random number generator for the tracker to use
+     */
+    ColorTracker(ColorTracker cube, XoshiroRandom rand) {
+        this.rand = rand;
+        dimension = cube.dimension;
+        dimensionShift = cube.dimensionShift;
+        scalar = cube.scalar;
+        scalarShift = cube.scalarShift;
+        lastCell = cube.lastCell;
+        setDistanceMode(cube.distanceMode);
+    }
+
+    /**
+     * Creates a new ColorTracker of the given type with the given number of
+     * colors in it.
+     *
      * @param colors
-     *            The number of colors to fill.
+     *            The number of colors the ColorTracker should hold. This number
+     *            should be equal to the product of the width and height of the
+     *            image being built.
+     * @param type
+     *            How the ColorTracker should store its colors
+     * @param rand
+     *            The random number generator for the ColorTracker to use. The
+     *            ColorTracker takes it over, so it shouldn't be used anywhere
+     *            else.
+     * @return The new ColorTracker
      */
-    private void fill(int colors) {
-        // Under the current implementation, the scalar must be a multiple of 2,
-        // so choose
-        // the smallest multiple of 2 that accommodates the needed number of
-        // colors
-        dimension = 1;
+    static ColorTracker create(int colors, TrackerType type, XoshiroRandom rand) {
+        switch (type) {
+            case BITSET:
+                return new BitSetColorTracker(colors, rand);
+            case ARRAY:
+            default:
+                return new ArrayColorTracker(colors, rand);
+        }
+    }
+
+    /**
+     * Gets the number of cells in the cube of a ColorTracker with the given
+     * number of colors in it, which is the smallest power of 2 cubed that
+     * holds them.
+     *
+     * @param colors
+     *            The number of colors
+     * @return The number of cells
+     */
+    static long cubeCells(int colors) {
+        long dimension = 1;
         while (dimension * dimension * dimension < colors) {
             dimension *= 2;
         }
-        // initialize the backing array
-        scalar = MAX_DIMENSION / dimension;
-        tracker = new int[dimension][dimension][dimension];
-        int rToSet, gToSet, bToSet;
-        // fill the backing array
-        for (int r = 0; r < dimension; r++) {
-            rToSet = r * scalar;
-            for (int g = 0; g < dimension; g++) {
-                gToSet = g * scalar;
-                for (int b = 0; b < dimension; b++) {
-                    bToSet = b * scalar;
-                    tracker[r][g][b] = (new Color(rToSet, gToSet, bToSet)).getRGB();
-                }
-            }
-        }
-        // remove colors randomly until we have the correct number of colors in
-        // the array
-        int toRemove = (dimension * dimension * dimension) - colors;
-        for (; toRemove > 0; toRemove--) {
-            int r = rand.nextInt(dimension);
-            int g = rand.nextInt(dimension);
-            int b = rand.nextInt(dimension);
-            if (tracker[r][g][b] == 0) {
-                toRemove++;
-                continue;
-            } else {
-                tracker[r][g][b] = 0;
-            }
+        return dimension * dimension * dimension;
+    }
+
+    /**
+     * Estimates the memory a ColorTracker of the given type with the given
+     * number of colors in it takes. An ArrayColorTracker holds two ints for
+     * every cell, and a BitSetColorTracker one bit. Each has an
+     * OccupancyIndex with an int for every 4x4x4 or 8x8x8 block of cells,
+     * plus about a seventh more for the levels above.
+     *
+     * @param colors
+     *            The number of colors
+     * @param type
+     *            How the ColorTracker stores its colors
+     * @return The number of bytes
+     */
+    static long estimateBytes(int colors, TrackerType type) {
+        long cells = cubeCells(colors);
+        switch (type) {
+            case BITSET:
+                return cells / 8 + cells / 112;
+            case ARRAY:
+            default:
+                return cells * 8 + cells / 14;
         }
     }
 
     /**
-     * Gets a List containing the closest color(s) to the given color that have
-     * not yet been used in the image.
-     * 
+     * Estimates the time it takes to construct a ColorTracker of the given
+     * type with the given number of colors in it, which is mostly filling its
+     * cube. An ArrayColorTracker takes about 40ns per cell, and a
+     * BitSetColorTracker about 10ns, as measured at 1024x1024 on the same
+     * machine as the algorithms' rates, so ImageCost scales it with them.
+     *
+     * @param colors
+     *            The number of colors
+     * @param type
+     *            How the ColorTracker stores its colors
+     * @return The time, in nanoseconds
+     */
+    static double estimateFillNanos(int colors, TrackerType type) {
+        return cubeCells(colors) * (type == TrackerType.BITSET ? 10 : 40);
+    }
+
+    /**
+     * Fills the cube with every color, then removes a uniformly random set of
+     * colors so that the number of unused colors is exactly equal to the
+     * number of colors. It must take a bounded number of random draws, with no
+     * retries, since it runs before the first pixel is placed. It must also
+     * create the OccupancyIndex. This is called from the constructor, after
+     * dimension, dimensionShift, lastCell, and scalar have been set.
+     *
+     * @param colors
+     *            The number of colors to fill.
+     */
+    protected abstract void fill(int colors);
+
+    /**
+     * Adds every unused color inside the given box of the cube to the given
+     * list without consulting the OccupancyIndex. The bounds are inclusive and
+     * must be inside the cube.
+     *
+     * @param redStart
+     *            The lowest r index of the box
+     * @param redEnd
+     *            The highest r index of the box
+     * @param greenStart
+     *            The lowest g index of the box
+     * @param greenEnd
+     *            The highest g index of the box
+     * @param blueStart
+     *            The lowest b index of the box
+     * @param blueEnd
+     *            The highest b index of the box
+     * @param closestColors
+     *            The list to add the colors to
+     */
+    protected abstract void scanBox(int redStart, int redEnd, int greenStart, int greenEnd,
+            int blueStart, int blueEnd, IntList closestColors);
+
+    /**
+     * Marks the color at the given cell as used, if it isn't already, and
+     * updates the OccupancyIndex accordingly.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     */
+    protected abstract void markUsed(int r, int g, int b);
+
+    /**
+     * Returns true if the color at the given cell has not been used yet.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @return true if the color is unused
+     */
+    protected abstract boolean isUnused(int r, int g, int b);
+
+    /**
+     * Gets a random unused color. Every unused color is equally likely, and
+     * this takes constant time no matter how full the tracker is. There must
+     * be at least one unused color.
+     *
+     * @return The color
+     */
+    abstract int getRandomUnused();
+
+    /**
+     * Sets how getClosestColors() measures how close colors are. The default
+     * is DistanceMode.CUBE.
+     *
+     * @param distanceMode
+     *            The distance mode
+     */
+    void setDistanceMode(DistanceMode distanceMode) {
+        this.distanceMode = distanceMode;
+        rings = distanceMode == DistanceMode.EUCLIDEAN ? OffsetRings.forDimension(dimensionShift) : null;
+    }
+
+    /**
+     * Gets the number of colors that haven't been used yet. This takes
+     * constant time.
+     *
+     * @return The number of unused colors
+     */
+    int getRemaining() {
+        return occupancy.count(occupancy.getTopLevel(), 0, 0, 0);
+    }
+
+    /**
+     * Gets the color stored at the given cell of the cube.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @return The color, with an alpha of 255
+     */
+    protected int colorAt(int r, int g, int b) {
+        return 0xFF000000 | (r << scalarShift << 16) | (g << scalarShift << 8) | (b << scalarShift);
+    }
+
+    /**
+     * Finds the closest color(s) to the given color that have not yet been
+     * used in the image, as measured by the DistanceMode. The colors are
+     * written to the given list, which is cleared first. Nothing is allocated
+     * once the list has grown large enough, so callers should keep reusing the
+     * same list.
+     *
      * @param colorToMatch
      *            The color to get the closest values to.
-     * @return The list of closest colors.
+     * @param closestColors
+     *            The list to write the closest colors to. It is only left empty
+     *            if there are no unused colors other than colorToMatch itself.
      */
-    public List<Integer> getClosestColors(int colorToMatch) {
-        // The list that will eventually be returned
-        List<Integer> closestColors = new ArrayList<Integer>();
-        int rToCheck;
-        int gToCheck;
-        int bToCheck;
-        // convert the int representation of the color to a Color object
-        // to avoid disgusting bitwise math
-        Color c = new Color(colorToMatch);
-        int currentR = c.getRed() / scalar;
-        int currentG = c.getGreen() / scalar;
-        int currentB = c.getBlue() / scalar;
+    public void getClosestColors(int colorToMatch, IntList closestColors) {
+        closestColors.clear();
+        int currentR = ((colorToMatch >> 16) & 0xFF) >> scalarShift;
+        int currentG = ((colorToMatch >> 8) & 0xFF) >> scalarShift;
+        int currentB = (colorToMatch & 0xFF) >> scalarShift;
+        // past this range, every face of the search cube is outside the cube
+        int maxRange = Math.max(Math.max(Math.max(currentR, lastCell - currentR),
+                Math.max(currentG, lastCell - currentG)),
+                Math.max(currentB, lastCell - currentB));
         int range = 0;
         int redStart, redEnd, greenStart, greenEnd, blueStart, blueEnd;
 
         /*
-         * This loop is what actually searches the backing array for unused
-         * colors. This is the processor hog of the whole program, so
-         * performance is valued over code clarity. The backing array is a 3D
-         * "cube" with r, g, and b on the different axes. This loop searches in
-         * what can be thought of as an expanding shell originating at
-         * colorToMatch. At each iteration, it searches each cell in the array
-         * that is on the surface of the cube centered at colorToMatch with
-         * "radius" equal to range.
+         * This loop is what actually searches the cube for unused colors. This
+         * is the processor hog of the whole program, so performance is valued
+         * over code clarity. This loop searches in what can be thought of as
+         * an expanding shell originating at colorToMatch. At each iteration,
+         * it searches each cell in the cube that is on the surface of the
+         * cube centered at colorToMatch with "radius" equal to range. Each
+         * face is searched with collectBox(), which uses the OccupancyIndex
+         * to skip the parts of the face that have no unused colors.
          */
-        while (closestColors.size() == 0) {
+        while (closestColors.size() == 0 && range < maxRange) {
             range++;
 
-            // This chunk searches the face of the search cube with
-            // the r coordinate currentR - range
-            rToCheck = currentR - range;
-            // no need to search if outside cube
-            if (rToCheck >= 0) {
-                // calculate search bounds so we don't waste time searching
-                // outside of the cube
-                greenStart = Math.max(0, currentG - range);
-                greenEnd = Math.min(lastCell, currentG + range);
-                blueStart = Math.max(0, currentB - range);
-                blueEnd = Math.min(lastCell, currentB + range);
-                // search the whole calculated area (a rectangular face)
-                for (gToCheck = greenStart; gToCheck <= greenEnd; gToCheck++) {
-                    for (bToCheck = blueStart; bToCheck <= blueEnd; bToCheck++) {
-                        // if this cell is not 0, add it to the return list
-                        if (tracker[rToCheck][gToCheck][bToCheck] != 0) {
-                            closestColors
-                                    .add(tracker[rToCheck][gToCheck][bToCheck]);
-                        }
-                    }
-                }
-            }
+            // calculate search bounds so we don't waste time searching
+            // outside of the cube
+            redStart = Math.max(0, currentR - range);
+            redEnd = Math.min(lastCell, currentR + range);
+            greenStart = Math.max(0, currentG - range);
+            greenEnd = Math.min(lastCell, currentG + range);
+            blueStart = Math.max(0, currentB - range);
+            blueEnd = Math.min(lastCell, currentB + range);
 
-            // This chunk searches the face of the search cube with
-            // the r coordinate currentR + range
-            rToCheck = currentR + range;
-            if (rToCheck < dimension) {
-                greenStart = Math.max(0, currentG - range);
-                greenEnd = Math.min(lastCell, currentG + range);
-                blueStart = Math.max(0, currentB - range);
-                blueEnd = Math.min(lastCell, currentB + range);
-                for (gToCheck = greenStart; gToCheck <= greenEnd; gToCheck++) {
-                    for (bToCheck = blueStart; bToCheck <= blueEnd; bToCheck++) {
-                        if (tracker[rToCheck][gToCheck][bToCheck] != 0) {
-                            closestColors
-                                    .add(tracker[rToCheck][gToCheck][bToCheck]);
-                        }
-                    }
-                }
+            // The faces with the r coordinate currentR - range and
+            // currentR + range. No need to search if outside the cube.
+            if (currentR - range >= 0) {
+                collectBox(currentR - range, currentR - range, greenStart, greenEnd,
+                        blueStart, blueEnd, closestColors);
+            }
+            if (currentR + range <= lastCell) {
+                collectBox(currentR + range, currentR + range, greenStart, greenEnd,
+                        blueStart, blueEnd, closestColors);
             }
 
-            // This chunk searches the face of the search cube with
-            // the g coordinate currentG - range
-            gToCheck = currentG - range;
-            if (gToCheck >= 0) {
-                redStart = Math.max(0, currentR - range + 1);
-                redEnd = Math.min(lastCell, currentR + range - 1);
-                blueStart = Math.max(0, currentB - range);
-                blueEnd = Math.min(lastCell, currentB + range);
-                for (rToCheck = redStart; rToCheck <= redEnd; rToCheck++) {
-                    for (bToCheck = blueStart; bToCheck <= blueEnd; bToCheck++) {
-                        if (tracker[rToCheck][gToCheck][bToCheck] != 0) {
-                            closestColors
-                                    .add(tracker[rToCheck][gToCheck][bToCheck]);
-                        }
-                    }
-                }
+            // The faces with the g coordinate currentG - range and
+            // currentG + range. They don't include the r faces' edges.
+            redStart = Math.max(0, currentR - range + 1);
+            redEnd = Math.min(lastCell, currentR + range - 1);
+            if (currentG - range >= 0) {
+                collectBox(redStart, redEnd, currentG - range, currentG - range,
+                        blueStart, blueEnd, closestColors);
+            }
+            if (currentG + range <= lastCell) {
+                collectBox(redStart, redEnd, currentG + range, currentG + range,
+                        blueStart, blueEnd, closestColors);
             }
 
-            // This chunk searches the face of the search cube with
-            // the g coordinate currentG + range
-            gToCheck = currentG + range;
-            if (gToCheck < dimension) {
-                redStart = Math.max(0, currentR - range + 1);
-                redEnd = Math.min(lastCell, currentR + range - 1);
-                blueStart = Math.max(0, currentB - range);
-                blueEnd = Math.min(lastCell, currentB + range);
-                for (rToCheck = redStart; rToCheck <= redEnd; rToCheck++) {
-                    for (bToCheck = blueStart; bToCheck <= blueEnd; bToCheck++) {
-                        if (tracker[rToCheck][gToCheck][bToCheck] != 0) {
-                            closestColors
-                                    .add(tracker[rToCheck][gToCheck][bToCheck]);
-                        }
-                    }
-                }
+            // The faces with the b coordinate currentB - range and
+            // currentB + range. They don't include the r or g faces' edges.
+            greenStart = Math.max(0, currentG - range + 1);
+            greenEnd = Math.min(lastCell, currentG + range - 1);
+            if (currentB - range >= 0) {
+                collectBox(redStart, redEnd, greenStart, greenEnd,
+                        currentB - range, currentB - range, closestColors);
+            }
+            if (currentB + range <= lastCell) {
+                collectBox(redStart, redEnd, greenStart, greenEnd,
+                        currentB + range, currentB + range, closestColors);
             }
+        } // end while
 
-            // This chunk searches the face of the search cube with
-            // the b coordinate currentB - range
-            bToCheck = currentB - range;
-            if (bToCheck >= 0) {
-                redStart = Math.max(0, currentR - range + 1);
-                redEnd = Math.min(lastCell, currentR + range - 1);
-                greenStart = Math.max(0, currentG - range + 1);
-                greenEnd = Math.min(lastCell, currentG + range - 1);
-                for (rToCheck = redStart; rToCheck <= redEnd; rToCheck++) {
-                    for (gToCheck = greenStart; gToCheck <= greenEnd; gToCheck++) {
-                        if (tracker[rToCheck][gToCheck][bToCheck] != 0) {
-                            closestColors
-                                    .add(tracker[rToCheck][gToCheck][bToCheck]);
-                        }
+        if (distanceMode == DistanceMode.EUCLIDEAN && closestColors.size() > 0) {
+            keepEuclideanClosest(currentR, currentG, currentB, range, closestColors);
+        }
+    }
+
+    /**
+     * Replaces the colors found by the shell search with the unused colors
+     * that are closest in a straight line. Every cell closer than range in
+     * every direction is known to be used, so the closest colors are at least
+     * range away. The closest color the shell search found is no farther than
+     * the answer can be, so the rings in between are all that need to be
+     * walked. If that is farther than the OffsetRings go, every color in a box
+     * that reaches that far is collected instead and the closest are kept.
+     *
+     * @param currentR
+     *            The r index of the color to match
+     * @param currentG
+     *            The g index of the color to match
+     * @param currentB
+     *            The b index of the color to match
+     * @param range
+     *            The range of the shell the colors were found in
+     * @param closestColors
+     *            The colors found by the shell search, which are replaced by
+     *            the closest colors
+     */
+    private void keepEuclideanClosest(int currentR, int currentG, int currentB, int range,
+            IntList closestColors) {
+        int limit = Integer.MAX_VALUE;
+        for (int i = 0; i < closestColors.size(); i++) {
+            limit = Math.min(limit, distanceSquared(closestColors.get(i), currentR, currentG, currentB));
+        }
+        closestColors.clear();
+        if (limit <= rings.getMaxDistanceSquared()
+                && rings.ringStart(limit + 1) - rings.ringStart(range * range) <= RING_WALK_OFFSETS) {
+            // walk outward a ring at a time, stopping at the first with a hit
+            for (int distance = range * range; closestColors.size() == 0 && distance <= limit; distance++) {
+                for (int i = rings.ringStart(distance); i < rings.ringStart(distance + 1); i++) {
+                    int r = currentR + rings.dr(i);
+                    int g = currentG + rings.dg(i);
+                    int b = currentB + rings.db(i);
+                    // lastCell is all ones, so this catches both sides of the cube
+                    if (((r | g | b) & ~lastCell) == 0 && isUnused(r, g, b)) {
+                        closestColors.add(colorAt(r, g, b));
                     }
                 }
             }
+            return;
+        }
+        // everything at most sqrt(limit) away is inside this box
+        int reach = (int) Math.sqrt(limit);
+        collectBox(Math.max(0, currentR - reach), Math.min(lastCell, currentR + reach),
+                Math.max(0, currentG - reach), Math.min(lastCell, currentG + reach),
+                Math.max(0, currentB - reach), Math.min(lastCell, currentB + reach), closestColors);
+        for (int i = 0; i < closestColors.size(); i++) {
+            int distance = distanceSquared(closestColors.get(i), currentR, currentG, currentB);
+            if (distance > 0) {
+                limit = Math.min(limit, distance);
+            }
+        }
+        for (int i = closestColors.size() - 1; i >= 0; i--) {
+            if (distanceSquared(closestColors.get(i), currentR, currentG, currentB) != limit) {
+                closestColors.removeSwap(i);
+            }
+        }
+    }
 
-            // This chunk searches the face of the search cube with
-            // the b coordinate currentB + range
-            bToCheck = currentB + range;
-            if (bToCheck < dimension) {
-                redStart = Math.max(0, currentR - range + 1);
-                redEnd = Math.min(lastCell, currentR + range - 1);
-                greenStart = Math.max(0, currentG - range + 1);
-                greenEnd = Math.min(lastCell, currentG + range - 1);
-                for (rToCheck = redStart; rToCheck <= redEnd; rToCheck++) {
-                    for (gToCheck = greenStart; gToCheck <= greenEnd; gToCheck++) {
-                        if (tracker[rToCheck][gToCheck][bToCheck] != 0) {
-                            closestColors
-                                    .add(tracker[rToCheck][gToCheck][bToCheck]);
-                        }
-                    }
+    /**
+     * Gets the squared straight line distance between a color and a cell of
+     * the cube, in cells.
+     *
+     * @param color
+     *            The color
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @return The squared distance
+     */
+    private int distanceSquared(int color, int r, int g, int b) {
+        int dr = (((color >> 16) & 0xFF) >> scalarShift) - r;
+        int dg = (((color >> 8) & 0xFF) >> scalarShift) - g;
+        int db = ((color & 0xFF) >> scalarShift) - b;
+        return dr * dr + dg * dg + db * db;
+    }
+
+    /**
+     * Adds every unused color inside the given box of the cube to the given
+     * list. The bounds are inclusive and must be inside the cube.
+     *
+     * @param redStart
+     *            The lowest r index of the box
+     * @param redEnd
+     *            The highest r index of the box
+     * @param greenStart
+     *            The lowest g index of the box
+     * @param greenEnd
+     *            The highest g index of the box
+     * @param blueStart
+     *            The lowest b index of the box
+     * @param blueEnd
+     *            The highest b index of the box
+     * @param closestColors
+     *            The list to add the colors to
+     */
+    private void collectBox(int redStart, int redEnd, int greenStart, int greenEnd,
+            int blueStart, int blueEnd, IntList closestColors) {
+        if (redStart > redEnd || greenStart > greenEnd || blueStart > blueEnd) {
+            return;
+        }
+        // small boxes, and boxes in a cube that isn't sparse yet, are cheaper
+        // to scan directly than to look up in the index
+        if ((redEnd - redStart + 1) * (greenEnd - greenStart + 1) * (blueEnd - blueStart + 1) <= DIRECT_SCAN_CELLS
+                || !isSparse()) {
+            scanBox(redStart, redEnd, greenStart, greenEnd, blueStart, blueEnd, closestColors);
+            return;
+        }
+        // start at the smallest node that holds the whole box
+        int differingBits = (redStart ^ redEnd) | (greenStart ^ greenEnd) | (blueStart ^ blueEnd);
+        int level = Math.max(occupancy.getLeafLevel(), 32 - Integer.numberOfLeadingZeros(differingBits));
+        collectNode(level, redStart >> level, greenStart >> level, blueStart >> level,
+                redStart, redEnd, greenStart, greenEnd, blueStart, blueEnd, closestColors);
+    }
+
+    /**
+     * Returns true if there is less than one unused color for every
+     * SPARSE_LEAVES leaves of the OccupancyIndex, on average, so that it is
+     * worth walking the index to skip the empty ones.
+     *
+     * @return true if the cube is sparse
+     */
+    private boolean isSparse() {
+        long leafCells = 1L << (3 * occupancy.getLeafLevel());
+        return getRemaining() * leafCells * SPARSE_LEAVES < 1L << (3 * dimensionShift);
+    }
+
+    /**
+     * Adds every unused color inside both the given OccupancyIndex node and the
+     * given box to the given list. Nodes with no unused colors are skipped
+     * entirely, as are nodes outside of the box.
+     *
+     * @param level
+     *            The level of the node
+     * @param nodeR
+     *            The r coordinate of the node at its level
+     * @param nodeG
+     *            The g coordinate of the node at its level
+     * @param nodeB
+     *            The b coordinate of the node at its level
+     * @param redStart
+     *            The lowest r index of the box
+     * @param redEnd
+     *            The highest r index of the box
+     * @param greenStart
+     *            The lowest g index of the box
+     * @param greenEnd
+     *            The highest g index of the box
+     * @param blueStart
+     *            The lowest b index of the box
+     * @param blueEnd
+     *            The highest b index of the box
+     * @param closestColors
+     *            The list to add the colors to
+     */
+    private void collectNode(int level, int nodeR, int nodeG, int nodeB, int redStart,
+            int redEnd, int greenStart, int greenEnd, int blueStart, int blueEnd,
+            IntList closestColors) {
+        // the cells covered by this node, clipped to the box
+        int rFrom = Math.max(redStart, nodeR << level);
+        int rTo = Math.min(redEnd, ((nodeR + 1) << level) - 1);
+        int gFrom = Math.max(greenStart, nodeG << level);
+        int gTo = Math.min(greenEnd, ((nodeG + 1) << level) - 1);
+        int bFrom = Math.max(blueStart, nodeB << level);
+        int bTo = Math.min(blueEnd, ((nodeB + 1) << level) - 1);
+        if (rFrom > rTo || gFrom > gTo || bFrom > bTo
+                || occupancy.count(level, nodeR, nodeG, nodeB) == 0) {
+            return;
+        }
+        if (level == occupancy.getLeafLevel()) {
+            scanBox(rFrom, rTo, gFrom, gTo, bFrom, bTo, closestColors);
+            return;
+        }
+        // search the children that the box touches
+        level--;
+        for (int r = rFrom >> level; r <= rTo >> level; r++) {
+            for (int g = gFrom >> level; g <= gTo >> level; g++) {
+                for (int b = bFrom >> level; b <= bTo >> level; b++) {
+                    collectNode(level, r, g, b, redStart, redEnd, greenStart, greenEnd,
+                            blueStart, blueEnd, closestColors);
                 }
-            } // end if
-        } // end while
-        return closestColors;
+            }
+        }
     }
 
     /**
@@ -267,33 +621,12 @@ class ColorTracker {
      * pixels. For example, if multiple pixels are populated from a single call
      * of getClosestColors(), the calling method is responsible for ensuring
      * that no color from that list is used twice.
-     * 
+     *
      * @param color
      *            The color to mark
      */
     void markUsed(int color) {
-        Color c = new Color(color);
-        int r = c.getRed() / scalar;
-        int g = c.getGreen() / scalar;
-        int b = c.getBlue() / scalar;
-        tracker[r][g][b] = 0;
-    }
-
-    /**
-     * Gets a random unused color
-     * 
-     * @return The color
-     */
-    int getRandomUnused() {
-        int ret = 1; // all used colors are negative, so this value will never occur
-        while (ret == 1) {
-            int r = rand.nextInt(dimension);
-            int g = rand.nextInt(dimension);
-            int b = rand.nextInt(dimension);
-            if (tracker[r][g][b] != 0) {
-                ret = tracker[r][g][b];
-            }
-        }
-        return ret;
+        markUsed(((color >> 16) & 0xFF) >> scalarShift, ((color >> 8) & 0xFF) >> scalarShift,
+                (color & 0xFF) >> scalarShift);
     }
 }
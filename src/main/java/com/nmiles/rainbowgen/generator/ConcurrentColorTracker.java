@@ -0,0 +1,107 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A BitSetColorTracker that several threads can search and mark colors used
+ * in at once, without a lock. It is filled exactly like a BitSetColorTracker,
+ * and then its bits are moved into an AtomicLongArray, and its OccupancyIndex
+ * is a ConcurrentOccupancyIndex.
+ *
+ * A color is claimed by clearing its bit with a compare-and-set, in
+ * tryMarkUsed(), so when several threads want the same color, exactly one of
+ * them gets it. The OccupancyIndex is only updated after the bit is cleared,
+ * so its counts are never lower than the number of unused colors, and
+ * getClosestColors() never skips a color that is really unused. What it finds
+ * may have been claimed by another thread by the time it returns, though, so
+ * callers must claim colors with tryMarkUsed() and move on to another color
+ * when it returns false, rather than calling markUsed().
+ *
+ * getRandomUnused() still uses the tracker's own random number generator, so
+ * only one thread may call it at a time.
+ *
+ * @author Nathan Miles
+ *
+ */
+final class ConcurrentColorTracker extends BitSetColorTracker {
+    /** The bits, in Morton order. A set bit is an unused color. */
+    private final AtomicLongArray bits;
+
+    /**
+     * Constructs a new ConcurrentColorTracker with the given number of colors
+     * in it.
+     *
+     * @param colors
+     *            The number of colors this ColorTracker should hold.
+     * @param rand
+     *            The random number generator for the tracker to use
+     */
+    ConcurrentColorTracker(int colors, XoshiroRandom rand) {
+        super(colors, rand);
+        bits = new AtomicLongArray(words);
+        words = null;
+    }
+
+    @Override
+    OccupancyIndex newOccupancyIndex() {
+        return new ConcurrentOccupancyIndex(dimensionShift, LEAF_LEVEL);
+    }
+
+    @Override
+    protected long wordAt(int index) {
+        return bits.get(index);
+    }
+
+    /**
+     * Marks a color as used, unless another thread already has.
+     *
+     * @param color
+     *            The color to mark
+     * @return true if this call marked the color, false if it was already
+     *         used
+     */
+    boolean tryMarkUsed(int color) {
+        return tryMarkUsed(((color >> 16) & 0xFF) >> scalarShift, ((color >> 8) & 0xFF) >> scalarShift,
+                (color & 0xFF) >> scalarShift);
+    }
+
+    /**
+     * Marks the color at the given cell as used, unless another thread
+     * already has.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @return true if this call marked the color, false if it was already
+     *         used
+     */
+    private boolean tryMarkUsed(int r, int g, int b) {
+        int cell = morton(r, g, b);
+        int word = cell >>> 6;
+        long bit = 1L << cell;
+        for (;;) {
+            long old = bits.get(word);
+            if ((old & bit) == 0) {
+                return false;
+            }
+            if (bits.compareAndSet(word, old, old & ~bit)) {
+                occupancy.markUsed(r, g, b);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    protected void markUsed(int r, int g, int b) {
+        tryMarkUsed(r, g, b);
+    }
+
+    @Override
+    protected boolean isUnused(int r, int g, int b) {
+        int cell = morton(r, g, b);
+        return (bits.get(cell >>> 6) & (1L << cell)) != 0;
+    }
+}
@@ -0,0 +1,80 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An OccupancyIndex that several threads can read and mark colors used in at
+ * once, without a lock. It is filled exactly like an OccupancyIndex, on one
+ * thread, and once sumLeaves() has been called, its counts are moved into
+ * atomic arrays, which every count() and markUsed() after that goes through.
+ *
+ * markUsed() decrements one level at a time, so while it is running, a node
+ * can briefly count one more color than its children add up to. Owners must
+ * only call markUsed() after a color is really used, so the counts are never
+ * lower than the number of unused colors, only briefly higher. Searches can
+ * therefore still skip every node that counts zero, but can't trust a count
+ * to be exact.
+ *
+ * @author Nathan Miles
+ *
+ */
+final class ConcurrentOccupancyIndex extends OccupancyIndex {
+    /**
+     * The counts for each level, once sumLeaves() has been called. They are
+     * laid out exactly as in OccupancyIndex.
+     */
+    private AtomicIntegerArray[] atomicCounts;
+
+    /**
+     * Constructs a new ConcurrentOccupancyIndex for a cube with sides of
+     * length 2^dimensionShift. All counts start at zero.
+     *
+     * @param dimensionShift
+     *            The base 2 log of the cube's dimension
+     * @param leafLevel
+     *            The finest level to keep counts for. Its nodes have sides of
+     *            length 2^leafLevel.
+     */
+    ConcurrentOccupancyIndex(int dimensionShift, int leafLevel) {
+        super(dimensionShift, leafLevel);
+    }
+
+    /**
+     * Recalculates the count of every node above the leaves, then moves the
+     * counts into the atomic arrays. It must be called exactly once, before
+     * the index is shared between threads.
+     */
+    @Override
+    void sumLeaves() {
+        super.sumLeaves();
+        atomicCounts = new AtomicIntegerArray[counts.length];
+        for (int level = getLeafLevel(); level <= getTopLevel(); level++) {
+            atomicCounts[level] = new AtomicIntegerArray(counts[level]);
+        }
+    }
+
+    @Override
+    int count(int level, int r, int g, int b) {
+        int shift = sideShift[level];
+        return atomicCounts[level].get((((r << shift) | g) << shift) | b);
+    }
+
+    /**
+     * Records that the color at the given cell of the cube has been used,
+     * from the leaf up.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     */
+    @Override
+    void markUsed(int r, int g, int b) {
+        for (int level = getLeafLevel(); level <= getTopLevel(); level++) {
+            int shift = sideShift[level];
+            atomicCounts[level].decrementAndGet(((((r >> level) << shift) | (g >> level)) << shift) | (b >> level));
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A StainedGlass whose starting points grow on several threads at once. The
+ * starting points are dealt out to the threads, and each thread grows the
+ * regions around its own starting points exactly as StainedGlass grows all of
+ * them: it picks a random pixel from its own edge list and populates its
+ * empty neighbors with the closest unused colors.
+ *
+ * Unlike a TiledImage, the threads share the whole image and every color, so
+ * regions grow into each other just as they do on one thread. That takes two
+ * shared structures that can be changed by every thread at once without a
+ * lock:
+ *
+ * - The raster is an AtomicIntegerArray. A thread claims an empty pixel by
+ * setting it from EMPTY_VALUE to CLAIMED with a compare-and-set, so exactly
+ * one thread can ever populate each pixel, and only then picks its color.
+ *
+ * - The colors are in a ConcurrentColorTracker, which a thread claims a color
+ * in with a compare-and-set as well. When another thread has claimed a color
+ * since it was found, the thread just tries the next one.
+ *
+ * Pixels that another thread has claimed are never given back, and the
+ * number of colors is exactly the number of pixels, so there is always an
+ * unused color for every claimed pixel.
+ *
+ * Each thread only grows from pixels it populated itself, so it always knows
+ * their colors. Its edge list isn't told when other threads populate the
+ * neighbors of its pixels, so pixels are only evicted from it once they are
+ * picked and turn out to have no empty neighbors left.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ConcurrentStainedGlass extends ParallelImage {
+    /**
+     * What a claimed pixel holds until its color is picked. It can't be a
+     * color, since every color has an alpha of 255.
+     */
+    private static final int CLAIMED = 1;
+
+    /** The raster, shared by every thread. */
+    private AtomicIntegerArray pixels;
+
+    /** The colors, shared by every thread. */
+    private ConcurrentColorTracker colors;
+
+    /** The state of every thread. */
+    private Grower[] growers;
+
+    /** The number of starting points planted so far. */
+    private int planted;
+
+    /**
+     * The state of one thread: its own edge list, random number generator,
+     * record, and buffers.
+     *
+     * @author Nathan Miles
+     *
+     */
+    private final class Grower {
+        /**
+         * The pixels this thread has populated that may still have empty
+         * neighbors. Its order doesn't matter, just like StainedGlass's.
+         */
+        private final IntList edgeList = new IntList();
+
+        /** The thread's random number generator. */
+        private final XoshiroRandom rand;
+
+        /** Where the thread's pixels are recorded. */
+        private final ImageRecord record;
+
+        /** The buffer that the empty neighbors are written to at each step. */
+        private final IntList neighbors = new IntList(8);
+
+        /** The buffer that the closest colors are written to at each step. */
+        private final IntList closestColors = new IntList();
+
+        /**
+         * Constructs a new Grower.
+         *
+         * @param rand
+         *            The thread's random number generator
+         * @param record
+         *            Where the thread's pixels are recorded
+         */
+        private Grower(XoshiroRandom rand, ImageRecord record) {
+            this.rand = rand;
+            this.record = record;
+        }
+
+        /**
+         * Populates a pixel that this thread has claimed, and adds it to the
+         * edge list.
+         *
+         * @param pixel
+         *            The packed pixel
+         * @param color
+         *            The color, which this thread has claimed
+         */
+        private void populate(int pixel, int color) {
+            pixels.set(pixel, color);
+            record.addPixel(pixel % width, pixel / width, color);
+            edgeList.add(pixel);
+        }
+
+        /**
+         * Grows the image from one random pixel in the edge list, the same
+         * way StainedGlass.nextPixel() does. Neighbors that another thread
+         * claims first are skipped. If the pixel has no empty neighbors left,
+         * it is evicted instead.
+         *
+         * @return The number of pixels populated
+         */
+        private int grow() {
+            int index = rand.nextInt(edgeList.size());
+            int source = edgeList.get(index);
+            neighbors.clear();
+            for (int around = insideMask(source % width, source / width); around != 0; around &= around - 1) {
+                int neighbor = source + neighborOffsets[Integer.numberOfTrailingZeros(around)];
+                if (pixels.get(neighbor) == EMPTY_VALUE) {
+                    neighbors.add(neighbor);
+                }
+            }
+            if (neighbors.size() == 0) {
+                edgeList.removeSwap(index);
+                return 0;
+            }
+            int sourceColor = pixels.get(source);
+            colors.getClosestColors(sourceColor, closestColors);
+            if (closestColors.size() == 0) {
+                /*
+                 * Other threads took the last colors since the neighbors were
+                 * checked, which is fine as long as they took the neighbors
+                 * too, since an empty pixel always has a color left for it
+                 */
+                for (int i = 0; i < neighbors.size(); i++) {
+                    if (pixels.get(neighbors.get(i)) == EMPTY_VALUE) {
+                        throw new IllegalStateException("Ran out of colors");
+                    }
+                }
+                return 0;
+            }
+            int grown = 0;
+            while (neighbors.size() > 0 && closestColors.size() > 0) {
+                int pixel = neighbors.removeSwap(rand.nextInt(neighbors.size()));
+                if (pixels.compareAndSet(pixel, EMPTY_VALUE, CLAIMED)) {
+                    populate(pixel, claimColor(sourceColor));
+                    grown++;
+                }
+            }
+            return grown;
+        }
+
+        /**
+         * Claims a random one of the closest colors. If other threads have
+         * claimed all of them since they were found, the closest colors are
+         * found again.
+         *
+         * @param sourceColor
+         *            The color to find the closest colors to
+         * @return The color
+         */
+        private int claimColor(int sourceColor) {
+            for (;;) {
+                while (closestColors.size() > 0) {
+                    int color = closestColors.removeSwap(rand.nextInt(closestColors.size()));
+                    if (colors.tryMarkUsed(color)) {
+                        return color;
+                    }
+                }
+                colors.getClosestColors(sourceColor, closestColors);
+                if (closestColors.size() == 0) {
+                    throw new IllegalStateException("Ran out of colors");
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructs a new ConcurrentStainedGlass, and plants startingPoints or 1
+     * starting points, whichever is greater. There is one thread for each
+     * thread in the options, or for each starting point if there are fewer of
+     * them. Use StainedGlass.create() instead of calling this directly.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param startingPoints
+     *            The number of starting points
+     * @param options
+     *            The options to generate the image with. The TrackerType is
+     *            ignored.
+     */
+    ConcurrentStainedGlass(int width, int height, int startingPoints, ImageOptions options) {
+        super(width, height, options);
+        startingPoints = Math.max(1, startingPoints);
+        pixels = new AtomicIntegerArray(width * height);
+        colors = new ConcurrentColorTracker(width * height, rand.split());
+        colors.setDistanceMode(options.getDistanceMode());
+        growers = new Grower[Math.min(options.getThreads(), startingPoints)];
+        for (int i = 0; i < growers.length; i++) {
+            growers[i] = new Grower(rand.split(), newWorkerRecord(width * height / growers.length, 0));
+        }
+        plantRandom(startingPoints);
+    }
+
+    @Override
+    protected int getWorkerCount() {
+        return growers.length;
+    }
+
+    @Override
+    protected boolean isEmpty(int pixel) {
+        return pixels.get(pixel) == EMPTY_VALUE;
+    }
+
+    /**
+     * Plants a starting point, and gives it to the next thread in turn. This
+     * must only be called before the first step().
+     *
+     * @param pixel
+     *            The packed pixel. It must be empty.
+     */
+    @Override
+    protected void plant(int pixel) {
+        int color = colors.getRandomUnused();
+        colors.tryMarkUsed(color);
+        growers[planted++ % growers.length].populate(pixel, color);
+        countPlanted();
+    }
+
+    /**
+     * Grows one thread's regions until its edge list is empty.
+     *
+     * @param worker
+     *            The index of the thread
+     */
+    @Override
+    protected void generate(int worker) {
+        Grower grower = growers[worker];
+        while (grower.edgeList.size() > 0 && !shouldStop()) {
+            int grown = 0;
+            while (grown < BATCH_PIXELS && grower.edgeList.size() > 0) {
+                grown += grower.grow();
+            }
+            report(grown);
+        }
+        grower.record.makeFinal();
+    }
+
+    /**
+     * Waits for the threads to stop, then drops the shared raster and colors
+     * and every thread's state.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        pixels = null;
+        colors = null;
+        growers = null;
+    }
+
+    /**
+     * Builds a BufferedImage of the image as it is now. If the threads are
+     * running, pixels that are claimed but don't have their colors yet are
+     * left transparent.
+     *
+     * @return The BufferedImage
+     */
+    @Override
+    public BufferedImage toBufferedImage() {
+        int[] snapshot = new int[width * height];
+        for (int i = 0; i < snapshot.length; i++) {
+            int color = pixels.get(i);
+            snapshot[i] = color == CLAIMED ? EMPTY_VALUE : color;
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, snapshot, 0, width);
+        return image;
+    }
+}
@@ -0,0 +1,19 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * The ways a ColorTracker can measure how close two colors are when it looks
+ * for the closest unused colors.
+ * 
+ * @author Nathan Miles
+ *
+ */
+public enum DistanceMode {
+    /**
+     * The largest difference in any one of r, g, or b. Every color on the
+     * surface of a cube around the color is equally close, corners included.
+     */
+    CUBE,
+
+    /** The straight line distance between the colors in the cube. */
+    EUCLIDEAN
+}
@@ -0,0 +1,108 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * A RandomImage that grows from an edge list: a list of the populated pixels
+ * that still have empty neighbors, which nextPixel() picks pixels to grow
+ * from. What kind of list it is, and so how pixels are picked from it, is up
+ * to the subclass. This class plants the starting points and, in a
+ * TiledImage, the pixels handed over from neighboring tiles, and adds them to
+ * the edge list with addToEdge().
+ *
+ * @author Nathan Miles
+ *
+ */
+abstract class EdgeListImage extends RandomImage {
+    /** The buffer that the closest colors for handed over pixels go to. */
+    private IntList receivedColors;
+
+    /**
+     * Performs basic setup for the image, exactly as RandomImage(int, int,
+     * ImageOptions) does.
+     *
+     * @param width
+     *            The width of the image to be generated.
+     * @param height
+     *            The height of the image to be generated.
+     * @param options
+     *            The options to generate the image with.
+     */
+    EdgeListImage(int width, int height, ImageOptions options) {
+        super(width, height, options);
+    }
+
+    /**
+     * Performs basic setup for one tile of a TiledImage, exactly as
+     * RandomImage(int, int, Tile) does.
+     *
+     * @param width
+     *            The width of the tile.
+     * @param height
+     *            The height of the tile.
+     * @param tile
+     *            The tile.
+     */
+    EdgeListImage(int width, int height, Tile tile) {
+        super(width, height, tile);
+    }
+
+    /**
+     * Adds a pixel that was just populated to the edge list. This is used for
+     * pixels that weren't populated by nextPixel(): the starting points, and,
+     * in a TiledImage, pixels handed over from neighboring tiles.
+     *
+     * @param pixel
+     *            The packed pixel to add.
+     */
+    protected abstract void addToEdge(int pixel);
+
+    /**
+     * Populates a pixel with a random unused color and adds it to the edge
+     * list, to start growth from.
+     *
+     * @param pixel
+     *            The packed pixel. It must be empty.
+     */
+    @Override
+    protected void plant(int pixel) {
+        updateImage(pixel, colorTracker.getRandomUnused());
+        addToEdge(pixel);
+        evictSaturated();
+    }
+
+    /**
+     * Populates a pixel next to a neighboring tile, as if it had been grown
+     * from the pixel across the border, and adds it to the edge list. Nothing
+     * happens if the pixel has already been populated.
+     *
+     * @param pixel
+     *            The packed pixel.
+     * @param color
+     *            The color of the pixel across the border.
+     * @param from
+     *            The index of the tile across the border.
+     */
+    void receive(int pixel, int color, int from) {
+        if (!isEmpty(pixel)) {
+            return;
+        }
+        if (receivedColors == null) {
+            receivedColors = new IntList();
+        }
+        colorTracker.getClosestColors(color, receivedColors);
+        receivedFrom = from;
+        updateImage(pixel, receivedColors.get(rand.nextInt(receivedColors.size())));
+        receivedFrom = -1;
+        addToEdge(pixel);
+        evictSaturated();
+    }
+
+    /**
+     * Drops the buffer for handed over pixels, along with everything
+     * RandomImage.release() drops.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        receivedColors = null;
+    }
+}
@@ -1,9 +1,5 @@
 package com.nmiles.rainbowgen.generator;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-
 /**
  * You should read about how StainedGlass works before trying to read through
  * this class's description.
@@ -20,7 +16,7 @@ import java.util.ListIterator;
  * @author Nathan Miles
  *
  */
-public class FastIterator extends RandomImage {
+public class FastIterator extends EdgeListImage {
 
     /**
      * The percent chance that the iterator will stop at a given pixel in the
@@ -28,14 +24,37 @@ public class FastIterator extends RandomImage {
      */
     private int individualPercent;
 
-    /** A list of all pixels on the edge of the image, just as in StainedGlass. */
-    private List<Pixel> edgeList;
+    /**
+     * The natural log of the chance that the iterator will pass a given pixel
+     * without stopping. See RandomImage.walk().
+     */
+    private double logFailure;
+
+    /**
+     * A list of all pixels on the edge of the image, just as in StainedGlass.
+     * Its order matters here, so it is an IndexedIntList, which can insert and
+     * remove anywhere and jump to any index in O(log n) time.
+     */
+    IndexedIntList edgeList;
+
+    /**
+     * The position of the simulated ListIterator over the edgeList. Like a
+     * ListIterator's cursor, it lies between two pixels: it is the index of
+     * the pixel after it, or the size of the list if it is at the end.
+     */
+    int cursor;
 
     /**
-     * An iterator over the edgeList. This is what is used to actually traverse
-     * the list and retrieve items from it.
+     * The node of the edgeList that holds every pixel. The values for pixels
+     * that aren't in it are meaningless.
      */
-    private ListIterator<Pixel> edgeIterator;
+    private int[] edgeNode;
+
+    /** The buffer that the unpopulated neighbors are written to at each step. */
+    private IntList neighbors = new IntList(8);
+
+    /** The buffer that the closest colors are written to at each step. */
+    private IntList closestColors = new IntList();
 
     /**
      * Constructs a new FastIterator with the given parameters.
@@ -49,21 +68,90 @@ public class FastIterator extends RandomImage {
      *            pixel in the edgeList. Percentages are on a scale of 1-1000.
      */
     public FastIterator(int width, int height, int individualPercent) {
-        super(width, height);
+        this(width, height, individualPercent, new ImageOptions());
+    }
+
+    /**
+     * Constructs a new FastIterator with the given parameters and options.
+     * 
+     * @param width
+     *            The width of the new image
+     * @param height
+     *            The height of the new image
+     * @param individualPercent
+     *            The percent change that the iterator will stop at a given
+     *            pixel in the edgeList. Percentages are on a scale of 1-1000.
+     * @param options
+     *            The options to generate the image with
+     */
+    public FastIterator(int width, int height, int individualPercent, ImageOptions options) {
+        super(width, height, options);
+        init(individualPercent);
+        plantRandom(1);
+    }
+
+    /**
+     * Constructs one tile of a TiledImage, with no starting point. The
+     * TiledImage plants it.
+     * 
+     * @param width
+     *            The width of the tile
+     * @param height
+     *            The height of the tile
+     * @param individualPercent
+     *            The percent change that the iterator will stop at a given
+     *            pixel in the edgeList. Percentages are on a scale of 1-1000.
+     * @param tile
+     *            The tile
+     */
+    FastIterator(int width, int height, int individualPercent, Tile tile) {
+        super(width, height, tile);
+        init(individualPercent);
+    }
+
+    /**
+     * Creates a new FastIterator exactly as FastIterator(int, int, int,
+     * ImageOptions) does, but if the options ask for more than one thread, it
+     * is generated as a TiledImage instead.
+     * 
+     * @param width
+     *            The width of the new image
+     * @param height
+     *            The height of the new image
+     * @param individualPercent
+     *            The percent change that the iterator will stop at a given
+     *            pixel in the edgeList. Percentages are on a scale of 1-1000.
+     * @param options
+     *            The options to generate the image with
+     * @return The new image
+     */
+    public static RandomImage create(int width, int height, int individualPercent, ImageOptions options) {
+        if (options.getThreads() <= 1) {
+            return new FastIterator(width, height, individualPercent, options);
+        }
+        TiledImage image = new TiledImage(width, height, options,
+                (tileWidth, tileHeight, tile) -> new FastIterator(tileWidth, tileHeight, individualPercent, tile));
+        image.plantRandom(1);
+        return image;
+    }
+
+    /**
+     * Checks the parameters and sets up the edgeList. The cursor starts before
+     * the first pixel.
+     * 
+     * @param individualPercent
+     *            The percent change that the iterator will stop at a given
+     *            pixel in the edgeList. Percentages are on a scale of 1-1000.
+     */
+    private void init(int individualPercent) {
         if (individualPercent < 1 || individualPercent > 1000) {
             throw new IllegalArgumentException(
                     "individualPercent must be between 1 and 1000");
         }
         this.individualPercent = individualPercent;
-        edgeList = new LinkedList<Pixel>();
-        Pixel pixelToAdd = new Pixel(rand.nextInt(width), rand.nextInt(height));
-        edgeList.add(pixelToAdd);
-
-        int colorToAdd = colorTracker.getRandomUnused();
-
-        updateImage(pixelToAdd.getX(), pixelToAdd.getY(), colorToAdd);
-
-        edgeIterator = edgeList.listIterator();
+        logFailure = Math.log(1 - individualPercent / 1000.0);
+        edgeList = new IndexedIntList();
+        edgeNode = new int[width * height];
     }
 
     /**
@@ -74,81 +162,93 @@ public class FastIterator extends RandomImage {
     @Override
     public void nextPixel() {
 
-        Pixel toAddTo = choosePixelFromList();
-        List<Pixel> nextPossibilities = toAddTo.getPossibilities(image);
-        if (nextPossibilities.size() == 0) {
-            edgeIterator.remove();
-            return;
-        }
+        int toAddTo = choosePixelFromList();
+        // saturated pixels are evicted, so there is always a neighbor
+        getPossibilities(toAddTo, neighbors);
 
-        int colorToMatch = image.getRGB(toAddTo.getX(), toAddTo.getY());
+        int colorToMatch = getColor(toAddTo);
 
-        List<Integer> colorPossibilities = colorTracker.getClosestColors(colorToMatch);
+        colorTracker.getClosestColors(colorToMatch, closestColors);
 
         // keep populating pixels until the neighbor list or color list runs out
-        while (nextPossibilities.size() != 0 && colorPossibilities.size() != 0) {
-            Pixel pixelToAdd = nextPossibilities.remove(rand.nextInt(nextPossibilities.size()));
-            int colorToAdd = colorPossibilities.remove(rand.nextInt(colorPossibilities.size()));
+        while (neighbors.size() != 0 && closestColors.size() != 0) {
+            int pixelToAdd = neighbors.removeSwap(rand.nextInt(neighbors.size()));
+            int colorToAdd = closestColors.removeSwap(rand.nextInt(closestColors.size()));
             // add the pixel to the edgeList in the current place
-            edgeIterator.add(pixelToAdd);
+            addToEdge(pixelToAdd);
             // 50% chance of ending up on either side of the just-added pixel
-            if (rand.nextInt(2) == 0) {
-                edgeIterator.previous();
+            if (rand.nextInt(2) != 0) {
+                cursor++;
             }
-            updateImage(pixelToAdd.getX(), pixelToAdd.getY(), colorToAdd);
+            updateImage(pixelToAdd, colorToAdd);
         }
+        // remove the pixels that have no empty neighbors left
+        evictSaturated();
     }
 
     /**
-     * Chooses a pixel from the edgeList. The edgeIterator starts moving either
-     * left or right through the edgeList, and at each step, has a certain
-     * percent chance to stop and return the current item. This percent chance
-     * is on a scale of 1-1000 and is stored in the individualPercent field.
+     * Adds a pixel to the edgeList at the cursor, before the pixel after it.
      * 
-     * @return The chosen Pixel
+     * @param pixel
+     *            The packed pixel to add
      */
-    private Pixel choosePixelFromList() {
+    @Override
+    protected void addToEdge(int pixel) {
+        edgeNode[pixel] = edgeList.add(cursor, pixel);
+    }
+
+    /**
+     * Removes a saturated pixel from the edgeList.
+     * 
+     * @param pixel
+     *            The packed pixel to remove
+     */
+    @Override
+    protected void evict(int pixel) {
+        int node = edgeNode[pixel];
+        // the cursor moves back with the pixels after it
+        if (edgeList.indexOf(node) < cursor) {
+            cursor--;
+        }
+        edgeList.removeNode(node);
+    }
+
+    /**
+     * Chooses a pixel from the edgeList. The cursor starts moving either left
+     * or right through the edgeList, and at each pixel it passes, has a certain
+     * percent chance to stop and return that pixel. When it reaches either end
+     * of the list, it turns around. This percent chance is on a scale of
+     * 1-1000 and is stored in the individualPercent field. Rather than
+     * stepping through the list, the whole walk is simulated at once by
+     * RandomImage.walk(). The cursor ends up just past the returned pixel, on
+     * the side it was moving toward.
+     * 
+     * @return The chosen pixel
+     */
+    int choosePixelFromList() {
         // randomly choose right or left
         boolean rightInd = rand.nextInt(2) == 0;
-
-        // loop until we return
-        for (;;) {
-            // if we're going right
-            if (rightInd) {
-                // if this isn't the last element in the list
-                if (edgeIterator.hasNext()) {
-                    // if we're stopping here
-                    if (rand.nextInt(1000) < individualPercent) {
-                        // return the next element
-                        return edgeIterator.next();
-                    } else {
-                        // else just go to the next element and repeat
-                        edgeIterator.next();
-                    }
-                } else {
-                    // we're at the end of the list so we have to turn around
-                    // and go back
-                    rightInd = false;
-                }
-            // we're going left
-            } else {
-                // if this isn't the first element in the list
-                if (edgeIterator.hasPrevious()) {
-                    // if we're stopping here
-                    if (rand.nextInt(1000) < individualPercent) {
-                        // return the next element
-                        return edgeIterator.previous();
-                    } else {
-                        // else just go to the next element and repeat
-                        edgeIterator.previous();
-                    }
-                } else {
-                    // we're at the beginning of the list so we have to turn
-                    // around and go back
-                    rightInd = true;
-                }
-            }
+        int size = edgeList.size();
+        int stop = walk(size, cursor, rightInd, logFailure);
+        if (stop < size) {
+            // stopped while going right, so the cursor is after the pixel
+            cursor = stop + 1;
+            return edgeList.get(stop);
         }
+        // stopped while going left, so the cursor is before the pixel
+        cursor = 2 * size - 1 - stop;
+        return edgeList.get(cursor);
+    }
+
+    /**
+     * Drops the edgeList, along with everything RandomImage.release() drops.
+     * The empty edgeList makes isFinished() return true.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        edgeList = new IndexedIntList();
+        edgeNode = null;
     }
 
     /**
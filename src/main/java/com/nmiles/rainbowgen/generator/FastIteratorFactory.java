@@ -0,0 +1,51 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ImageFactory for FastIterator images.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class FastIteratorFactory implements ImageFactory {
+    /**
+     * The CPU time FastIterator takes per pixel, in nanoseconds, as measured
+     * at 1024x1024 on a single core.
+     */
+    private static final double NANOS_PER_PIXEL = 2300;
+
+    /**
+     * The memory FastIterator's own structures take per pixel at their peak,
+     * in bytes. It is all in its edgeNode array, since its edgeList never
+     * holds more than about 1% of the pixels.
+     */
+    private static final double BYTES_PER_PIXEL = 4;
+
+    /** The parameters FastIterator takes. */
+    private static final List<ImageParameter> PARAMETERS = Collections.singletonList(
+            new ImageParameter("individualPercent", 1, 1000,
+                    "The chance, out of 1000, of stopping at each pixel of the edge"));
+
+    @Override
+    public String getType() {
+        return "fastIterator";
+    }
+
+    @Override
+    public List<ImageParameter> getParameters() {
+        return PARAMETERS;
+    }
+
+    @Override
+    public ImageCost estimateCost(int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+        return ImageCost.estimate(width, height, options, NANOS_PER_PIXEL, BYTES_PER_PIXEL);
+    }
+
+    @Override
+    public RandomImage create(int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+        return FastIterator.create(width, height, parameters.get("individualPercent"), options);
+    }
+}
@@ -1,8 +1,5 @@
 package com.nmiles.rainbowgen.generator;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * This algorithm is just a combination of StainedGlass and FastIterator. It
  * works by having a certain chance each iteration to switch between the
@@ -10,24 +7,42 @@ import java.util.List;
  * @author Nathan Miles
  *
  */
-public class GlassIterator extends RandomImage {
+public class GlassIterator extends EdgeListImage {
     /**
      * In Iterator mode, the percent chance that the iterator will stop at a
      * given pixel in the edgeList. Percentages are on a scale of 1 - 1000.
      */
     private int individualPercent;
+    /**
+     * The natural log of the chance that the iterator will pass a given pixel
+     * without stopping. See RandomImage.walk().
+     */
+    private double logFailure;
     /** In Iterator mode, the chance at each iteration to switch to
      * Glass mode. Expressed as 1 in [switchToGlass]. */
     private int switchToGlass;
     /** In Glass mode, the chance at each iteration to switch to Iterator
      * mode. Expressed as 1 in [switchToIterator]. */
     private int switchToIterator;
-    /** A list of all pixels on the edge of the image, just as in StainedGlass. */
-    private List<Pixel> edgeList;
+    /**
+     * A list of all pixels on the edge of the image, just as in StainedGlass.
+     * Its order matters here, so it is an IndexedIntList, which can insert and
+     * remove anywhere in O(log n) time.
+     */
+    IndexedIntList edgeList;
+    /**
+     * The node of the edgeList that holds every pixel. The values for pixels
+     * that aren't in it are meaningless.
+     */
+    private int[] edgeNode;
+    /** The buffer that the unpopulated neighbors are written to at each step. */
+    private IntList neighbors = new IntList(8);
+    /** The buffer that the closest colors are written to at each step. */
+    private IntList closestColors = new IntList();
     /** An indicator of whether or not the algorithm is currently in Glass mode. */
     private boolean inGlassMode = true;
     /** Keeps track of the simulated iterator's position when in Iterator mode. */
-    private int iteratorPos;
+    int iteratorPos;
     
     /**
      * Constructs a new GlassIterator
@@ -45,23 +60,122 @@ public class GlassIterator extends RandomImage {
      * @param individualPercent
      */
     public GlassIterator(int width, int height, int switchToGlass, int switchToIterator, int individualPercent){
-        super(width, height);
+        this(width, height, switchToGlass, switchToIterator, individualPercent, new ImageOptions());
+    }
+
+    /**
+     * Constructs a new GlassIterator with the given options
+     * 
+     * @param width
+     *              The width of the image
+     * @param height
+     *              The height of the image
+     * @param switchToGlass
+     *              In Iterator mode, the chance at each iteration to switch to
+     *              Glass mode. Expressed as 1 in [switchToGlass].
+     * @param switchToIterator
+     *              In Glass mode, the chance at each iteration to switch to
+     *              Iterator mode. Expressed as 1 in [switchToIterator].
+     * @param individualPercent
+     * @param options
+     *              The options to generate the image with
+     */
+    public GlassIterator(int width, int height, int switchToGlass, int switchToIterator, int individualPercent,
+            ImageOptions options){
+        super(width, height, options);
+        init(switchToGlass, switchToIterator, individualPercent);
+        plantRandom(1);
+    }
+
+    /**
+     * Constructs one tile of a TiledImage, with no starting point. The
+     * TiledImage plants it.
+     * 
+     * @param width
+     *              The width of the tile
+     * @param height
+     *              The height of the tile
+     * @param switchToGlass
+     *              In Iterator mode, the chance at each iteration to switch to
+     *              Glass mode. Expressed as 1 in [switchToGlass].
+     * @param switchToIterator
+     *              In Glass mode, the chance at each iteration to switch to
+     *              Iterator mode. Expressed as 1 in [switchToIterator].
+     * @param individualPercent
+     * @param tile
+     *              The tile
+     */
+    GlassIterator(int width, int height, int switchToGlass, int switchToIterator, int individualPercent,
+            Tile tile){
+        super(width, height, tile);
+        init(switchToGlass, switchToIterator, individualPercent);
+    }
+
+    /**
+     * Creates a new GlassIterator exactly as GlassIterator(int, int, int, int,
+     * int, ImageOptions) does, but if the options ask for more than one
+     * thread, it is generated as a TiledImage instead.
+     * 
+     * @param width
+     *              The width of the image
+     * @param height
+     *              The height of the image
+     * @param switchToGlass
+     *              In Iterator mode, the chance at each iteration to switch to
+     *              Glass mode. Expressed as 1 in [switchToGlass].
+     * @param switchToIterator
+     *              In Glass mode, the chance at each iteration to switch to
+     *              Iterator mode. Expressed as 1 in [switchToIterator].
+     * @param individualPercent
+     * @param options
+     *              The options to generate the image with
+     * @return The new image
+     */
+    public static RandomImage create(int width, int height, int switchToGlass, int switchToIterator,
+            int individualPercent, ImageOptions options){
+        if (options.getThreads() <= 1){
+            return new GlassIterator(width, height, switchToGlass, switchToIterator, individualPercent, options);
+        }
+        TiledImage image = new TiledImage(width, height, options, (tileWidth, tileHeight, tile) ->
+                new GlassIterator(tileWidth, tileHeight, switchToGlass, switchToIterator, individualPercent, tile));
+        image.plantRandom(1);
+        return image;
+    }
+
+    /**
+     * Checks the parameters and sets up the edgeList.
+     * 
+     * @param switchToGlass
+     *              In Iterator mode, the chance at each iteration to switch to
+     *              Glass mode. Expressed as 1 in [switchToGlass].
+     * @param switchToIterator
+     *              In Glass mode, the chance at each iteration to switch to
+     *              Iterator mode. Expressed as 1 in [switchToIterator].
+     * @param individualPercent
+     */
+    private void init(int switchToGlass, int switchToIterator, int individualPercent){
         // bounds checking on new params
         if (individualPercent <= 0 || individualPercent > 1000 ||
             switchToGlass <= 0 || switchToIterator <= 0){
             throw new IllegalArgumentException();
         }
         this.individualPercent = individualPercent;
+        logFailure = Math.log(1 - individualPercent / 1000.0);
         this.switchToGlass = switchToGlass;
         this.switchToIterator = switchToIterator;
-        edgeList = new ArrayList<>();
-        
-        Pixel pixelToAdd = new Pixel(rand.nextInt(width), rand.nextInt(height));
-        edgeList.add(pixelToAdd);
-
-        int colorToAdd = colorTracker.getRandomUnused();
+        edgeList = new IndexedIntList();
+        edgeNode = new int[width * height];
+    }
 
-        updateImage(pixelToAdd.getX(), pixelToAdd.getY(), colorToAdd);
+    /**
+     * Drops the edgeList, along with everything RandomImage.release() drops.
+     * The empty edgeList makes isFinished() return true.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        edgeList = new IndexedIntList();
+        edgeNode = null;
     }
 
     @Override
@@ -85,7 +199,7 @@ public class GlassIterator extends RandomImage {
     /**
      * Executes this iteration in Glass mode. This method is almost identical
      * to StainedGlass's nextPixel() method. The only changes are: now when
-     * Pixels are added to the edgeList, they are now added immediately after
+     * pixels are added to the edgeList, they are now added immediately after
      * the pixel that was chosen from the edgeList rather than at the end; and
      * after executing this iteration, the choice of whether or not to switch
      * to Iterator mode is made.
@@ -94,39 +208,31 @@ public class GlassIterator extends RandomImage {
         // pick a random index in the list
         int indexToGet = rand.nextInt(edgeList.size());
         // get it
-        Pixel toAddTo = edgeList.get(indexToGet);
-        // get its neighbors
-        List<Pixel> neighbors = toAddTo.getPossibilities(image);
-        // if no neighbors, remove it and return
-        if (neighbors.size() == 0) {
-            edgeList.remove(indexToGet);
-            return;
-        }
+        int toAddTo = edgeList.get(indexToGet);
+        // get its neighbors, of which it always has at least one
+        getPossibilities(toAddTo, neighbors);
         // get the list of possible colors
-        List<Integer> closestColors = colorTracker.getClosestColors(image.getRGB(toAddTo.getX(), toAddTo.getY()));
+        colorTracker.getClosestColors(getColor(toAddTo), closestColors);
         // as long as both lists still have members, populate pixels randomly
         while (neighbors.size() > 0 && closestColors.size() > 0) {
             // get a random pixel
-            Pixel newPixel = neighbors.remove(rand.nextInt(neighbors.size()));
+            int newPixel = neighbors.removeSwap(rand.nextInt(neighbors.size()));
             // get a random color
-            int newColor = closestColors.remove(rand.nextInt(closestColors.size()));
+            int newColor = closestColors.removeSwap(rand.nextInt(closestColors.size()));
             // add it to the image
-            updateImage(newPixel.getX(), newPixel.getY(), newColor);
+            updateImage(newPixel, newColor);
             
             /* Add it to the edgeList right after the pixel that was chosen
              * earlier. This is done so that close-together pixels are close
              * together when we switch to Iterator mode.
              */
-            edgeList.add(indexToGet + 1, newPixel);
-        }
-        // if all of the initial pixel's neighbors are now populated, remove it
-        // form the list
-        if (neighbors.size() == 0) {
-            edgeList.remove(indexToGet);
+            edgeNode[newPixel] = edgeList.add(indexToGet + 1, newPixel);
         }
+        // remove the pixels that have no empty neighbors left
+        evictSaturated();
         
         // determine whether to switch to Iterator mode
-        if (rand.nextInt(switchToIterator) == 0){
+        if (rand.nextInt(switchToIterator) == 0 && !edgeList.isEmpty()){
             inGlassMode = false;
             // set a random iterator position
             iteratorPos = rand.nextInt(edgeList.size());
@@ -143,25 +249,24 @@ public class GlassIterator extends RandomImage {
      * through the list.
      */
     private void doIterator(){
-        Pixel toAddTo = chooseByIterator();
-        List<Pixel> nextPossibilities = toAddTo.getPossibilities(image);
-        if (nextPossibilities.size() == 0) {
-            edgeList.remove(iteratorPos);
-            return;
-        }
+        int toAddTo = chooseByIterator();
+        // saturated pixels are evicted, so there is always a neighbor
+        getPossibilities(toAddTo, neighbors);
 
-        int colorToMatch = image.getRGB(toAddTo.getX(), toAddTo.getY());
+        int colorToMatch = getColor(toAddTo);
 
-        List<Integer> colorPossibilities = colorTracker.getClosestColors(colorToMatch);
+        colorTracker.getClosestColors(colorToMatch, closestColors);
 
         // keep populating pixels until the neighbor list or color list runs out
-        while (nextPossibilities.size() != 0 && colorPossibilities.size() != 0) {
-            Pixel pixelToAdd = nextPossibilities.remove(rand.nextInt(nextPossibilities.size()));
-            int colorToAdd = colorPossibilities.remove(rand.nextInt(colorPossibilities.size()));
+        while (neighbors.size() != 0 && closestColors.size() != 0) {
+            int pixelToAdd = neighbors.removeSwap(rand.nextInt(neighbors.size()));
+            int colorToAdd = closestColors.removeSwap(rand.nextInt(closestColors.size()));
             // add the pixel to the edgeList in the current place
-            edgeList.add(iteratorPos, pixelToAdd);
-            updateImage(pixelToAdd.getX(), pixelToAdd.getY(), colorToAdd);
+            addToEdge(pixelToAdd);
+            updateImage(pixelToAdd, colorToAdd);
         }
+        // remove the pixels that have no empty neighbors left
+        evictSaturated();
         
         // determine whether or not to switch modes
         if (rand.nextInt(switchToGlass) == 0){
@@ -171,51 +276,47 @@ public class GlassIterator extends RandomImage {
 
     /**
      * Does exactly what FastIterator's choosePixelFromList() method does, just
-     * with the simulated ListIterator paradigm
-     * @return The chosen Pixel
+     * with the simulated ListIterator paradigm. The iterator's position is the
+     * index of the pixel it last stopped at, so walking right starts from the
+     * gap after it, and walking left starts from the gap before it.
+     * @return The chosen pixel
      */
-    private Pixel chooseByIterator(){
+    private int chooseByIterator(){
         // randomly choose right or left
         boolean rightInd = rand.nextInt(2) == 0;
-        
-        // save the last index in the list so we don't have to keep calculating
-        int lastIndex = edgeList.size() - 1;
-        
-        // loop until we return
-        for(;;){
-            // if we're going right
-            if (rightInd){
-                iteratorPos++;
-                // if we aren't past the end
-                if (iteratorPos <= lastIndex){
-                    // if we're stopping here
-                    if (rand.nextInt(1000) < individualPercent){
-                        // make sure we aren't in the negatives before sending
-                        if (iteratorPos >= 0){
-                            return edgeList.get(iteratorPos);
-                        }
-                    }
-                // this is the last element, turn around
-                } else {
-                    rightInd = false;
-                }
-            // we're going left
-            } else {
-                iteratorPos--;
-                // if we aren't past the beginning
-                if (iteratorPos >= 0){
-                    // if we're stopping here
-                    if (rand.nextInt(1000) < individualPercent){
-                        // make sure we aren't past the end of the list
-                        if (iteratorPos <= lastIndex){
-                            return edgeList.get(iteratorPos);
-                        }
-                    }
-                // we're at the end, turn around
-                } else {
-                    rightInd = true;
-                }
-            }
+        int size = edgeList.size();
+        // evictions may have left the position past either end
+        int gap = Math.max(0, Math.min(size, rightInd ? iteratorPos + 1 : iteratorPos));
+        int stop = walk(size, gap, rightInd, logFailure);
+        iteratorPos = stop < size ? stop : 2 * size - 1 - stop;
+        return edgeList.get(iteratorPos);
+    }
+
+    /**
+     * Adds a pixel to the edgeList at the simulated iterator's position.
+     * 
+     * @param pixel
+     *            The packed pixel to add
+     */
+    @Override
+    protected void addToEdge(int pixel) {
+        edgeNode[pixel] = edgeList.add(Math.min(iteratorPos, edgeList.size()), pixel);
+    }
+
+    /**
+     * Removes a saturated pixel from the edgeList. If it was before the
+     * simulated iterator's position, the position moves back with the rest of
+     * the list, so it stays on the same pixel, just as a ListIterator would.
+     * 
+     * @param pixel
+     *            The packed pixel to remove
+     */
+    @Override
+    protected void evict(int pixel) {
+        int node = edgeNode[pixel];
+        if (edgeList.indexOf(node) < iteratorPos) {
+            iteratorPos--;
         }
+        edgeList.removeNode(node);
     }
 }
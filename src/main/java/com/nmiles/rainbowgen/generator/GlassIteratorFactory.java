@@ -0,0 +1,57 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ImageFactory for GlassIterator images.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class GlassIteratorFactory implements ImageFactory {
+    /**
+     * The CPU time GlassIterator takes per pixel, in nanoseconds, as measured
+     * at 1024x1024 on a single core.
+     */
+    private static final double NANOS_PER_PIXEL = 3000;
+
+    /**
+     * The memory GlassIterator's own structures take per pixel at their peak,
+     * in bytes. It is all in its edgeNode array, since its edgeList never
+     * holds more than about 1% of the pixels.
+     */
+    private static final double BYTES_PER_PIXEL = 4;
+
+    /** The parameters GlassIterator takes. */
+    private static final List<ImageParameter> PARAMETERS = Collections.unmodifiableList(Arrays.asList(
+            new ImageParameter("switchToGlass", 1, Integer.MAX_VALUE,
+                    "The chance of switching to glass mode at each step, as 1 in this"),
+            new ImageParameter("switchToIterator", 1, Integer.MAX_VALUE,
+                    "The chance of switching to iterator mode at each step, as 1 in this"),
+            new ImageParameter("individualPercent", 1, 1000,
+                    "The chance, out of 1000, of stopping at each pixel of the edge")));
+
+    @Override
+    public String getType() {
+        return "glassIterator";
+    }
+
+    @Override
+    public List<ImageParameter> getParameters() {
+        return PARAMETERS;
+    }
+
+    @Override
+    public ImageCost estimateCost(int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+        return ImageCost.estimate(width, height, options, NANOS_PER_PIXEL, BYTES_PER_PIXEL);
+    }
+
+    @Override
+    public RandomImage create(int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+        return GlassIterator.create(width, height, parameters.get("switchToGlass"), parameters.get("switchToIterator"),
+                parameters.get("individualPercent"), options);
+    }
+}
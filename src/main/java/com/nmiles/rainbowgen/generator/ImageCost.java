@@ -0,0 +1,102 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * What generating an image is expected to cost: the CPU time it takes, added
+ * up over every thread, and the memory it holds at its peak. ImageFactories
+ * give these so that a runner can turn down or hold back a request before
+ * allocating anything for it. They are estimates from measurements, not
+ * limits.
+ *
+ * @author Nathan Miles
+ *
+ */
+public final class ImageCost {
+    /**
+     * The memory a pixel takes in every image: 4 bytes in the raster and 1 in
+     * the neighbor masks. The record is counted separately, since only the
+     * part of it that doesn't spill to a file is on the heap.
+     */
+    private static final int BASE_BYTES_PER_PIXEL = 4 + 1;
+
+    /** The CPU time, in seconds. */
+    private final double cpuSeconds;
+
+    /** The memory, in bytes. */
+    private final long bytes;
+
+    /**
+     * Constructs a new ImageCost.
+     *
+     * @param cpuSeconds
+     *            The CPU time, in seconds, added up over every thread
+     * @param bytes
+     *            The memory held at the peak, in bytes
+     */
+    public ImageCost(double cpuSeconds, long bytes) {
+        this.cpuSeconds = cpuSeconds;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Estimates the cost of an image from what its algorithm costs per pixel,
+     * adding what every image costs: its raster, its record, and its
+     * ColorTrackers, which depend on the options. The CPU time rates are
+     * measurements from one machine, so the CPU time is scaled by the
+     * options' cpuScale for this one.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param options
+     *            The options the image will be generated with
+     * @param nanosPerPixel
+     *            The CPU time the algorithm takes per pixel, in nanoseconds,
+     *            on the machine the estimates were measured on
+     * @param bytesPerPixel
+     *            The memory the algorithm's own structures take per pixel
+     * @return The estimate
+     */
+    public static ImageCost estimate(int width, int height, ImageOptions options, double nanosPerPixel,
+            double bytesPerPixel) {
+        long pixels = (long) width * height;
+        long trackerBytes;
+        double fillNanos;
+        if (options.getThreads() > 1) {
+            // a TiledImage's colors, plus a share for every tile, each as big as the whole cube
+            int trackers = options.getThreads() + 1;
+            trackerBytes = trackers * ColorTracker.estimateBytes((int) pixels, TrackerType.BITSET);
+            fillNanos = trackers * ColorTracker.estimateFillNanos((int) pixels, TrackerType.BITSET);
+        } else {
+            trackerBytes = ColorTracker.estimateBytes((int) pixels, options.getTrackerType());
+            fillNanos = ColorTracker.estimateFillNanos((int) pixels, options.getTrackerType());
+        }
+        double nanos = (pixels * nanosPerPixel + fillNanos) * options.getCpuScale();
+        long recordBytes = Math.min(pixels * ImageRecord.BINARY_PIXEL_BYTES, options.getRecordSpillBytes());
+        long bytes = (long) (pixels * (BASE_BYTES_PER_PIXEL + bytesPerPixel)) + recordBytes + trackerBytes;
+        return new ImageCost(nanos / 1e9, bytes);
+    }
+
+    /**
+     * Gets the CPU time, in seconds, added up over every thread.
+     *
+     * @return The CPU time
+     */
+    public double getCpuSeconds() {
+        return cpuSeconds;
+    }
+
+    /**
+     * Gets the memory held at the peak, in bytes.
+     *
+     * @return The memory
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f CPU-seconds, %.1f MB", cpuSeconds, bytes / 1e6);
+    }
+}
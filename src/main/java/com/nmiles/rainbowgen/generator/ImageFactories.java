@@ -0,0 +1,87 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * The registry of every ImageFactory on the class path, found with
+ * java.util.ServiceLoader the first time this class is used.
+ *
+ * @author Nathan Miles
+ *
+ */
+public final class ImageFactories {
+    /** Every factory, by type, in the order they were found. */
+    private static final Map<String, ImageFactory> FACTORIES = load();
+
+    /**
+     * This class only has static methods.
+     */
+    private ImageFactories() {
+    }
+
+    /**
+     * Finds every factory on the class path.
+     *
+     * @return Every factory, by type
+     */
+    private static Map<String, ImageFactory> load() {
+        Map<String, ImageFactory> factories = new LinkedHashMap<>();
+        for (ImageFactory factory : ServiceLoader.load(ImageFactory.class)) {
+            if (factories.put(factory.getType(), factory) != null) {
+                throw new IllegalStateException("Two factories for " + factory.getType());
+            }
+        }
+        return Collections.unmodifiableMap(factories);
+    }
+
+    /**
+     * Gets the factory for the given type.
+     *
+     * @param type
+     *            The type, as used in requests
+     * @return The factory, or null if there is none
+     */
+    public static ImageFactory get(String type) {
+        return FACTORIES.get(type);
+    }
+
+    /**
+     * Gets every factory, in the order they were found.
+     *
+     * @return Every factory
+     */
+    public static Collection<ImageFactory> getAll() {
+        return FACTORIES.values();
+    }
+
+    /**
+     * Checks the values of a factory's parameters, and collects them by name.
+     *
+     * @param factory
+     *            The factory
+     * @param values
+     *            The value of every parameter, by name, as Longs or Integers,
+     *            such as a parsed JSON request. Values that aren't parameters
+     *            of the factory are ignored.
+     * @return The value of every parameter, by name
+     * @throws IllegalArgumentException
+     *             If a parameter is missing, isn't a whole number, or is out
+     *             of range
+     */
+    public static Map<String, Integer> checkParameters(ImageFactory factory, Map<?, ?> values) {
+        Map<String, Integer> checked = new HashMap<>();
+        for (ImageParameter parameter : factory.getParameters()) {
+            Object value = values.get(parameter.getName());
+            if (!(value instanceof Long || value instanceof Integer)) {
+                throw new IllegalArgumentException(parameter.getName() + " must be a whole number");
+            }
+            checked.put(parameter.getName(), parameter.check(((Number) value).longValue()));
+        }
+        return checked;
+    }
+}
@@ -0,0 +1,66 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the images of one algorithm for a runner that knows nothing about
+ * it. A factory declares the algorithm's parameters, so the runner can read
+ * and check them, and estimates what an image will cost, so the runner can
+ * decide whether and when to generate it before anything is allocated.
+ *
+ * Factories are found with java.util.ServiceLoader (see ImageFactories), so
+ * adding an algorithm only takes a factory with a public no argument
+ * constructor and a line in
+ * META-INF/services/com.nmiles.rainbowgen.generator.ImageFactory.
+ *
+ * @author Nathan Miles
+ *
+ */
+public interface ImageFactory {
+    /**
+     * Gets the name that requests use for the algorithm. It must be unique.
+     *
+     * @return The type
+     */
+    String getType();
+
+    /**
+     * Gets the parameters the algorithm takes, besides the width, height, and
+     * options that every image takes.
+     *
+     * @return The parameters
+     */
+    List<ImageParameter> getParameters();
+
+    /**
+     * Estimates what generating an image will cost. It must not allocate
+     * anything in proportion to the image.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param parameters
+     *            The value of every parameter, by name, already checked
+     * @param options
+     *            The options the image will be generated with
+     * @return The estimate
+     */
+    ImageCost estimateCost(int width, int height, Map<String, Integer> parameters, ImageOptions options);
+
+    /**
+     * Creates an image, on as many threads as the options ask for.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param parameters
+     *            The value of every parameter, by name, already checked
+     * @param options
+     *            The options to generate the image with
+     * @return The image
+     */
+    RandomImage create(int width, int height, Map<String, Integer> parameters, ImageOptions options);
+}
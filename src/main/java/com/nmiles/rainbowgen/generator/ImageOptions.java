@@ -0,0 +1,251 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Settings that apply to every kind of RandomImage, as opposed to the
+ * parameters that are specific to one algorithm. A new ImageOptions holds the
+ * defaults, so callers only need to set the options they care about before
+ * passing it to an image's constructor.
+ * 
+ * @author Nathan Miles
+ *
+ */
+public class ImageOptions {
+    /** How the image's ColorTracker stores its colors. */
+    private TrackerType trackerType = TrackerType.ARRAY;
+
+    /** How the image's ColorTracker measures how close colors are. */
+    private DistanceMode distanceMode = DistanceMode.CUBE;
+
+    /**
+     * The seed that every random choice the image makes comes from. It
+     * defaults to a different random value for every ImageOptions.
+     */
+    private long seed = ThreadLocalRandom.current().nextLong();
+
+    /** The number of threads to generate the image with. */
+    private int threads = 1;
+
+    /**
+     * Whether a StainedGlass on more than one thread grows its starting
+     * points on separate threads, rather than being split into tiles.
+     */
+    private boolean concurrentSeeds = false;
+
+    /**
+     * The token that stops the image before it is finished. It defaults to a
+     * new token for every ImageOptions, which is never cancelled unless
+     * someone calls its cancel().
+     */
+    private CancellationToken cancellationToken = new CancellationToken();
+
+    /**
+     * The number of bytes of pixels the image's record keeps on the heap
+     * before it spills the rest to a temp file.
+     */
+    private int recordSpillBytes = ImageRecord.DEFAULT_SPILL_BYTES;
+
+    /**
+     * How many times slower than the machine the cost estimates were
+     * measured on this one generates images.
+     */
+    private double cpuScale = 1;
+
+    /**
+     * Gets how the image's ColorTracker stores its colors.
+     * 
+     * @return The tracker type
+     */
+    public TrackerType getTrackerType() {
+        return trackerType;
+    }
+
+    /**
+     * Sets how the image's ColorTracker stores its colors. The default is
+     * TrackerType.ARRAY.
+     * 
+     * @param trackerType
+     *            The tracker type
+     */
+    public void setTrackerType(TrackerType trackerType) {
+        if (trackerType == null) {
+            throw new IllegalArgumentException("trackerType must not be null");
+        }
+        this.trackerType = trackerType;
+    }
+
+    /**
+     * Gets how the image's ColorTracker measures how close colors are.
+     * 
+     * @return The distance mode
+     */
+    public DistanceMode getDistanceMode() {
+        return distanceMode;
+    }
+
+    /**
+     * Sets how the image's ColorTracker measures how close colors are. The
+     * default is DistanceMode.CUBE.
+     * 
+     * @param distanceMode
+     *            The distance mode
+     */
+    public void setDistanceMode(DistanceMode distanceMode) {
+        if (distanceMode == null) {
+            throw new IllegalArgumentException("distanceMode must not be null");
+        }
+        this.distanceMode = distanceMode;
+    }
+
+    /**
+     * Gets the seed that every random choice the image makes comes from. Two
+     * images of the same type, with the same parameters and options,
+     * including this seed, are always identical.
+     * 
+     * @return The seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed that every random choice the image makes comes from. The
+     * default is a random seed, so that every image is different unless a
+     * seed is given.
+     * 
+     * @param seed
+     *            The seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Gets the number of threads to generate the image with.
+     * 
+     * @return The number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads to generate the image with. The default is
+     * 1. With more than 1, the algorithms' create() methods generate the
+     * image as a TiledImage, which is split into that many tiles. Where the
+     * tiles meet depends on how fast each thread runs, so unlike a single
+     * threaded image, a tiled one isn't exactly reproducible from its seed.
+     * 
+     * @param threads
+     *            The number of threads, at least 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Returns true if a StainedGlass on more than one thread grows its
+     * starting points on separate threads, rather than being split into
+     * tiles.
+     * 
+     * @return true if the starting points grow concurrently
+     */
+    public boolean isConcurrentSeeds() {
+        return concurrentSeeds;
+    }
+
+    /**
+     * Sets whether a StainedGlass on more than one thread grows its starting
+     * points on separate threads, as a ConcurrentStainedGlass, rather than
+     * being split into tiles. The default is false. The other algorithms
+     * ignore it. As with tiles, the result depends on how fast each thread
+     * runs, so it can't be reproduced from the seed.
+     * 
+     * @param concurrentSeeds
+     *            true to grow the starting points concurrently
+     */
+    public void setConcurrentSeeds(boolean concurrentSeeds) {
+        this.concurrentSeeds = concurrentSeeds;
+    }
+
+    /**
+     * Gets the token that stops the image before it is finished.
+     * 
+     * @return The cancellation token
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Sets the token that stops the image before it is finished. The default
+     * is a token without a deadline. A token stays cancelled once it is, so
+     * every image should be given its own.
+     * 
+     * @param cancellationToken
+     *            The cancellation token
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        if (cancellationToken == null) {
+            throw new IllegalArgumentException("cancellationToken must not be null");
+        }
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Gets the number of bytes of pixels the image's record keeps on the heap
+     * before it spills the rest to a temp file.
+     * 
+     * @return The number of bytes
+     */
+    public int getRecordSpillBytes() {
+        return recordSpillBytes;
+    }
+
+    /**
+     * Sets the number of bytes of pixels the image's record keeps on the heap
+     * before it spills the rest to a temp file. Each pixel takes
+     * ImageRecord.BINARY_PIXEL_BYTES. The default is
+     * ImageRecord.DEFAULT_SPILL_BYTES, and 0 spills every pixel.
+     * 
+     * @param recordSpillBytes
+     *            The number of bytes
+     */
+    public void setRecordSpillBytes(int recordSpillBytes) {
+        if (recordSpillBytes < 0) {
+            throw new IllegalArgumentException("recordSpillBytes must not be negative");
+        }
+        this.recordSpillBytes = recordSpillBytes;
+    }
+
+    /**
+     * Gets how many times slower than the machine the cost estimates were
+     * measured on this one generates images.
+     * 
+     * @return The factor
+     */
+    public double getCpuScale() {
+        return cpuScale;
+    }
+
+    /**
+     * Sets how many times slower than the machine the cost estimates were
+     * measured on this one generates images. The CPU time of every ImageCost
+     * estimate is multiplied by it, since the rates behind them are only
+     * measurements from a single machine. The default is 1, and a faster
+     * machine should use less than 1.
+     * 
+     * @param cpuScale
+     *            The factor
+     */
+    public void setCpuScale(double cpuScale) {
+        if (!(cpuScale > 0) || Double.isInfinite(cpuScale)) {
+            throw new IllegalArgumentException("cpuScale must be positive");
+        }
+        this.cpuScale = cpuScale;
+    }
+}
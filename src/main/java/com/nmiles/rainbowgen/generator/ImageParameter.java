@@ -0,0 +1,99 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * One of the parameters an algorithm takes, as declared by its ImageFactory.
+ * Every parameter is a whole number within a range, which is all any
+ * algorithm has needed so far, so a runner can read and check parameters for
+ * any algorithm without knowing anything else about it.
+ *
+ * @author Nathan Miles
+ *
+ */
+public final class ImageParameter {
+    /** The name of the parameter, as it appears in requests. */
+    private final String name;
+
+    /** The smallest value the parameter may have. */
+    private final int min;
+
+    /** The largest value the parameter may have. */
+    private final int max;
+
+    /** A short description of the parameter, for people. */
+    private final String description;
+
+    /**
+     * Constructs a new ImageParameter.
+     *
+     * @param name
+     *            The name of the parameter, as it appears in requests
+     * @param min
+     *            The smallest value the parameter may have
+     * @param max
+     *            The largest value the parameter may have
+     * @param description
+     *            A short description of the parameter, for people
+     */
+    public ImageParameter(String name, int min, int max, String description) {
+        if (min > max) {
+            throw new IllegalArgumentException("min must not be greater than max");
+        }
+        this.name = name;
+        this.min = min;
+        this.max = max;
+        this.description = description;
+    }
+
+    /**
+     * Gets the name of the parameter, as it appears in requests.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the smallest value the parameter may have.
+     *
+     * @return The minimum
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * Gets the largest value the parameter may have.
+     *
+     * @return The maximum
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Gets a short description of the parameter, for people.
+     *
+     * @return The description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Checks that a value is in the parameter's range. The value is a long so
+     * that values too big for an int are caught too.
+     *
+     * @param value
+     *            The value
+     * @return The value, as an int
+     * @throws IllegalArgumentException
+     *             If the value is out of range
+     */
+    public int check(long value) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+        }
+        return (int) value;
+    }
+}
@@ -1,50 +1,146 @@
 package com.nmiles.rainbowgen.generator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * A record of image generation for the RainbowGen program. It contains all
  * necessary information about a given image to recreate it, namely the x and y
  * coordinates, color, and order the pixels were populated in. The record is
- * stored in chunks. The chunks are represented as Strings. Each pixel within
- * each chunk is represented by hex values in the form XXXYYYCCCCCC where the Xs
- * are the hex equivalent of the x coordinate, the Ys of the y, and the Cs are
- * the hex value of the color. The order of the pixels is the order in which
+ * stored in chunks. Each pixel within each chunk is stored packed in
+ * BINARY_PIXEL_BYTES bytes: the x coordinate in the top 12 bits of the first 3
+ * bytes and the y coordinate in the bottom 12, then the red, green, and blue
+ * of the color, one byte each. The order of the pixels is the order in which
  * they were added to the ImageRecord with lower-index chunks holding earlier
  * pixels.
  * 
+ * The chunks are only encoded for sending when they are asked for. getChunk()
+ * gives a chunk as a String of hex values in the form XXXYYYCCCCCC where the
+ * Xs are the hex equivalent of the x coordinate, the Ys of the y, and the Cs
+ * are the hex value of the color, and getBinaryChunk() gives it as it is
+ * stored. Runs of pixels can also be had regardless of where the chunks start
+ * and end, with getBinaryPixels() and getHexPixels(), so a sender can pick
+ * its own chunk sizes.
+ * 
+ * The first few megabytes of pixels are kept on the heap, and the rest are
+ * spilled to a temp file that is mapped into memory, so a big image costs no
+ * more heap than a small one. close() deletes the file once the record is no
+ * longer needed. Chunks may be read on one thread while pixels are added on
+ * another.
+ * 
+ * A record's pixels can be saved to a file with save(), as they are stored,
+ * and a record can be opened on such a file with open(), which maps it into
+ * memory rather than reading it.
+ * 
  * @author Nathan Miles
  *
  */
 public class ImageRecord {
     /**
-     * A mask used to strip the alpha channel from a color as defined by the
-     * Color class in the java.awt package, which has alpha in the top 4 bits.
+     * The number of bytes of pixels a record keeps on the heap before it
+     * spills to a temp file, unless it is told otherwise.
      */
-    private static final int ALPHA_MASK = 0x00FFFFFF;
+    public static final int DEFAULT_SPILL_BYTES = 16 << 20;
     /** The number of pixels in each record chunk. */
     private static final int CHUNK_SIZE = 2000;
+    /** The number of bytes each pixel takes in a binary chunk. */
+    public static final int BINARY_PIXEL_BYTES = 6;
     /** The number of bytes in each chunk. */
-    private static final int BYTES_PER_CHUNK = 12 * CHUNK_SIZE;
-    /** Used to build each chunk to avoid a bunch of String concatenation. */
-    private StringBuilder sb;
-    /** The list of all chunks that have been generated thus far. */
-    private List<String> chunks;
+    private static final int BYTES_PER_CHUNK = BINARY_PIXEL_BYTES * CHUNK_SIZE;
+    /** The hex digits, by value. */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    /** The number of pixels this record will probably hold. */
+    private final int numPixels;
+    /** The number of bytes to keep on the heap before spilling. */
+    private final int spillBytes;
+    /** The chunk being built, or null once the record is final. */
+    private byte[] pending;
+    /** The number of bytes in the chunk being built. */
+    private int pendingSize;
+    /**
+     * The bytes of every chunk that has been finished thus far, or null
+     * before the first one.
+     */
+    private PixelStore store;
+    /**
+     * Where each chunk starts in the store, in bytes, followed by where the
+     * next chunk will start.
+     */
+    private long[] chunkStarts;
+    /** The number of chunks that have been finished thus far. */
+    private int numChunks;
+    /** Whether the record has been closed. */
+    private boolean closed;
 
     /**
-     * Constructs a new, initially empty ImageRecord.
+     * Constructs a new, initially empty ImageRecord, which keeps
+     * DEFAULT_SPILL_BYTES of pixels on the heap.
      * 
      * @param numPixels
      *            The number of pixels that this ImageRecord will eventually
      *            contain. This number may technically be any positive number,
      *            but passing the real value is recommended for efficiency. If
-     *            incorrect, the backing ArrayList may have to be resized, or
-     *            too much memory may be used.
+     *            incorrect, the backing arrays may have to be resized, or too
+     *            much memory may be used.
      */
     public ImageRecord(int numPixels) {
-        chunks = new ArrayList<>(numPixels / CHUNK_SIZE + 1);
-        sb = new StringBuilder(BYTES_PER_CHUNK);
+        this(numPixels, DEFAULT_SPILL_BYTES);
+    }
+
+    /**
+     * Constructs a new, initially empty ImageRecord.
+     * 
+     * @param numPixels
+     *            The number of pixels that this ImageRecord will eventually
+     *            contain, as in ImageRecord(int).
+     * @param spillBytes
+     *            The number of bytes of pixels to keep on the heap. The rest
+     *            are spilled to a temp file.
+     */
+    public ImageRecord(int numPixels, int spillBytes) {
+        if (spillBytes < 0) {
+            throw new IllegalArgumentException("spillBytes must not be negative");
+        }
+        this.numPixels = numPixels;
+        this.spillBytes = spillBytes;
+        pending = new byte[BYTES_PER_CHUNK];
+        chunkStarts = new long[numPixels / CHUNK_SIZE + 2];
+    }
+
+    /**
+     * Opens a record on a file its pixels were saved to with save(). The file
+     * is mapped into memory rather than read onto the heap. The record is
+     * final, and its chunks are CHUNK_SIZE pixels each, however they were
+     * chunked when it was saved. The file is left as it is when the record
+     * is closed.
+     * 
+     * @param file
+     *            The file
+     * @return The record
+     * @throws IOException
+     *             If the file can't be opened or mapped, or doesn't hold a
+     *             whole number of pixels
+     */
+    public static ImageRecord open(Path file) throws IOException {
+        PixelStore store = new PixelStore(file);
+        if (store.getSize() % BINARY_PIXEL_BYTES != 0) {
+            store.close();
+            throw new IOException(file + " doesn't hold a whole number of pixels");
+        }
+        int numPixels = (int) (store.getSize() / BINARY_PIXEL_BYTES);
+        ImageRecord record = new ImageRecord(numPixels, 0);
+        record.store = store;
+        record.pending = null;
+        for (long start = BYTES_PER_CHUNK; start < store.getSize(); start += BYTES_PER_CHUNK) {
+            record.chunkStarts[++record.numChunks] = start;
+        }
+        if (numPixels != 0) {
+            record.chunkStarts[++record.numChunks] = store.getSize();
+        }
+        return record;
     }
 
     /**
@@ -55,14 +151,48 @@ public class ImageRecord {
      * @param y
      *            The y coordinate of the pixel to add.
      * @param color
-     *            The color of the pixel to add.
+     *            The color of the pixel to add. Its alpha is ignored.
      */
     public void addPixel(int x, int y, int color) {
-        sb.append(String.format("%03X%03X", x, y));
-        sb.append(String.format("%06X", color & ALPHA_MASK));
-        if (sb.length() == BYTES_PER_CHUNK) {
-            chunks.add(sb.toString());
-            sb = new StringBuilder(BYTES_PER_CHUNK);
+        int xy = (x << 12) | y;
+        byte[] chunk = pending;
+        int i = pendingSize;
+        chunk[i] = (byte) (xy >>> 16);
+        chunk[i + 1] = (byte) (xy >>> 8);
+        chunk[i + 2] = (byte) xy;
+        chunk[i + 3] = (byte) (color >>> 16);
+        chunk[i + 4] = (byte) (color >>> 8);
+        chunk[i + 5] = (byte) color;
+        pendingSize = i + BINARY_PIXEL_BYTES;
+        if (pendingSize == BYTES_PER_CHUNK) {
+            addChunk(chunk, pendingSize);
+            pendingSize = 0;
+        }
+    }
+
+    /**
+     * Adds a finished chunk to the end of the record. A ParallelImage
+     * overrides this in the records of its workers, to pass their chunks on
+     * to its own record.
+     * 
+     * @param chunk
+     *            The array holding the chunk in its binary form, which may be
+     *            reused once this returns
+     * @param length
+     *            The number of bytes in the chunk, from the start of the array
+     */
+    void addChunk(byte[] chunk, int length) {
+        synchronized (this) {
+            checkOpen();
+            if (store == null) {
+                store = new PixelStore((long) numPixels * BINARY_PIXEL_BYTES, spillBytes);
+            }
+            store.append(chunk, length);
+            if (numChunks + 2 > chunkStarts.length) {
+                chunkStarts = Arrays.copyOf(chunkStarts, chunkStarts.length * 2);
+            }
+            numChunks++;
+            chunkStarts[numChunks] = store.getSize();
         }
     }
 
@@ -71,10 +201,8 @@ public class ImageRecord {
      * of image generation. If it is not, the final chunk may not be saved.
      */
     public void makeFinal() {
-        if (sb.length() != 0) {
-            chunks.add(sb.toString());
-            sb = null;
-        }
+        flush();
+        pending = null;
     }
 
     /**
@@ -82,18 +210,163 @@ public class ImageRecord {
      * 
      * @return The number of chunks
      */
-    public int getNumChunks() {
-        return chunks.size();
+    public synchronized int getNumChunks() {
+        return numChunks;
     }
 
     /**
-     * Gets the chunk at the given index in the backing List.
+     * Gets the chunk at the given index, encoded as hex values as described in
+     * the class documentation.
      * 
      * @param i
      *            The index of the chunk to get.
      * @return The chunk
      */
     public String getChunk(int i) {
-        return chunks.get(i);
+        return toHex(getBinaryChunk(i));
+    }
+
+    /**
+     * Gets the chunk at the given index in its binary form, as described in
+     * the class documentation. Each pair of hex digits of the chunk's hex form
+     * is one byte of it, since the 6 hex digits of the coordinates hold the
+     * same 24 bits as 3 bytes.
+     * 
+     * @param i
+     *            The index of the chunk to get.
+     * @return The chunk, in a new array
+     * @throws IndexOutOfBoundsException
+     *             If there is no such chunk
+     * @throws IllegalStateException
+     *             If the record has been closed
+     */
+    public synchronized byte[] getBinaryChunk(int i) {
+        checkOpen();
+        if (i < 0 || i >= numChunks) {
+            throw new IndexOutOfBoundsException("Chunk " + i + " of " + numChunks);
+        }
+        byte[] binary = new byte[(int) (chunkStarts[i + 1] - chunkStarts[i])];
+        store.read(chunkStarts[i], binary, binary.length);
+        return binary;
+    }
+
+    /**
+     * Gets the number of pixels in the chunks that have been finished thus
+     * far, which can be read with getBinaryPixels() and getHexPixels().
+     * 
+     * @return The number of pixels
+     */
+    public synchronized int getNumPixels() {
+        return (int) (chunkStarts[numChunks] / BINARY_PIXEL_BYTES);
+    }
+
+    /**
+     * Gets a run of pixels in their binary form, wherever the chunks they are
+     * in start and end, so that they can be sent in pieces of any size.
+     * 
+     * @param first
+     *            The index of the first pixel, in the order they were added
+     * @param count
+     *            The number of pixels
+     * @return The pixels, in a new array
+     * @throws IndexOutOfBoundsException
+     *             If the finished chunks don't hold those pixels
+     * @throws IllegalStateException
+     *             If the record has been closed
+     */
+    public synchronized byte[] getBinaryPixels(int first, int count) {
+        checkOpen();
+        if (first < 0 || count < 0 || first + count > getNumPixels()) {
+            throw new IndexOutOfBoundsException("Pixels " + first + " to " + (first + count) + " of "
+                    + getNumPixels());
+        }
+        byte[] binary = new byte[count * BINARY_PIXEL_BYTES];
+        if (count != 0) {
+            store.read((long) first * BINARY_PIXEL_BYTES, binary, binary.length);
+        }
+        return binary;
+    }
+
+    /**
+     * Gets a run of pixels encoded as hex values, as getBinaryPixels() does.
+     * 
+     * @param first
+     *            The index of the first pixel, in the order they were added
+     * @param count
+     *            The number of pixels
+     * @return The pixels
+     */
+    public String getHexPixels(int first, int count) {
+        return toHex(getBinaryPixels(first, count));
+    }
+
+    /**
+     * Saves the pixels of every chunk that has been finished to a file, in
+     * their binary form, one after the other, so that the record can be
+     * opened again with open().
+     * 
+     * @param file
+     *            The file, which is replaced if it exists
+     * @throws IOException
+     *             If the file can't be written
+     * @throws IllegalStateException
+     *             If the record has been closed
+     */
+    public void save(Path file) throws IOException {
+        int numPixels = getNumPixels();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int first = 0; first < numPixels; first += CHUNK_SIZE) {
+                out.write(getBinaryPixels(first, Math.min(CHUNK_SIZE, numPixels - first)));
+            }
+        }
+    }
+
+    /**
+     * Finishes the chunk being built early, so that its pixels can be read
+     * right away. It does nothing if no pixels have been added since the last
+     * chunk. Pixels can still be added afterwards.
+     */
+    public void flush() {
+        if (pendingSize != 0) {
+            addChunk(pending, pendingSize);
+            pendingSize = 0;
+        }
+    }
+
+    /**
+     * Drops every chunk, and deletes the temp file they spilled to, if they
+     * did. No chunks can be read once the record is closed.
+     */
+    public synchronized void close() {
+        closed = true;
+        pending = null;
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Encodes pixels in their binary form as hex values.
+     * 
+     * @param binary
+     *            The pixels
+     * @return The hex values, two for each byte
+     */
+    private static String toHex(byte[] binary) {
+        char[] hex = new char[2 * binary.length];
+        for (int j = 0; j < binary.length; j++) {
+            hex[2 * j] = HEX_DIGITS[(binary[j] >>> 4) & 0xF];
+            hex[2 * j + 1] = HEX_DIGITS[binary[j] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Throws an IllegalStateException if the record has been closed.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The record has been closed");
+        }
     }
 }
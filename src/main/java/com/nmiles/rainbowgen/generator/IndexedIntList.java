@@ -0,0 +1,353 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+
+/**
+ * A list of primitive ints that can insert, remove, and get elements at any
+ * index in O(log n) time. It exists for the edge lists whose order matters,
+ * which would otherwise have to shift the tail of an array on every insert and
+ * remove.
+ *
+ * It is a treap keyed by position: a binary tree in which every node counts
+ * the nodes under it, so the node at an index is found by walking down and
+ * comparing against the size of the left subtree. Each node also gets a random
+ * priority, and the tree is kept in heap order by priority, which keeps it
+ * balanced on average no matter where elements are inserted. The nodes are
+ * records of NODE_INTS ints in a single array, so that everything about a
+ * node is in the same cache line, and the records of removed nodes are
+ * reused.
+ *
+ * add() returns the node that holds the new element. Nodes don't change while
+ * the element is in the list, so they can be used to find an element's
+ * current index with indexOf(), or to remove it with removeNode().
+ *
+ * @author Nathan Miles
+ *
+ */
+final class IndexedIntList {
+    /** The capacity of a list constructed without one. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** The node that stands for "no node". Its size is always 0. */
+    private static final int NIL = 0;
+
+    /** The number of ints in each node's record. Only 6 are used. */
+    private static final int NODE_INTS = 8;
+
+    /** The base 2 log of NODE_INTS. A node's record starts at node << this. */
+    private static final int NODE_SHIFT = 3;
+
+    /** Where the element held by a node is in its record. */
+    private static final int VALUE = 0;
+
+    /** Where the left child of a node is in its record. */
+    private static final int LEFT = 1;
+
+    /**
+     * Where the right child of a node is in its record. For free nodes, this
+     * holds the next free node instead.
+     */
+    private static final int RIGHT = 2;
+
+    /** Where the parent of a node, or NIL for the root, is in its record. */
+    private static final int PARENT = 3;
+
+    /**
+     * Where the number of nodes in the subtree under a node, itself included,
+     * is in its record.
+     */
+    private static final int SIZE = 4;
+
+    /**
+     * Where the random priority of a node is in its record. Parents never
+     * have lower priorities than their children.
+     */
+    private static final int PRIORITY = 5;
+
+    /** The records of every node. */
+    private int[] nodes;
+
+    /** The root of the tree, or NIL if the list is empty. */
+    private int root = NIL;
+
+    /** The first free node, or NIL if every node is in use. */
+    private int free = NIL;
+
+    /** The number of nodes that have ever been used, including NIL. */
+    private int used = 1;
+
+    /**
+     * The state of the xorshift generator that the priorities come from. The
+     * priorities only affect the shape of the tree, never its order, so they
+     * don't need a good generator or a seed.
+     */
+    private int priorityState = 0x2545F491;
+
+    /**
+     * Constructs a new, empty IndexedIntList with a small default capacity.
+     */
+    IndexedIntList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new, empty IndexedIntList with the given initial capacity.
+     *
+     * @param capacity
+     *            The number of elements the list can hold before it has to
+     *            grow
+     */
+    IndexedIntList(int capacity) {
+        nodes = new int[Math.max(2, capacity + 1) << NODE_SHIFT];
+    }
+
+    /**
+     * Gets the number of elements in the list.
+     *
+     * @return The size
+     */
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns true if the list has no elements, false if not.
+     *
+     * @return true if the list is empty
+     */
+    boolean isEmpty() {
+        return root == NIL;
+    }
+
+    /**
+     * Gets the element at the given index.
+     *
+     * @param index
+     *            The index of the element, from 0 to size() - 1
+     * @return The element
+     */
+    int get(int index) {
+        return nodes[(nodeAt(index) << NODE_SHIFT) + VALUE];
+    }
+
+    /**
+     * Inserts an element at the given index, shifting the elements after it
+     * to the right.
+     *
+     * @param index
+     *            The index to insert at, from 0 to size()
+     * @param value
+     *            The element to insert
+     * @return The node holding the element
+     */
+    int add(int index, int value) {
+        int node = allocate();
+        int record = node << NODE_SHIFT;
+        nodes[record + VALUE] = value;
+        nodes[record + LEFT] = NIL;
+        nodes[record + RIGHT] = NIL;
+        nodes[record + SIZE] = 1;
+        priorityState ^= priorityState << 13;
+        priorityState ^= priorityState >>> 17;
+        priorityState ^= priorityState << 5;
+        nodes[record + PRIORITY] = priorityState;
+        if (root == NIL) {
+            nodes[record + PARENT] = NIL;
+            root = node;
+            return node;
+        }
+        // walk down to where the node goes, counting it in every subtree
+        int current = root;
+        for (;;) {
+            int at = current << NODE_SHIFT;
+            nodes[at + SIZE]++;
+            int leftSize = size(nodes[at + LEFT]);
+            int side;
+            if (index <= leftSize) {
+                side = LEFT;
+            } else {
+                index -= leftSize + 1;
+                side = RIGHT;
+            }
+            if (nodes[at + side] == NIL) {
+                nodes[at + side] = node;
+                break;
+            }
+            current = nodes[at + side];
+        }
+        nodes[record + PARENT] = current;
+        // restore heap order
+        for (int above = current; above != NIL
+                && priorityState > nodes[(above << NODE_SHIFT) + PRIORITY]; above = parent(node)) {
+            rotateUp(node);
+        }
+        return node;
+    }
+
+    /**
+     * Removes the element at the given index, shifting the elements after it
+     * to the left.
+     *
+     * @param index
+     *            The index of the element, from 0 to size() - 1
+     * @return The removed element
+     */
+    int remove(int index) {
+        int node = nodeAt(index);
+        int value = nodes[(node << NODE_SHIFT) + VALUE];
+        removeNode(node);
+        return value;
+    }
+
+    /**
+     * Removes the element held by the given node, shifting the elements after
+     * it to the left.
+     *
+     * @param node
+     *            The node, as returned by add(). It must still be in the list.
+     */
+    void removeNode(int node) {
+        int record = node << NODE_SHIFT;
+        // rotate the node down until it is a leaf
+        for (;;) {
+            int leftChild = nodes[record + LEFT];
+            int rightChild = nodes[record + RIGHT];
+            if (leftChild == NIL && rightChild == NIL) {
+                break;
+            }
+            if (leftChild == NIL || (rightChild != NIL && nodes[(rightChild << NODE_SHIFT)
+                    + PRIORITY] > nodes[(leftChild << NODE_SHIFT) + PRIORITY])) {
+                rotateUp(rightChild);
+            } else {
+                rotateUp(leftChild);
+            }
+        }
+        int above = nodes[record + PARENT];
+        if (above == NIL) {
+            root = NIL;
+        } else if (nodes[(above << NODE_SHIFT) + LEFT] == node) {
+            nodes[(above << NODE_SHIFT) + LEFT] = NIL;
+        } else {
+            nodes[(above << NODE_SHIFT) + RIGHT] = NIL;
+        }
+        for (; above != NIL; above = parent(above)) {
+            nodes[(above << NODE_SHIFT) + SIZE]--;
+        }
+        nodes[record + RIGHT] = free;
+        free = node;
+    }
+
+    /**
+     * Gets the current index of the element held by the given node.
+     *
+     * @param node
+     *            The node, as returned by add(). It must still be in the list.
+     * @return The index
+     */
+    int indexOf(int node) {
+        int index = size(nodes[(node << NODE_SHIFT) + LEFT]);
+        for (int above = parent(node); above != NIL; node = above, above = parent(node)) {
+            int at = above << NODE_SHIFT;
+            if (nodes[at + RIGHT] == node) {
+                index += size(nodes[at + LEFT]) + 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gets the number of nodes in the subtree under the given node.
+     *
+     * @param node
+     *            The node, or NIL
+     * @return The size of the subtree, which is 0 for NIL
+     */
+    private int size(int node) {
+        return nodes[(node << NODE_SHIFT) + SIZE];
+    }
+
+    /**
+     * Gets the parent of the given node.
+     *
+     * @param node
+     *            The node
+     * @return The parent, or NIL for the root
+     */
+    private int parent(int node) {
+        return nodes[(node << NODE_SHIFT) + PARENT];
+    }
+
+    /**
+     * Finds the node at the given index.
+     *
+     * @param index
+     *            The index, from 0 to size() - 1
+     * @return The node
+     */
+    private int nodeAt(int index) {
+        int node = root;
+        for (;;) {
+            int at = node << NODE_SHIFT;
+            int leftSize = size(nodes[at + LEFT]);
+            if (index < leftSize) {
+                node = nodes[at + LEFT];
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = nodes[at + RIGHT];
+            }
+        }
+    }
+
+    /**
+     * Rotates a node above its parent, keeping the order of the list the same.
+     *
+     * @param node
+     *            The node. It must not be the root.
+     */
+    private void rotateUp(int node) {
+        int record = node << NODE_SHIFT;
+        int above = nodes[record + PARENT];
+        int aboveRecord = above << NODE_SHIFT;
+        int grandparent = nodes[aboveRecord + PARENT];
+        // the child of the node that moves over to its old parent
+        int side = nodes[aboveRecord + LEFT] == node ? LEFT : RIGHT;
+        int otherSide = LEFT + RIGHT - side;
+        int moved = nodes[record + otherSide];
+        nodes[aboveRecord + side] = moved;
+        if (moved != NIL) {
+            nodes[(moved << NODE_SHIFT) + PARENT] = above;
+        }
+        nodes[record + otherSide] = above;
+        nodes[aboveRecord + PARENT] = node;
+        nodes[record + PARENT] = grandparent;
+        if (grandparent == NIL) {
+            root = node;
+        } else if (nodes[(grandparent << NODE_SHIFT) + LEFT] == above) {
+            nodes[(grandparent << NODE_SHIFT) + LEFT] = node;
+        } else {
+            nodes[(grandparent << NODE_SHIFT) + RIGHT] = node;
+        }
+        nodes[aboveRecord + SIZE] = size(nodes[aboveRecord + LEFT])
+                + size(nodes[aboveRecord + RIGHT]) + 1;
+        nodes[record + SIZE] = size(nodes[record + LEFT]) + size(nodes[record + RIGHT]) + 1;
+    }
+
+    /**
+     * Gets an unused node, growing the array if every node is in use.
+     *
+     * @return The node
+     */
+    private int allocate() {
+        if (free != NIL) {
+            int node = free;
+            free = nodes[(node << NODE_SHIFT) + RIGHT];
+            return node;
+        }
+        if (used << NODE_SHIFT == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        }
+        return used++;
+    }
+}
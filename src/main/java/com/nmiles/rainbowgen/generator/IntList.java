@@ -0,0 +1,141 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints. It exists so that the hot loops of the
+ * image algorithms can keep reusing the same buffers instead of allocating a
+ * new ArrayList (and a boxed Integer for every element) at every step. It does
+ * no bounds checking beyond what the backing array does, so callers must stay
+ * within 0 and size() - 1.
+ *
+ * @author Nathan Miles
+ *
+ */
+final class IntList {
+    /** The capacity of a list constructed without one. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** The backing array. Only the first size elements are meaningful. */
+    private int[] elements;
+
+    /** The number of elements in the list. */
+    private int size;
+
+    /**
+     * Constructs a new, empty IntList with a small default capacity.
+     */
+    IntList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new, empty IntList with the given initial capacity.
+     *
+     * @param capacity
+     *            The number of elements the list can hold before it has to
+     *            grow
+     */
+    IntList(int capacity) {
+        elements = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Gets the number of elements in the list.
+     *
+     * @return The size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the list has no elements, false if not.
+     *
+     * @return true if the list is empty
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the element at the given index.
+     *
+     * @param index
+     *            The index of the element
+     * @return The element
+     */
+    int get(int index) {
+        return elements[index];
+    }
+
+    /**
+     * Adds an element to the end of the list.
+     *
+     * @param value
+     *            The element to add
+     */
+    void add(int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        elements[size++] = value;
+    }
+
+    /**
+     * Inserts an element at the given index, shifting the elements after it
+     * to the right.
+     *
+     * @param index
+     *            The index to insert at, from 0 to size()
+     * @param value
+     *            The element to insert
+     */
+    void add(int index, int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = value;
+        size++;
+    }
+
+    /**
+     * Removes the element at the given index, shifting the elements after it
+     * to the left. This preserves the order of the list, but takes time
+     * proportional to the number of elements after the index.
+     *
+     * @param index
+     *            The index of the element to remove
+     * @return The removed element
+     */
+    int remove(int index) {
+        int removed = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        size--;
+        return removed;
+    }
+
+    /**
+     * Removes the element at the given index by moving the last element into
+     * its place. This takes constant time, but does not preserve the order of
+     * the list.
+     *
+     * @param index
+     *            The index of the element to remove
+     * @return The removed element
+     */
+    int removeSwap(int index) {
+        int removed = elements[index];
+        elements[index] = elements[--size];
+        return removed;
+    }
+
+    /**
+     * Removes every element from the list. The capacity is kept, so refilling
+     * the list doesn't allocate.
+     */
+    void clear() {
+        size = 0;
+    }
+}
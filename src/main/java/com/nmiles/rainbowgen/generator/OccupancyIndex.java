@@ -0,0 +1,197 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+
+/**
+ * A multi-level summary of how many unused colors remain in each region of a
+ * ColorTracker's color cube. It can be thought of as an octree of counts: at
+ * level L, the cube is split into sub-cubes with sides of length 2^L, and the
+ * number of unused colors in each sub-cube is stored. The finest level kept is
+ * chosen by the owner, so that the smallest summarized sub-cube matches
+ * whatever the owner can scan quickly on its own. The coarsest level is a
+ * single node holding the count for the whole cube.
+ *
+ * The ColorTracker uses this to skip whole sub-cubes that have no unused colors
+ * left while it searches for the closest colors, which matters a lot late in an
+ * image when almost every color has been used. The owner must call markUsed()
+ * exactly once for every color that goes from unused to used.
+ *
+ * A ConcurrentOccupancyIndex can be used from several threads at once.
+ *
+ * @author Nathan Miles
+ *
+ */
+class OccupancyIndex {
+    /** The finest level that counts are kept for. */
+    private final int leafLevel;
+
+    /** The coarsest level. It has exactly one node. */
+    private final int topLevel;
+
+    /**
+     * The counts for each level. counts[L] holds the counts for level L, and is
+     * null for the levels below leafLevel.
+     */
+    protected final int[][] counts;
+
+    /**
+     * For each level, the base 2 log of the number of nodes along each side of
+     * the cube at that level.
+     */
+    protected final int[] sideShift;
+
+    /**
+     * Constructs a new OccupancyIndex for a cube with sides of length
+     * 2^dimensionShift. All counts start at zero.
+     *
+     * @param dimensionShift
+     *            The base 2 log of the cube's dimension
+     * @param leafLevel
+     *            The finest level to keep counts for. Its nodes have sides of
+     *            length 2^leafLevel.
+     */
+    OccupancyIndex(int dimensionShift, int leafLevel) {
+        this.leafLevel = leafLevel;
+        topLevel = Math.max(dimensionShift, leafLevel);
+        counts = new int[topLevel + 1][];
+        sideShift = new int[topLevel + 1];
+        for (int level = leafLevel; level <= topLevel; level++) {
+            sideShift[level] = topLevel - level;
+            counts[level] = new int[1 << (3 * sideShift[level])];
+        }
+    }
+
+    /**
+     * Gets the finest level of this index.
+     *
+     * @return The leaf level
+     */
+    int getLeafLevel() {
+        return leafLevel;
+    }
+
+    /**
+     * Gets the coarsest level of this index. The single node at this level
+     * covers the whole cube.
+     *
+     * @return The top level
+     */
+    int getTopLevel() {
+        return topLevel;
+    }
+
+    /**
+     * Gets the number of unused colors in the given node.
+     *
+     * @param level
+     *            The level of the node, which must be at least the leaf level
+     * @param r
+     *            The node's r coordinate at that level
+     * @param g
+     *            The node's g coordinate at that level
+     * @param b
+     *            The node's b coordinate at that level
+     * @return The number of unused colors in the node
+     */
+    int count(int level, int r, int g, int b) {
+        int shift = sideShift[level];
+        return counts[level][(((r << shift) | g) << shift) | b];
+    }
+
+    /**
+     * Sets every count as if every color in the cube were unused. This is used
+     * while the owning tracker is being filled, together with addToLeaf() and
+     * sumLeaves().
+     *
+     * @param dimension
+     *            The dimension of the cube, which may be smaller than a leaf
+     */
+    void setFull(int dimension) {
+        for (int level = leafLevel; level <= topLevel; level++) {
+            int side = Math.min(dimension, 1 << level);
+            Arrays.fill(counts[level], side * side * side);
+        }
+    }
+
+    /**
+     * Adds the given amount to the count of the leaf node containing the given
+     * cell, without touching any other level. This is used while the owning
+     * tracker is being filled, since adjusting one level is much cheaper than
+     * adjusting all of them. sumLeaves() MUST be called once the leaves are
+     * right.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @param amount
+     *            The amount to add
+     */
+    void addToLeaf(int r, int g, int b, int amount) {
+        int shift = sideShift[leafLevel];
+        counts[leafLevel][((((r >> leafLevel) << shift) | (g >> leafLevel)) << shift)
+                | (b >> leafLevel)] += amount;
+    }
+
+    /**
+     * Recalculates the count of every node above the leaves by adding up the
+     * counts of its children.
+     */
+    void sumLeaves() {
+        for (int level = leafLevel + 1; level <= topLevel; level++) {
+            int shift = sideShift[level];
+            int side = 1 << shift;
+            int[] children = counts[level - 1];
+            int[] parents = counts[level];
+            for (int r = 0; r < side; r++) {
+                for (int g = 0; g < side; g++) {
+                    for (int b = 0; b < side; b++) {
+                        int sum = 0;
+                        for (int child = 0; child < 8; child++) {
+                            int childR = (r << 1) | (child >> 2);
+                            int childG = (g << 1) | ((child >> 1) & 1);
+                            int childB = (b << 1) | (child & 1);
+                            sum += children[(((childR << (shift + 1)) | childG) << (shift + 1)) | childB];
+                        }
+                        parents[(((r << shift) | g) << shift) | b] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the color at the given cell of the cube has been used.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     */
+    void markUsed(int r, int g, int b) {
+        add(r, g, b, -1);
+    }
+
+    /**
+     * Adds the given amount to every node containing the given cell.
+     *
+     * @param r
+     *            The r index of the cell
+     * @param g
+     *            The g index of the cell
+     * @param b
+     *            The b index of the cell
+     * @param amount
+     *            The amount to add
+     */
+    private void add(int r, int g, int b, int amount) {
+        for (int level = leafLevel; level <= topLevel; level++) {
+            int shift = sideShift[level];
+            counts[level][((((r >> level) << shift) | (g >> level)) << shift) | (b >> level)] += amount;
+        }
+    }
+}
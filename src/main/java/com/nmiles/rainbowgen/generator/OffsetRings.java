@@ -0,0 +1,168 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * A table of every (dr, dg, db) offset from a cell of the color cube, out to a
+ * fixed distance, sorted by straight line distance. Offsets at the same
+ * distance form a ring, and rings are stored in order of their squared
+ * distance, so a search can walk outward from a color one ring at a time and
+ * stop at the first ring that holds an unused color, without ever sorting.
+ * 
+ * The table only depends on the dimension of the cube, so there is a single
+ * shared, immutable instance per dimension. Use forDimension() to get it.
+ * 
+ * @author Nathan Miles
+ *
+ */
+final class OffsetRings {
+    /**
+     * The squared distance of the farthest ring in any table. This keeps the
+     * largest table at about 140,000 offsets. Colors that are farther away
+     * than this must be found some other way.
+     */
+    private static final int MAX_DISTANCE_SQUARED = 32 * 32;
+
+    /** What is added to each part of an offset so that it packs unsigned. */
+    private static final int BIAS = 512;
+
+    /** The shared tables, by dimensionShift. They are built when first used. */
+    private static final OffsetRings[] TABLES = new OffsetRings[9];
+
+    /**
+     * Every offset, packed by pack(), in order of their squared distance. The
+     * zero offset is not included.
+     */
+    private final int[] offsets;
+
+    /**
+     * The index in offsets of the first offset of each ring, by squared
+     * distance. The ring at squared distance d runs up to ringStart[d + 1].
+     * Squared distances that no offset has are empty rings.
+     */
+    private final int[] ringStart;
+
+    /** The squared distance of the last ring in the table. */
+    private final int maxDistanceSquared;
+
+    /**
+     * Builds the table for a cube with the given dimension.
+     * 
+     * @param dimension
+     *            The number of cells on each side of the cube
+     */
+    private OffsetRings(int dimension) {
+        int reach = Math.min(dimension - 1, 32);
+        maxDistanceSquared = Math.min(MAX_DISTANCE_SQUARED, 3 * reach * reach);
+        // count the offsets in each ring, then place them with a counting sort
+        ringStart = new int[maxDistanceSquared + 2];
+        for (int dr = -reach; dr <= reach; dr++) {
+            for (int dg = -reach; dg <= reach; dg++) {
+                for (int db = -reach; db <= reach; db++) {
+                    int distance = dr * dr + dg * dg + db * db;
+                    if (distance > 0 && distance <= maxDistanceSquared) {
+                        ringStart[distance + 1]++;
+                    }
+                }
+            }
+        }
+        for (int distance = 1; distance < ringStart.length; distance++) {
+            ringStart[distance] += ringStart[distance - 1];
+        }
+        offsets = new int[ringStart[ringStart.length - 1]];
+        int[] next = ringStart.clone();
+        for (int dr = -reach; dr <= reach; dr++) {
+            for (int dg = -reach; dg <= reach; dg++) {
+                for (int db = -reach; db <= reach; db++) {
+                    int distance = dr * dr + dg * dg + db * db;
+                    if (distance > 0 && distance <= maxDistanceSquared) {
+                        offsets[next[distance]++] = pack(dr, dg, db);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the table for a cube with the given dimensionShift, building it if
+     * it doesn't exist yet.
+     * 
+     * @param dimensionShift
+     *            The base 2 log of the dimension
+     * @return The table
+     */
+    static synchronized OffsetRings forDimension(int dimensionShift) {
+        if (TABLES[dimensionShift] == null) {
+            TABLES[dimensionShift] = new OffsetRings(1 << dimensionShift);
+        }
+        return TABLES[dimensionShift];
+    }
+
+    /**
+     * Packs an offset into a single int.
+     * 
+     * @param dr
+     *            The r part of the offset
+     * @param dg
+     *            The g part of the offset
+     * @param db
+     *            The b part of the offset
+     * @return The packed offset
+     */
+    private static int pack(int dr, int dg, int db) {
+        return ((dr + BIAS) << 20) | ((dg + BIAS) << 10) | (db + BIAS);
+    }
+
+    /**
+     * Gets the squared distance of the last ring in the table.
+     * 
+     * @return The squared distance
+     */
+    int getMaxDistanceSquared() {
+        return maxDistanceSquared;
+    }
+
+    /**
+     * Gets the index of the first offset of the ring at the given squared
+     * distance. The ring ends where the next one starts.
+     * 
+     * @param distanceSquared
+     *            The squared distance of the ring, from 0 to
+     *            getMaxDistanceSquared() + 1
+     * @return The index of the ring's first offset
+     */
+    int ringStart(int distanceSquared) {
+        return ringStart[distanceSquared];
+    }
+
+    /**
+     * Gets the r part of the offset at the given index.
+     * 
+     * @param index
+     *            The index of the offset
+     * @return The r part
+     */
+    int dr(int index) {
+        return (offsets[index] >> 20) - BIAS;
+    }
+
+    /**
+     * Gets the g part of the offset at the given index.
+     * 
+     * @param index
+     *            The index of the offset
+     * @return The g part
+     */
+    int dg(int index) {
+        return ((offsets[index] >> 10) & 0x3FF) - BIAS;
+    }
+
+    /**
+     * Gets the b part of the offset at the given index.
+     * 
+     * @param index
+     *            The index of the offset
+     * @return The b part
+     */
+    int db(int index) {
+        return (offsets[index] & 0x3FF) - BIAS;
+    }
+}
@@ -0,0 +1,279 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A RandomImage that is generated by several worker threads at once. This
+ * class runs the workers and gathers their progress. What each worker does is
+ * up to the subclass, in generate().
+ *
+ * Each worker records its pixels in its own ImageRecord from
+ * newWorkerRecord(), since ImageRecords aren't thread safe, and those records
+ * pass each finished chunk on to the image's record. The chunks of different
+ * workers are interleaved in the order they were finished, which is fine,
+ * since every pixel in a chunk carries its own coordinates.
+ *
+ * The workers are started by the first call to step(), and step() returns
+ * once they have populated the requested number of pixels between them. The
+ * workers check the cancellation token between their own batches too, so
+ * when it is cancelled, they all stop within a batch, and release() waits for
+ * them so that the record holds every pixel they populated.
+ *
+ * @author Nathan Miles
+ *
+ */
+abstract class ParallelImage extends RandomImage {
+    /** The number of pixels each worker populates between progress reports. */
+    protected static final int BATCH_PIXELS = 2000;
+
+    /** The chunks the workers have finished, waiting to be added to the record. */
+    private final ConcurrentLinkedQueue<byte[]> finishedChunks = new ConcurrentLinkedQueue<>();
+
+    /** The thread of every worker, or null before the first step(). */
+    private Thread[] workers;
+
+    /** The lock that guards placed and finishedWorkers. */
+    private final Object progress = new Object();
+
+    /** The number of pixels populated by every worker put together. */
+    private int placed;
+
+    /** The number of workers that have finished. */
+    private int finishedWorkers;
+
+    /** Whatever a worker threw, or null if nothing has gone wrong. */
+    private volatile Throwable failure;
+
+    /** Whether every worker is finished and every chunk has been recorded. */
+    private boolean finished;
+
+    /**
+     * Performs the setup shared by every ParallelImage. The image's random
+     * number generator is seeded from the options.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param options
+     *            The options to generate the image with
+     */
+    ParallelImage(int width, int height, ImageOptions options) {
+        super(width, height, new XoshiroRandom(options.getSeed()),
+                new ImageRecord(width * height, options.getRecordSpillBytes()), options.getCancellationToken());
+    }
+
+    /**
+     * Gets the number of workers. It must not change once the image has been
+     * constructed.
+     *
+     * @return The number of workers
+     */
+    protected abstract int getWorkerCount();
+
+    /**
+     * Does all of the work of one worker, on its own thread. It should call
+     * report() after every batch of about BATCH_PIXELS pixels, stop early if
+     * shouldStop() returns true, and call makeFinal() on its record before it
+     * returns.
+     *
+     * @param worker
+     *            The index of the worker
+     * @throws InterruptedException
+     *             If the worker is interrupted while waiting
+     */
+    protected abstract void generate(int worker) throws InterruptedException;
+
+    /**
+     * Creates a record for a worker, which passes each finished chunk on to
+     * the image's record.
+     *
+     * @param pixels
+     *            The number of pixels the worker will record
+     * @param top
+     *            The amount to add to the y coordinate of every pixel, for
+     *            workers that record their pixels relative to their own part
+     *            of the image
+     * @return The record
+     */
+    protected ImageRecord newWorkerRecord(int pixels, final int top) {
+        return new ImageRecord(pixels) {
+            @Override
+            public void addPixel(int x, int y, int color) {
+                super.addPixel(x, y + top, color);
+            }
+
+            @Override
+            void addChunk(byte[] chunk, int length) {
+                finishedChunks.add(Arrays.copyOf(chunk, length));
+            }
+        };
+    }
+
+    /**
+     * Counts a pixel that was populated before the workers started, such as a
+     * starting point.
+     */
+    protected void countPlanted() {
+        placed++;
+        pixelsPlaced++;
+    }
+
+    /**
+     * Returns true if a worker has failed or the cancellation token has been
+     * cancelled, in which case every worker should stop.
+     *
+     * @return true if the workers should stop
+     */
+    protected boolean shouldStop() {
+        return failure != null || cancellation.isCancelled();
+    }
+
+    /**
+     * Reports a worker's progress, and wakes up step().
+     *
+     * @param pixels
+     *            The number of pixels the worker populated since its last
+     *            report
+     */
+    protected void report(int pixels) {
+        synchronized (progress) {
+            placed += pixels;
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Starts the workers, if they haven't been started yet.
+     */
+    private void start() {
+        if (workers != null) {
+            return;
+        }
+        workers = new Thread[getWorkerCount()];
+        for (int i = 0; i < workers.length; i++) {
+            final int worker = i;
+            workers[i] = new Thread(() -> run(worker), getClass().getSimpleName() + " worker " + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Runs one worker, and reports when it has finished or failed.
+     *
+     * @param worker
+     *            The index of the worker
+     */
+    private void run(int worker) {
+        try {
+            generate(worker);
+        } catch (Throwable t) {
+            failure = t;
+        }
+        synchronized (progress) {
+            finishedWorkers++;
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the workers have populated at least maxPixels pixels
+     * between them, or until every worker is finished, then adds the chunks
+     * they have finished to the record. The workers are started by the first
+     * call. The image is only finished once every pixel is populated, so if
+     * the workers stopped early because the token was cancelled, the next
+     * step() stops the image. Workers that stop early for any other reason
+     * would leave the image unfinished for good, so that is an error.
+     *
+     * @param maxPixels
+     *            The number of pixels to wait for
+     * @return The number of pixels populated
+     * @throws IllegalStateException
+     *             If a worker failed, or every worker finished without the
+     *             whole image being populated
+     */
+    @Override
+    protected int populate(int maxPixels) {
+        start();
+        int before = pixelsPlaced;
+        boolean allDone;
+        synchronized (progress) {
+            while (placed - before < maxPixels && finishedWorkers < workers.length && failure == null) {
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            pixelsPlaced = placed;
+            allDone = finishedWorkers == workers.length;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("A worker failed", failure);
+        }
+        addFinishedChunks();
+        if (allDone && pixelsPlaced < width * height && !cancellation.isCancelled()) {
+            throw new IllegalStateException("The workers stopped with " + pixelsPlaced + " of "
+                    + width * height + " pixels populated");
+        }
+        finished = allDone && pixelsPlaced == width * height;
+        return pixelsPlaced - before;
+    }
+
+    /**
+     * Adds the chunks the workers have finished to the record.
+     */
+    private void addFinishedChunks() {
+        for (byte[] chunk = finishedChunks.poll(); chunk != null; chunk = finishedChunks.poll()) {
+            getRecord().addChunk(chunk, chunk.length);
+        }
+    }
+
+    /**
+     * Waits for the workers to stop, which they do within a batch once the
+     * token is cancelled, then adds the chunks they finished to the record,
+     * so that it holds every pixel they populated. If the workers were never
+     * started, they are started now, so that they record the pixels planted
+     * for them and stop right away. The workers' state is left for the
+     * subclass to drop.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        start();
+        synchronized (progress) {
+            while (finishedWorkers < workers.length) {
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            pixelsPlaced = placed;
+        }
+        addFinishedChunks();
+    }
+
+    /**
+     * Waits for at least one more pixel. See step().
+     */
+    @Override
+    public void nextPixel() {
+        step(1);
+    }
+
+    /**
+     * Returns true once every worker is finished and all of their chunks are
+     * in the record, or once the image has been stopped.
+     *
+     * @return true if the image is finished, false if not.
+     */
+    @Override
+    public boolean isFinished() {
+        return finished || isStopped();
+    }
+}
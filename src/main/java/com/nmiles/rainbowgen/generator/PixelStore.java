@@ -0,0 +1,236 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The bytes behind an ImageRecord, which only ever grow at the end. The first
+ * spillBytes of them are kept in an array on the heap, and the rest in a temp
+ * file, which is mapped into memory SEGMENT_BYTES at a time, so that the heap
+ * used by a record stays the same however big the image is. The temp file is
+ * deleted when the store is closed. A store can also be opened on a file
+ * that was saved before, which is mapped as it is, and can only be read.
+ *
+ * @author Nathan Miles
+ *
+ */
+final class PixelStore {
+    /** The number of bytes in each mapped segment of the temp file. */
+    static final int SEGMENT_BYTES = 1 << 22;
+
+    /** The number of bytes kept on the heap. */
+    private final int spillBytes;
+
+    /** Whether bytes can be added to the store. */
+    private final boolean writable;
+
+    /** The bytes kept on the heap, which grows up to spillBytes. */
+    private byte[] heap;
+
+    /**
+     * The temp file, or the file the store was opened on, or null if nothing
+     * has spilled yet.
+     */
+    private FileChannel file;
+
+    /** The mapped segments of the temp file, in order. */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    /** The number of bytes in the store. */
+    private long size;
+
+    /** Whether the store has been closed. */
+    private boolean closed;
+
+    /**
+     * Constructs a new, empty PixelStore.
+     *
+     * @param expectedBytes
+     *            The number of bytes the store will probably hold, so that
+     *            the heap array can be the right size from the start
+     * @param spillBytes
+     *            The number of bytes to keep on the heap before spilling to
+     *            a temp file
+     */
+    PixelStore(long expectedBytes, int spillBytes) {
+        this.spillBytes = spillBytes;
+        heap = new byte[(int) Math.min(expectedBytes, spillBytes)];
+        writable = true;
+    }
+
+    /**
+     * Constructs a PixelStore that reads the bytes of a file, which is mapped
+     * into memory rather than read onto the heap.
+     *
+     * @param path
+     *            The file
+     * @throws IOException
+     *             If the file can't be opened or mapped
+     */
+    PixelStore(Path path) throws IOException {
+        spillBytes = 0;
+        heap = new byte[0];
+        writable = false;
+        file = FileChannel.open(path, StandardOpenOption.READ);
+        size = file.size();
+        for (long offset = 0; offset < size; offset += SEGMENT_BYTES) {
+            segments.add(file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_BYTES, size - offset)));
+        }
+    }
+
+    /**
+     * Gets the number of bytes in the store.
+     *
+     * @return The number of bytes
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Adds bytes to the end of the store.
+     *
+     * @param bytes
+     *            The array holding the bytes
+     * @param length
+     *            The number of bytes to add, from the start of the array
+     * @throws UncheckedIOException
+     *             If the temp file can't be created or grown
+     * @throws IllegalStateException
+     *             If the store reads a file that was saved before
+     */
+    void append(byte[] bytes, int length) {
+        checkOpen();
+        if (!writable) {
+            throw new IllegalStateException("The record was opened from a file");
+        }
+        int done = 0;
+        while (done < length) {
+            long position = size + done;
+            int count;
+            if (position < spillBytes) {
+                count = (int) Math.min(length - done, spillBytes - position);
+                if (position + count > heap.length) {
+                    long grown = Math.max(position + count, 2L * heap.length);
+                    heap = Arrays.copyOf(heap, (int) Math.min(grown, spillBytes));
+                }
+                System.arraycopy(bytes, done, heap, (int) position, count);
+            } else {
+                ByteBuffer segment = segmentAt(position, true);
+                count = Math.min(length - done, segment.remaining());
+                segment.put(bytes, done, count);
+            }
+            done += count;
+        }
+        size += length;
+    }
+
+    /**
+     * Copies bytes out of the store.
+     *
+     * @param position
+     *            The position of the first byte to copy
+     * @param bytes
+     *            The array to copy them to, from its start
+     * @param length
+     *            The number of bytes to copy
+     * @throws IndexOutOfBoundsException
+     *             If the store doesn't hold that many bytes from that
+     *             position
+     */
+    void read(long position, byte[] bytes, int length) {
+        checkOpen();
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("Bytes " + position + " to " + (position + length) + " of " + size);
+        }
+        int done = 0;
+        while (done < length) {
+            long at = position + done;
+            int count;
+            if (at < spillBytes) {
+                count = (int) Math.min(length - done, spillBytes - at);
+                System.arraycopy(heap, (int) at, bytes, done, count);
+            } else {
+                ByteBuffer segment = segmentAt(at, false);
+                count = Math.min(length - done, segment.remaining());
+                segment.get(bytes, done, count);
+            }
+            done += count;
+        }
+    }
+
+    /**
+     * Drops the bytes, and deletes the temp file if there is one. A file that
+     * was saved before is left as it is. Nothing can be added or read
+     * afterwards.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        heap = null;
+        segments.clear();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                file = null;
+            }
+        }
+    }
+
+    /**
+     * Gets a view of the mapped segment that holds a position past the heap,
+     * starting at that position.
+     *
+     * @param position
+     *            The position, which must be at least spillBytes
+     * @param create
+     *            Whether to map a new segment at the end of the file if
+     *            there isn't one for the position yet
+     * @return The view, with its own position and limit
+     * @throws UncheckedIOException
+     *             If the segment can't be mapped
+     */
+    private ByteBuffer segmentAt(long position, boolean create) {
+        long offset = position - spillBytes;
+        int index = (int) (offset / SEGMENT_BYTES);
+        if (index == segments.size() && create) {
+            try {
+                if (file == null) {
+                    Path path = Files.createTempFile("rainbowgen-record", ".bin");
+                    file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                // mapping past the end of the file grows it
+                segments.add(file.map(FileChannel.MapMode.READ_WRITE, (long) index * SEGMENT_BYTES, SEGMENT_BYTES));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ByteBuffer view = segments.get(index).duplicate();
+        view.position((int) (offset % SEGMENT_BYTES));
+        return view;
+    }
+
+    /**
+     * Throws an IllegalStateException if the store has been closed.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The record has been closed");
+        }
+    }
+}
@@ -1,14 +1,14 @@
 package com.nmiles.rainbowgen.generator;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 /**
  * This class is the meat of this whole thing. All image algorithm classes must
  * extend this class. Any runner for this class operates like this: it loops
  * while isFinished() returns false, and at each iteration, it calls
- * nextPixel(). nextPixel() is responsible for populating the image. All image
+ * step(), which calls nextPixel() until a batch of pixels has been populated.
+ * nextPixel() is responsible for populating the image. All image
  * building beyond initial setup (which should be done in the child class's
  * constructor) should be done in the nextPixel() method. For examples of
  * implementations of this class, see the FastIterator and StainedGlass class
@@ -34,6 +34,44 @@ public abstract class RandomImage {
     /** The maximum value of any given R, G, or B channel. */
     public static final int MAX_COLOR_VALUE = 255;
 
+    /**
+     * The value of every pixel in the raster that hasn't been populated yet.
+     * Every color from the ColorTracker has an alpha of 255, so no populated
+     * pixel can have this value.
+     */
+    protected static final int EMPTY_VALUE = 0;
+
+    /**
+     * The x offsets of the 8 neighbors of a pixel, diagonals included. They
+     * are ordered so that the neighbor opposite neighbor k is neighbor 7 - k.
+     */
+    private static final int[] NEIGHBOR_X = { -1, 0, 1, -1, 1, -1, 0, 1 };
+
+    /** The y offsets of the 8 neighbors of a pixel, in the same order. */
+    private static final int[] NEIGHBOR_Y = { -1, -1, -1, 0, 0, 1, 1, 1 };
+
+    /**
+     * The neighbor masks of pixels on the edges of the image. A set bit k
+     * means neighbor k is inside the image. The index says which edges the
+     * pixel is on: 1 for the left, 2 for the right, 4 for the top, and 8 for
+     * the bottom.
+     */
+    private static final int[] INSIDE_MASKS = new int[16];
+
+    static {
+        for (int edges = 0; edges < INSIDE_MASKS.length; edges++) {
+            for (int k = 0; k < NEIGHBOR_X.length; k++) {
+                boolean outside = (NEIGHBOR_X[k] < 0 && (edges & 1) != 0)
+                        || (NEIGHBOR_X[k] > 0 && (edges & 2) != 0)
+                        || (NEIGHBOR_Y[k] < 0 && (edges & 4) != 0)
+                        || (NEIGHBOR_Y[k] > 0 && (edges & 8) != 0);
+                if (!outside) {
+                    INSIDE_MASKS[edges] |= 1 << k;
+                }
+            }
+        }
+    }
+
     /** The width of the image. */
     protected int width;
 
@@ -47,28 +85,71 @@ public abstract class RandomImage {
     protected ColorTracker colorTracker;
 
     /**
-     * This is essentially a bitmap that stores all of the current image data.
-     * It can be rendered directly to a JFrame in non-web interfaces. In the web
-     * interface, it basically only serves to hold the color data for individual
-     * pixels. Color data for a pixel can be retrieved by calling
-     * image.getRGB(toAddTo.getX(), toAddTo.getY()) from any subclass.
+     * The color of every pixel, in rows, indexed by the packed pixel (see
+     * pixelAt()). Unpopulated pixels hold EMPTY_VALUE. This is a plain array
+     * rather than a BufferedImage so that generating an image never touches
+     * AWT. Call toBufferedImage() to get one for rendering or export.
+     */
+    protected int[] raster;
+
+    /**
+     * For every pixel, a mask of which of its neighbors are inside the image
+     * and still empty, with the bits ordered as in NEIGHBOR_X. It is kept up
+     * to date by updateImage(), so finding a pixel's empty neighbors never
+     * has to look at the neighbors themselves.
      */
-    protected BufferedImage image;
+    private byte[] freeNeighbors;
 
-    /** An extremely fast random number generator. */
-    protected XORShiftRandom rand;
+    /**
+     * How far each neighbor of a pixel is from it in the raster, in the order
+     * of NEIGHBOR_X.
+     */
+    protected int[] neighborOffsets = new int[NEIGHBOR_X.length];
+
+    /**
+     * Populated pixels whose last empty neighbor has just been populated,
+     * waiting to be passed to evict().
+     */
+    private IntList saturated = new IntList();
+
+    /** The number of pixels that have been populated so far. */
+    protected int pixelsPlaced;
+
+    /**
+     * The random number generator behind every choice the image makes. It is
+     * seeded from the ImageOptions.
+     */
+    protected XoshiroRandom rand;
 
     /** Stores the image data for transfer to a client application. */
     private ImageRecord record;
 
     /**
-     * Performs basic setup for the image. The only thing this does apart from
-     * instantiating fields is paint the whole BufferedImage with the color
-     * #FE000000, which is used to indicate that a pixel hasn't been populated
-     * yet. All pixels populated after this point MUST have alpha values of 255
-     * rather than the initial 254. If you use the ColorTracker to get colors
-     * from, which you should, this won't be an issue, because that class
-     * handles that.
+     * The tile this image generates, which is the whole image unless it is
+     * part of a TiledImage.
+     */
+    private Tile tile;
+
+    /**
+     * The index of the tile that handed over the pixel being populated, or -1
+     * if it wasn't handed over. Handed over pixels are passed on to the tile
+     * on the other side, if any, but never handed back, or pixels would be
+     * handed back and forth all the way along the border in one go.
+     */
+    int receivedFrom = -1;
+
+    /** The token that stops the image before it is finished. */
+    protected CancellationToken cancellation;
+
+    /** Whether the image was stopped by its cancellation token. */
+    private volatile boolean stopped;
+
+    /**
+     * Performs basic setup for the image. Every pixel of the raster starts out
+     * as EMPTY_VALUE, which is 0, so all pixels populated after this point
+     * MUST have nonzero values. If you use the ColorTracker to get colors
+     * from, which you should, this won't be an issue, because every color it
+     * gives out has an alpha of 255.
      * 
      * @param width
      *            The width of the image to be generated.
@@ -76,24 +157,145 @@ public abstract class RandomImage {
      *            The height of the image to be generated.
      */
     public RandomImage(int width, int height) {
+        this(width, height, new ImageOptions());
+    }
+
+    /**
+     * Performs basic setup for the image, exactly as RandomImage(int, int)
+     * does, but with the given options.
+     * 
+     * @param width
+     *            The width of the image to be generated.
+     * @param height
+     *            The height of the image to be generated.
+     * @param options
+     *            The options to generate the image with.
+     */
+    public RandomImage(int width, int height, ImageOptions options) {
+        checkDimensions(width, height);
+        init(width, height, new Tile(width, height, options));
+    }
+
+    /**
+     * Performs basic setup for one tile of a TiledImage, exactly as
+     * RandomImage(int, int) does, except that the colors, random numbers, and
+     * record come from the tile.
+     * 
+     * @param width
+     *            The width of the tile.
+     * @param height
+     *            The height of the tile.
+     * @param tile
+     *            The tile.
+     */
+    RandomImage(int width, int height, Tile tile) {
+        checkDimensions(width, height);
+        init(width, height, tile);
+    }
+
+    /**
+     * Performs the setup for an image that doesn't generate pixels itself,
+     * but is made up of other images that do. Nothing is allocated for the
+     * pixels, so such an image must override every method that uses them.
+     * 
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param rand
+     *            The image's random number generator.
+     * @param record
+     *            The image's record.
+     * @param cancellation
+     *            The image's cancellation token.
+     */
+    RandomImage(int width, int height, XoshiroRandom rand, ImageRecord record, CancellationToken cancellation) {
+        checkDimensions(width, height);
+        this.width = width;
+        this.height = height;
+        this.rand = rand;
+        this.record = record;
+        this.cancellation = cancellation;
+        setNeighborOffsets();
+    }
+
+    /**
+     * Throws an IllegalArgumentException if an image can't have the given
+     * dimensions.
+     * 
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     */
+    private static void checkDimensions(int width, int height) {
         if (width > MAX_DIMENSION || height > MAX_DIMENSION) {
             throw new IllegalArgumentException("Image's dimensions must be <= 4096x4096.");
         }
+    }
+
+    /**
+     * Allocates the raster and neighbor masks, and takes the colors, random
+     * numbers, and record from the given tile.
+     * 
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param tile
+     *            The tile the image generates.
+     */
+    private void init(int width, int height, Tile tile) {
         this.width = width;
         this.height = height;
-        rand = new XORShiftRandom();
+        this.tile = tile;
+        rand = tile.rand;
+        colorTracker = tile.colorTracker;
+        record = tile.record;
+        cancellation = tile.cancellation;
 
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D graphics = image.createGraphics();
-        graphics.setPaint(new Color(0, 0, 0, 254));
-        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        raster = new int[width * height];
+        freeNeighbors = new byte[width * height];
+        // every neighbor is free, except for the ones off the edges
+        Arrays.fill(freeNeighbors, (byte) 0xFF);
+        for (int x = 0; x < width; x++) {
+            freeNeighbors[x] = (byte) insideMask(x, 0);
+            freeNeighbors[(height - 1) * width + x] = (byte) insideMask(x, height - 1);
+        }
+        for (int y = 0; y < height; y++) {
+            freeNeighbors[y * width] = (byte) insideMask(0, y);
+            freeNeighbors[y * width + width - 1] = (byte) insideMask(width - 1, y);
+        }
+        setNeighborOffsets();
+    }
+
+    /**
+     * Calculates neighborOffsets from the width.
+     */
+    private void setNeighborOffsets() {
+        for (int k = 0; k < neighborOffsets.length; k++) {
+            neighborOffsets[k] = NEIGHBOR_Y[k] * width + NEIGHBOR_X[k];
+        }
+    }
 
-        colorTracker = new ColorTracker(width * height);
-        record = new ImageRecord(width * height);
+    /**
+     * Gets the mask of which neighbors of the given pixel are inside the
+     * image.
+     * 
+     * @param x
+     *            The x coordinate of the pixel.
+     * @param y
+     *            The y coordinate of the pixel.
+     * @return The mask, with bits ordered as in NEIGHBOR_X.
+     */
+    protected int insideMask(int x, int y) {
+        int edges = (x == 0 ? 1 : 0) | (x == width - 1 ? 2 : 0) | (y == 0 ? 4 : 0)
+                | (y == height - 1 ? 8 : 0);
+        return INSIDE_MASKS[edges];
     }
 
     /**
-     * This method adds a pixel to the BufferedImage, adds it to the
+     * This method adds a pixel to the raster, adds it to the
      * ImageRecord, and then marks the color as used in the ColorTracker. This
      * method absolutely MUST be called each time a subclass wants to add a
      * pixel to the image. For usage examples, see the FastIterator and
@@ -107,13 +309,203 @@ public abstract class RandomImage {
      *            The color of the pixel to add.
      */
     protected void updateImage(int x, int y, int color) {
-        image.setRGB(x, y, color);
+        updateImage(pixelAt(x, y), color);
+    }
+
+    /**
+     * Packs the coordinates of a pixel into a single int, which is how
+     * subclasses should store pixels. The pixel is y * width + x.
+     * 
+     * @param x
+     *            The x coordinate of the pixel.
+     * @param y
+     *            The y coordinate of the pixel.
+     * @return The packed pixel.
+     */
+    protected int pixelAt(int x, int y) {
+        return y * width + x;
+    }
+
+    /**
+     * Gets the color of a packed pixel, or EMPTY_VALUE if it hasn't been
+     * populated yet.
+     * 
+     * @param pixel
+     *            The packed pixel.
+     * @return The color of the pixel.
+     */
+    protected int getColor(int pixel) {
+        return raster[pixel];
+    }
+
+    /**
+     * Returns true if the given packed pixel hasn't been populated yet.
+     * 
+     * @param pixel
+     *            The packed pixel.
+     * @return true if the pixel is empty.
+     */
+    protected boolean isEmpty(int pixel) {
+        return raster[pixel] == EMPTY_VALUE;
+    }
+
+    /**
+     * Adds a packed pixel to the image, exactly as updateImage(int, int, int)
+     * does.
+     * 
+     * @param pixel
+     *            The packed pixel to add.
+     * @param color
+     *            The color of the pixel to add.
+     */
+    protected void updateImage(int pixel, int color) {
+        int x = pixel % width;
+        int y = pixel / width;
+        raster[pixel] = color;
+        pixelsPlaced++;
         record.addPixel(x, y, color);
         colorTracker.markUsed(color);
+        if (freeNeighbors[pixel] == 0) {
+            saturated.add(pixel);
+        }
+        // this pixel is no longer free for any of its neighbors
+        for (int around = insideMask(x, y); around != 0; around &= around - 1) {
+            int k = Integer.numberOfTrailingZeros(around);
+            int neighbor = pixel + neighborOffsets[k];
+            freeNeighbors[neighbor] &= ~(1 << (7 - k));
+            if (freeNeighbors[neighbor] == 0 && raster[neighbor] != EMPTY_VALUE) {
+                saturated.add(neighbor);
+            }
+        }
+        // the pixels across the border of a tile belong to its neighbors
+        if ((y == 0 || y == height - 1) && tile.owner != null) {
+            if (y == 0 && receivedFrom != tile.index - 1) {
+                tile.owner.handOff(tile.index, x, true, color);
+            }
+            if (y == height - 1 && receivedFrom != tile.index + 1) {
+                tile.owner.handOff(tile.index, x, false, color);
+            }
+        }
+    }
+
+    /**
+     * Populates a pixel with a random unused color, to start growth from.
+     * 
+     * @param pixel
+     *            The packed pixel. It must be empty.
+     */
+    protected abstract void plant(int pixel);
+
+    /**
+     * Plants the given number of random empty pixels, or every pixel if
+     * there aren't that many.
+     * 
+     * @param count
+     *            The number of pixels to plant.
+     */
+    protected void plantRandom(int count) {
+        int pixels = width * height;
+        for (int planted = 0; planted < count && pixelsPlaced < pixels;) {
+            int pixel = pixelAt(rand.nextInt(width), rand.nextInt(height));
+            if (isEmpty(pixel)) {
+                plant(pixel);
+                planted++;
+            }
+        }
+    }
+
+    /**
+     * Passes every pixel that has become saturated since the last call to
+     * evict(). A pixel is saturated once it and all of its neighbors are
+     * populated. Subclasses should call this once they're done adding pixels
+     * in each nextPixel(), rather than in the middle, so that evict() never
+     * sees a pixel that hasn't been added to their edge list yet.
+     */
+    protected void evictSaturated() {
+        for (int i = 0; i < saturated.size(); i++) {
+            evict(saturated.get(i));
+        }
+        saturated.clear();
+    }
+
+    /**
+     * Called by evictSaturated() for every pixel that has become saturated,
+     * which is the moment it can be removed from an edge list. Subclasses with
+     * an edge list should override this. The default does nothing.
+     * 
+     * @param pixel
+     *            The packed pixel that became saturated.
+     */
+    protected void evict(int pixel) {
+    }
+
+    /**
+     * Returns true if the given pixel has at least one empty neighbor.
+     * 
+     * @param pixel
+     *            The packed pixel.
+     * @return true if the pixel has an empty neighbor.
+     */
+    protected boolean hasPossibilities(int pixel) {
+        return freeNeighbors[pixel] != 0;
+    }
+
+    /**
+     * Finds every pixel adjacent to the given one, diagonals included, that
+     * isn't populated yet. They are written to the given list, which is
+     * cleared first, so callers should keep reusing the same list. This just
+     * reads the pixel's mask of free neighbors.
+     * 
+     * @param pixel
+     *            The packed pixel to find the neighbors of.
+     * @param possibilities
+     *            The list to write the packed neighbors to.
+     */
+    protected void getPossibilities(int pixel, IntList possibilities) {
+        possibilities.clear();
+        for (int free = freeNeighbors[pixel] & 0xFF; free != 0; free &= free - 1) {
+            possibilities.add(pixel + neighborOffsets[Integer.numberOfTrailingZeros(free)]);
+        }
     }
 
     /**
-     * Returns true if the image is finished, false if not.
+     * Simulates the walk that the iterator algorithms use to pick a pixel from
+     * their edge list, without taking it one step at a time. The walk starts
+     * at a gap between two elements of the list and moves in one direction,
+     * stopping at each element it passes with some fixed chance. At either
+     * end it turns around, and passes the end element again on the way back.
+     * Unfolded, that is just a loop of 2 * size positions, and the number of
+     * elements passed before stopping has a geometric distribution, so it is
+     * drawn directly and the loop is handled with a remainder.
+     * 
+     * @param size
+     *            The size of the list. It must be at least 1.
+     * @param gap
+     *            The gap the walk starts from, from 0 (before the first
+     *            element) to size (after the last).
+     * @param right
+     *            true if the walk starts out moving toward the end of the
+     *            list.
+     * @param logFailure
+     *            Math.log(1 - the chance of stopping at each element).
+     * @return The position on the loop where the walk stopped. A position p
+     *         below size means it stopped at element p while moving right.
+     *         Any other position means it stopped at element 2 * size - 1 - p
+     *         while moving left.
+     */
+    protected int walk(int size, int gap, boolean right, double logFailure) {
+        long loop = 2L * size;
+        long start = right ? gap : loop - gap;
+        // the number of elements passed without stopping
+        long passed = (long) (Math.log(rand.nextDoubleNonZero()) / logFailure);
+        return (int) ((start + passed % loop) % loop);
+    }
+
+    /**
+     * Returns true if the image is finished, false if not. A stopped image
+     * counts as finished too, since stepping it won't do anything more, so
+     * runners that loop until this returns true always end. Subclasses must
+     * make sure of that in release(). Use isStopped() to tell them apart.
      * 
      * @return true if the image is finished, false if not.
      */
@@ -129,6 +521,101 @@ public abstract class RandomImage {
      */
     public abstract void nextPixel();
 
+    /**
+     * Moves the image closer to completion by a batch of pixels, so that
+     * runners only have to do their own bookkeeping, like sending finished
+     * chunks, once per batch rather than once per nextPixel(). The batch
+     * itself is populated by populate(). Before each batch, the image's
+     * cancellation token is checked, and if it has been cancelled or has
+     * expired, the image is stopped instead: release() is called, and every
+     * later call returns 0 without doing anything.
+     * 
+     * @param maxPixels
+     *            The number of pixels to populate before returning
+     * @return The number of pixels populated, which is less than maxPixels
+     *         only if the image is finished or stopped
+     */
+    public final int step(int maxPixels) {
+        if (stopped) {
+            return 0;
+        }
+        if (cancellation.isCancelled()) {
+            stopped = true;
+            release();
+            return 0;
+        }
+        return populate(maxPixels);
+    }
+
+    /**
+     * Populates a batch of pixels for step(). It calls nextPixel() until at
+     * least maxPixels pixels have been populated or the image is finished. A
+     * single nextPixel() can populate up to 8 pixels, so the batch may go over
+     * maxPixels by a few. Subclasses may override this with a loop
+     * specialized to them, as long as it keeps the same contract.
+     * 
+     * @param maxPixels
+     *            The number of pixels to populate before returning
+     * @return The number of pixels populated, which is less than maxPixels
+     *         only if the image is finished
+     */
+    protected int populate(int maxPixels) {
+        int start = pixelsPlaced;
+        while (pixelsPlaced - start < maxPixels && !isFinished()) {
+            nextPixel();
+        }
+        return pixelsPlaced - start;
+    }
+
+    /**
+     * Frees everything the image generates with once it has been stopped,
+     * except its record, which holds the part of the image that was
+     * generated. Subclasses that hold big structures of their own should
+     * override this to drop them too, and call this. Once it has been called,
+     * nothing but getRecord(), getPixelsPlaced(), isFinished(), and
+     * isStopped() may be called.
+     */
+    protected void release() {
+        raster = null;
+        freeNeighbors = null;
+        saturated = null;
+        colorTracker = null;
+    }
+
+    /**
+     * Returns true if the image was stopped by its cancellation token before
+     * it was finished. Its record then holds every pixel populated before it
+     * stopped.
+     * 
+     * @return true if the image was stopped
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Gets the number of pixels that have been populated so far.
+     * 
+     * @return The number of pixels
+     */
+    public int getPixelsPlaced() {
+        return pixelsPlaced;
+    }
+
+    /**
+     * Builds a BufferedImage of the image as it is now, for rendering or
+     * exporting it. Pixels that haven't been populated yet are fully
+     * transparent. A new BufferedImage is built on every call, and nothing
+     * else in this class uses AWT.
+     * 
+     * @return The BufferedImage
+     */
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, raster, 0, width);
+        return image;
+    }
+
     /**
      * Returns the ImageRecord associated with this image.
      * 
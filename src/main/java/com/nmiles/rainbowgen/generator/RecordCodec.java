@@ -0,0 +1,222 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+
+/**
+ * The model shared by RecordEncoder and RecordDecoder, which compress the
+ * pixels of an image's record far below the 6 bytes each takes in binary.
+ * Every algorithm populates the neighbors of a pixel with the closest unused
+ * colors to its color, so consecutive pixels are usually close together in
+ * both space and color, and the codec stores each pixel as its difference
+ * from the one before it:
+ *
+ * - The position is a symbol for where the pixel is relative to the last
+ * one, within two pixels either way, which makes 24 symbols. The 25th, which
+ * would mean the same pixel again, is an escape, followed by the coordinates
+ * in full.
+ *
+ * - The color is the difference in each channel from the last color, in
+ * steps of the ColorTracker's scalar, since every color is a multiple of it.
+ * Each difference is zigzag coded, so small differences either way are small
+ * numbers, and split into its bit length and the bits below its top bit.
+ *
+ * The symbols and bit lengths go through an adaptive binary range coder, the
+ * kind LZMA uses, which learns how likely each is as the stream goes on. Each
+ * position symbol is coded in the context of the one before it, and the bit
+ * length of each channel in the context of the previous channel's, so the
+ * coder learns the shape of an algorithm's growth. The rest of the bits are
+ * close to random, and are stored as they are.
+ *
+ * The stream is split into chunks that can each be decoded as soon as they
+ * arrive, but the model carries over from chunk to chunk, so the chunks must
+ * be decoded in order by a single RecordDecoder. Each chunk is the number of
+ * pixels in it, as a varint, followed by the range coder's output, which is
+ * flushed at the end of every chunk.
+ *
+ * @author Nathan Miles
+ *
+ */
+abstract class RecordCodec {
+    /** The number of bits in a probability. */
+    static final int PROBABILITY_BITS = 11;
+
+    /** The probability that stands for certainty. */
+    static final int PROBABILITY_ONE = 1 << PROBABILITY_BITS;
+
+    /**
+     * How fast the probabilities adapt. Each bit moves its probability
+     * 1/2^this of the way towards itself.
+     */
+    static final int ADAPT_SHIFT = 5;
+
+    /** How far each way from the last pixel a position symbol reaches. */
+    static final int REACH = 2;
+
+    /** The number of positions on each side of the window of symbols. */
+    static final int SIDE = 2 * REACH + 1;
+
+    /** The symbol that says the coordinates follow in full. */
+    static final int ESCAPE = REACH * SIDE + REACH;
+
+    /** The number of bits in a position symbol. */
+    static final int POSITION_BITS = 5;
+
+    /** The number of bits in each coordinate after an escape. */
+    static final int COORDINATE_BITS = 12;
+
+    /** The number of bits in the bit length of a channel's difference. */
+    static final int LENGTH_BITS = 4;
+
+    /** The number of distinct bit lengths a channel's difference can have. */
+    static final int LENGTHS = 10;
+
+    /** The width of the image. */
+    final int width;
+
+    /** The height of the image. */
+    final int height;
+
+    /** How far each channel's value is shifted, as in the ColorTracker. */
+    final int colorShift;
+
+    /**
+     * The probabilities of the position symbols' bits, as a bit tree for
+     * every possible previous symbol.
+     */
+    private final short[][] positionModels = new short[SIDE * SIDE][1 << POSITION_BITS];
+
+    /**
+     * The probabilities of the bit lengths' bits, as a bit tree for every
+     * context: one for red, then one for green after every bit length of red,
+     * then one for blue after every bit length of green.
+     */
+    private final short[][] lengthModels = new short[1 + 2 * LENGTHS][1 << LENGTH_BITS];
+
+    /** The x coordinate of the last pixel. */
+    int lastX;
+
+    /** The y coordinate of the last pixel. */
+    int lastY;
+
+    /** The color of the last pixel, without its alpha. */
+    int lastColor;
+
+    /** The position symbol of the last pixel. */
+    int lastSymbol = ESCAPE;
+
+    /**
+     * Sets up the model for an image of the given size.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     */
+    RecordCodec(int width, int height) {
+        this.width = width;
+        this.height = height;
+        long cells = ColorTracker.cubeCells(width * height);
+        // the dimension of the cube is the cube root of the cells
+        int dimensionShift = (63 - Long.numberOfLeadingZeros(cells)) / 3;
+        colorShift = 8 - dimensionShift;
+        for (short[] model : positionModels) {
+            Arrays.fill(model, (short) (PROBABILITY_ONE / 2));
+        }
+        for (short[] model : lengthModels) {
+            Arrays.fill(model, (short) (PROBABILITY_ONE / 2));
+        }
+    }
+
+    /**
+     * Gets the bit tree for the position symbol that follows the last one.
+     *
+     * @return The bit tree
+     */
+    short[] positionModel() {
+        return positionModels[lastSymbol];
+    }
+
+    /**
+     * Gets the bit tree for the bit length of a channel's difference.
+     *
+     * @param channel
+     *            0 for red, 1 for green, 2 for blue
+     * @param previousLength
+     *            The bit length of the previous channel's difference, which
+     *            is ignored for red
+     * @return The bit tree
+     */
+    short[] lengthModel(int channel, int previousLength) {
+        return lengthModels[channel == 0 ? 0 : 1 + (channel - 1) * LENGTHS + previousLength];
+    }
+
+    /**
+     * Gets the position symbol of a pixel relative to the last one.
+     *
+     * @param x
+     *            The x coordinate of the pixel
+     * @param y
+     *            The y coordinate of the pixel
+     * @return The symbol, which is ESCAPE if the pixel is out of reach
+     */
+    int symbolOf(int x, int y) {
+        int dx = x - lastX;
+        int dy = y - lastY;
+        if (dx < -REACH || dx > REACH || dy < -REACH || dy > REACH) {
+            return ESCAPE;
+        }
+        return (dy + REACH) * SIDE + dx + REACH;
+    }
+
+    /**
+     * Zigzag codes a difference, so that 0, -1, 1, -2, 2... become 0, 1, 2,
+     * 3, 4...
+     *
+     * @param difference
+     *            The difference
+     * @return The zigzag code
+     */
+    static int zigzag(int difference) {
+        return (difference << 1) ^ (difference >> 31);
+    }
+
+    /**
+     * Undoes zigzag().
+     *
+     * @param code
+     *            The zigzag code
+     * @return The difference
+     */
+    static int unzigzag(int code) {
+        return (code >>> 1) ^ -(code & 1);
+    }
+
+    /**
+     * Gets the number of bits a zigzag code takes, without its leading zeros.
+     *
+     * @param code
+     *            The zigzag code
+     * @return The bit length, which is 0 for 0
+     */
+    static int bitLength(int code) {
+        return 32 - Integer.numberOfLeadingZeros(code);
+    }
+
+    /**
+     * Moves a probability towards the bit that was just coded.
+     *
+     * @param model
+     *            The probabilities
+     * @param index
+     *            The index of the probability
+     * @param bit
+     *            The bit
+     */
+    static void adapt(short[] model, int index, int bit) {
+        if (bit == 0) {
+            model[index] += (PROBABILITY_ONE - model[index]) >>> ADAPT_SHIFT;
+        } else {
+            model[index] -= model[index] >>> ADAPT_SHIFT;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * Decompresses the chunks made by a RecordEncoder for an image of the same
+ * size. See RecordCodec for the format. The chunks must be decoded in the
+ * order they were made, since the model carries over from one to the next.
+ *
+ * @author Nathan Miles
+ *
+ */
+public final class RecordDecoder extends RecordCodec {
+    /** The chunk being decoded. */
+    private byte[] chunk;
+
+    /** The position of the next byte to read from the chunk. */
+    private int position;
+
+    /** The width of the range coder's interval, unsigned. */
+    private int range;
+
+    /** Where the coded value is in the interval, unsigned. */
+    private int code;
+
+    /**
+     * Constructs a new RecordDecoder for an image of the given size.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     */
+    public RecordDecoder(int width, int height) {
+        super(width, height);
+    }
+
+    /**
+     * Decodes the next chunk.
+     *
+     * @param chunk
+     *            The chunk, as returned by RecordEncoder.endChunk()
+     * @return The pixels in the chunk, in order, 3 ints each: the x
+     *         coordinate, the y coordinate, and the color, with an alpha of
+     *         255
+     * @throws IllegalArgumentException
+     *             If the chunk ends too soon
+     */
+    public int[] decodeChunk(byte[] chunk) {
+        this.chunk = chunk;
+        position = 0;
+        int pixels = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = next();
+            pixels |= (b & 0x7F) << shift;
+            if (b < 0x80) {
+                break;
+            }
+        }
+        range = -1;
+        code = 0;
+        for (int i = 0; i < 5; i++) {
+            code = (code << 8) | next();
+        }
+        int[] decoded = new int[3 * pixels];
+        for (int i = 0; i < decoded.length; i += 3) {
+            int symbol = decodeTree(positionModel(), POSITION_BITS);
+            int x;
+            int y;
+            if (symbol == ESCAPE) {
+                x = decodeDirect(COORDINATE_BITS);
+                y = decodeDirect(COORDINATE_BITS);
+            } else {
+                x = lastX + symbol % SIDE - REACH;
+                y = lastY + symbol / SIDE - REACH;
+            }
+            lastSymbol = symbol;
+            lastX = x;
+            lastY = y;
+            int rgb = 0;
+            int previousLength = 0;
+            for (int channel = 0; channel < 3; channel++) {
+                int shift = 16 - 8 * channel;
+                int length = decodeTree(lengthModel(channel, previousLength), LENGTH_BITS);
+                int zigzag = length == 0 ? 0 : (1 << (length - 1)) | decodeDirect(length - 1);
+                int last = ((lastColor >>> shift) & 0xFF) >>> colorShift;
+                rgb |= ((last + unzigzag(zigzag)) << colorShift) << shift;
+                previousLength = length;
+            }
+            lastColor = rgb;
+            decoded[i] = x;
+            decoded[i + 1] = y;
+            decoded[i + 2] = 0xFF000000 | rgb;
+        }
+        this.chunk = null;
+        return decoded;
+    }
+
+    /**
+     * Decodes a symbol coded as a bit tree.
+     *
+     * @param model
+     *            The bit tree
+     * @param bits
+     *            The number of bits in the symbol
+     * @return The symbol
+     */
+    private int decodeTree(short[] model, int bits) {
+        int node = 1;
+        for (int i = 0; i < bits; i++) {
+            node = (node << 1) | decodeBit(model, node);
+        }
+        return node - (1 << bits);
+    }
+
+    /**
+     * Decodes a bit coded with an adaptive probability.
+     *
+     * @param model
+     *            The probabilities
+     * @param index
+     *            The index of the bit's probability
+     * @return The bit
+     */
+    private int decodeBit(short[] model, int index) {
+        int bound = (range >>> PROBABILITY_BITS) * model[index];
+        int bit;
+        if (Integer.compareUnsigned(code, bound) < 0) {
+            range = bound;
+            bit = 0;
+        } else {
+            code -= bound;
+            range -= bound;
+            bit = 1;
+        }
+        adapt(model, index, bit);
+        while ((range & 0xFF000000) == 0) {
+            range <<= 8;
+            code = (code << 8) | next();
+        }
+        return bit;
+    }
+
+    /**
+     * Decodes bits that were coded with a probability of one half.
+     *
+     * @param bits
+     *            The number of bits
+     * @return The bits, as the bottom bits of an int
+     */
+    private int decodeDirect(int bits) {
+        int value = 0;
+        for (int i = 0; i < bits; i++) {
+            range >>>= 1;
+            int bit = Integer.compareUnsigned(code, range) < 0 ? 0 : 1;
+            if (bit != 0) {
+                code -= range;
+            }
+            value = (value << 1) | bit;
+            while ((range & 0xFF000000) == 0) {
+                range <<= 8;
+                code = (code << 8) | next();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads the next byte of the chunk.
+     *
+     * @return The byte, from 0 to 255
+     * @throws IllegalArgumentException
+     *             If there are no more bytes
+     */
+    private int next() {
+        if (position == chunk.length) {
+            throw new IllegalArgumentException("The chunk ends too soon");
+        }
+        return chunk[position++] & 0xFF;
+    }
+}
@@ -0,0 +1,239 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Arrays;
+
+/**
+ * Compresses the pixels of an image's record, in the order they were
+ * populated, one chunk at a time. See RecordCodec for the format. Pixels are
+ * added with addPixel(), and endChunk() returns everything added since the
+ * last chunk, ready to be sent or stored. The chunks must be decoded in the
+ * same order by a RecordDecoder for an image of the same size.
+ *
+ * @author Nathan Miles
+ *
+ */
+public final class RecordEncoder extends RecordCodec {
+    /** The size the output buffer starts at. */
+    private static final int INITIAL_BUFFER = 1 << 12;
+
+    /** The mask of the bits of a color that must be 0 for this image. */
+    private final int unusedBits;
+
+    /** The range coder's output for the chunk so far. */
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+
+    /** The number of bytes in the buffer. */
+    private int size;
+
+    /** The bottom of the range coder's interval, with a carry in bit 32. */
+    private long low;
+
+    /** The width of the range coder's interval, unsigned. */
+    private int range = -1;
+
+    /** The byte that is held back in case a carry reaches it. */
+    private int cache;
+
+    /** The number of bytes held back, counting the cache. */
+    private long cacheSize = 1;
+
+    /** The number of pixels in the chunk so far. */
+    private int pixels;
+
+    /**
+     * Constructs a new RecordEncoder for an image of the given size.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     */
+    public RecordEncoder(int width, int height) {
+        super(width, height);
+        int channelBits = (1 << colorShift) - 1;
+        unusedBits = (channelBits << 16) | (channelBits << 8) | channelBits;
+    }
+
+    /**
+     * Adds a pixel to the chunk.
+     *
+     * @param x
+     *            The x coordinate of the pixel
+     * @param y
+     *            The y coordinate of the pixel
+     * @param color
+     *            The color of the pixel. Its alpha is ignored.
+     * @throws IllegalArgumentException
+     *             If the color can't have come from a ColorTracker for an
+     *             image of this size
+     */
+    public void addPixel(int x, int y, int color) {
+        int rgb = color & 0xFFFFFF;
+        if ((rgb & unusedBits) != 0) {
+            throw new IllegalArgumentException("Not a color of this image: " + Integer.toHexString(rgb));
+        }
+        int symbol = symbolOf(x, y);
+        encodeTree(positionModel(), POSITION_BITS, symbol);
+        if (symbol == ESCAPE) {
+            encodeDirect(x, COORDINATE_BITS);
+            encodeDirect(y, COORDINATE_BITS);
+        }
+        lastSymbol = symbol;
+        lastX = x;
+        lastY = y;
+        int previousLength = 0;
+        for (int channel = 0; channel < 3; channel++) {
+            int shift = 16 - 8 * channel;
+            int value = ((rgb >>> shift) & 0xFF) >>> colorShift;
+            int last = ((lastColor >>> shift) & 0xFF) >>> colorShift;
+            int code = zigzag(value - last);
+            int length = bitLength(code);
+            encodeTree(lengthModel(channel, previousLength), LENGTH_BITS, length);
+            // the top bit of the code is always 1, so it is left out
+            if (length > 1) {
+                encodeDirect(code, length - 1);
+            }
+            previousLength = length;
+        }
+        lastColor = rgb;
+        pixels++;
+    }
+
+    /**
+     * Gets the number of pixels added since the last chunk.
+     *
+     * @return The number of pixels
+     */
+    public int getPixelsInChunk() {
+        return pixels;
+    }
+
+    /**
+     * Finishes the chunk, and starts the next one. The model carries over to
+     * the next chunk.
+     *
+     * @return The chunk: the number of pixels in it as a varint, then the
+     *         range coder's output
+     */
+    public byte[] endChunk() {
+        for (int i = 0; i < 5; i++) {
+            shiftLow();
+        }
+        byte[] header = new byte[5];
+        int headerSize = 0;
+        for (int count = pixels; ; count >>>= 7) {
+            if (count < 0x80) {
+                header[headerSize++] = (byte) count;
+                break;
+            }
+            header[headerSize++] = (byte) (count | 0x80);
+        }
+        byte[] chunk = new byte[headerSize + size];
+        System.arraycopy(header, 0, chunk, 0, headerSize);
+        System.arraycopy(buffer, 0, chunk, headerSize, size);
+        size = 0;
+        low = 0;
+        range = -1;
+        cache = 0;
+        cacheSize = 1;
+        pixels = 0;
+        return chunk;
+    }
+
+    /**
+     * Codes a symbol as a bit tree, from its top bit down, with each bit's
+     * probability depending on the bits above it.
+     *
+     * @param model
+     *            The bit tree
+     * @param bits
+     *            The number of bits in the symbol
+     * @param symbol
+     *            The symbol
+     */
+    private void encodeTree(short[] model, int bits, int symbol) {
+        int node = 1;
+        for (int i = bits - 1; i >= 0; i--) {
+            int bit = (symbol >>> i) & 1;
+            encodeBit(model, node, bit);
+            node = (node << 1) | bit;
+        }
+    }
+
+    /**
+     * Codes a bit with an adaptive probability.
+     *
+     * @param model
+     *            The probabilities
+     * @param index
+     *            The index of the bit's probability
+     * @param bit
+     *            The bit
+     */
+    private void encodeBit(short[] model, int index, int bit) {
+        int bound = (range >>> PROBABILITY_BITS) * model[index];
+        if (bit == 0) {
+            range = bound;
+        } else {
+            low += bound & 0xFFFFFFFFL;
+            range -= bound;
+        }
+        adapt(model, index, bit);
+        while ((range & 0xFF000000) == 0) {
+            range <<= 8;
+            shiftLow();
+        }
+    }
+
+    /**
+     * Codes the bottom bits of a value, each with a probability of one half.
+     *
+     * @param value
+     *            The value
+     * @param bits
+     *            The number of bits
+     */
+    private void encodeDirect(int value, int bits) {
+        for (int i = bits - 1; i >= 0; i--) {
+            range >>>= 1;
+            if (((value >>> i) & 1) != 0) {
+                low += range & 0xFFFFFFFFL;
+            }
+            while ((range & 0xFF000000) == 0) {
+                range <<= 8;
+                shiftLow();
+            }
+        }
+    }
+
+    /**
+     * Moves the top byte of low out to the buffer, once no carry can change
+     * it any more.
+     */
+    private void shiftLow() {
+        if (low < 0xFF000000L || low > 0xFFFFFFFFL) {
+            int carry = (int) (low >>> 32);
+            int held = cache;
+            do {
+                write(held + carry);
+                held = 0xFF;
+            } while (--cacheSize != 0);
+            cache = (int) (low >>> 24) & 0xFF;
+        }
+        cacheSize++;
+        low = (low & 0xFFFFFFL) << 8;
+    }
+
+    /**
+     * Adds a byte to the buffer, growing it if it is full.
+     *
+     * @param b
+     *            The byte
+     */
+    private void write(int b) {
+        if (size == buffer.length) {
+            buffer = Arrays.copyOf(buffer, size * 2);
+        }
+        buffer[size++] = (byte) b;
+    }
+}
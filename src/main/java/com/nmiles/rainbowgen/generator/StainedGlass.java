@@ -1,8 +1,5 @@
 package com.nmiles.rainbowgen.generator;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * This one of the simplest implementations of RandomImage. It works by choosing
  * a number of starting points, and then growing an image by choosing an
@@ -16,17 +13,32 @@ import java.util.List;
  * @author Nathan Miles
  *
  */
-public class StainedGlass extends RandomImage {
+public class StainedGlass extends EdgeListImage {
     /** The initial size of the edgeList */
     private static final int INITIAL_LIST_SIZE = 50000;
 
     /**
      * Used to keep track of all pixels which comprise the "edge" of the image.
      * More formally, each pixel with at least one unpopulated neighbor is in
-     * this list. It may (and after a couple of iterations, most certainly does)
-     * contain pixels which do have all of their neighbors populated.
+     * this list. Pixels are evicted as soon as their last neighbor is
+     * populated, so it never holds a pixel that can't be given a neighbor.
+     * Pixels are packed as described in RandomImage.pixelAt(). Since pixels
+     * are chosen from it at random, its order doesn't matter, and pixels are
+     * removed by moving the last pixel into their place.
+     */
+    private IntList edgeList = new IntList(INITIAL_LIST_SIZE);
+
+    /**
+     * The index of every pixel in the edgeList. The values for pixels that
+     * aren't in it are meaningless.
      */
-    private List<Pixel> edgeList;
+    private int[] edgeIndex = new int[width * height];
+
+    /** The buffer that the unpopulated neighbors are written to at each step. */
+    private IntList neighbors = new IntList(8);
+
+    /** The buffer that the closest colors are written to at each step. */
+    private IntList closestColors = new IntList();
 
     /**
      * Initializes the image, adds a number of initial points equal to
@@ -38,69 +50,130 @@ public class StainedGlass extends RandomImage {
      * @param startingPoints
      */
     public StainedGlass(int width, int height, int startingPoints) {
-        super(width, height);
-        edgeList = new ArrayList<>(INITIAL_LIST_SIZE);
+        this(width, height, startingPoints, new ImageOptions());
+    }
+
+    /**
+     * Initializes the image exactly as StainedGlass(int, int, int) does, but
+     * with the given options.
+     * 
+     * @param width
+     * @param height
+     * @param startingPoints
+     * @param options
+     */
+    public StainedGlass(int width, int height, int startingPoints, ImageOptions options) {
+        super(width, height, options);
+        plantRandom(Math.max(1, startingPoints));
+    }
+
+    /**
+     * Initializes one tile of a TiledImage, with no starting points. The
+     * TiledImage plants them.
+     * 
+     * @param width
+     * @param height
+     * @param tile
+     */
+    StainedGlass(int width, int height, Tile tile) {
+        super(width, height, tile);
+    }
 
-        int newX = rand.nextInt(width);
-        int newY = rand.nextInt(height);
-        int newColor = colorTracker.getRandomUnused();
-        updateImage(newX, newY, newColor);
-        edgeList.add(new Pixel(newX, newY));
-        int counter = 1;
-        while (counter < startingPoints) {
-            newX = rand.nextInt(width);
-            newY = rand.nextInt(height);
-            if (image.getRGB(newX, newY) != -33554432) {
-                continue;
-            }
-            newColor = colorTracker.getRandomUnused();
-            updateImage(newX, newY, newColor);
-            edgeList.add(new Pixel(newX, newY));
-            counter++;
+    /**
+     * Creates a new StainedGlass exactly as StainedGlass(int, int, int,
+     * ImageOptions) does, but if the options ask for more than one thread, it
+     * is generated as a TiledImage instead, or as a ConcurrentStainedGlass if
+     * the options ask for concurrent seeds.
+     * 
+     * @param width
+     * @param height
+     * @param startingPoints
+     * @param options
+     * @return The new image
+     */
+    public static RandomImage create(int width, int height, int startingPoints, ImageOptions options) {
+        if (options.getThreads() <= 1) {
+            return new StainedGlass(width, height, startingPoints, options);
+        }
+        if (options.isConcurrentSeeds()) {
+            return new ConcurrentStainedGlass(width, height, startingPoints, options);
         }
+        TiledImage image = new TiledImage(width, height, options, StainedGlass::new);
+        image.plantRandom(Math.max(1, startingPoints));
+        return image;
     }
 
     /**
      * Tries to populate the next group of pixels in the image. It picks a
-     * random pixel from the edgeList, then gets a List of all unpopulated
-     * neighbors. Then it gets a List of possible colors to add, and it steps
+     * random pixel from the edgeList, then gets a list of all unpopulated
+     * neighbors. Then it gets a list of possible colors to add, and it steps
      * through and randomly populates pixels from the first List with colors
      * form the second List without repeats. Any pixels added to the image are
-     * also added to the edgeList.
+     * also added to the edgeList, and any pixels that lost their last empty
+     * neighbor are evicted from it.
      */
     @Override
     public void nextPixel() {
-        // pick a random index in the list
-        int indexToGet = rand.nextInt(edgeList.size());
-        // get it
-        Pixel toAddTo = edgeList.get(indexToGet);
-        // get its neighbors
-        List<Pixel> neighbors = toAddTo.getPossibilities(image);
-        // if no neighbors, remove it and return
-        if (neighbors.size() == 0) {
-            edgeList.remove(indexToGet);
-            return;
-        }
+        // pick a random pixel in the list
+        int toAddTo = edgeList.get(rand.nextInt(edgeList.size()));
+        // get its neighbors, of which it always has at least one
+        getPossibilities(toAddTo, neighbors);
         // get the list of possible colors
-        List<Integer> closestColors = colorTracker.getClosestColors(image.getRGB(toAddTo.getX(), toAddTo.getY()));
+        colorTracker.getClosestColors(getColor(toAddTo), closestColors);
         // as long as both lists still have members, populate pixels randomly
         while (neighbors.size() > 0 && closestColors.size() > 0) {
             // get a random pixel
-            Pixel newPixel = neighbors.remove(rand.nextInt(neighbors.size()));
+            int newPixel = neighbors.removeSwap(rand.nextInt(neighbors.size()));
             // get a random color
-            int newColor = closestColors.remove(rand.nextInt(closestColors.size()));
+            int newColor = closestColors.removeSwap(rand.nextInt(closestColors.size()));
             // add it to the image
-            updateImage(newPixel.getX(), newPixel.getY(), newColor);
+            updateImage(newPixel, newColor);
             // add it to the edgeList
-            edgeList.add(newPixel);
+            addToEdge(newPixel);
         }
-        // if all of the initial pixel's neighbors are now populated, remove it
-        // form the list
-        if (neighbors.size() == 0) {
-            edgeList.remove(indexToGet);
+        // remove the pixels that have no empty neighbors left
+        evictSaturated();
+    }
+
+    /**
+     * Adds a pixel to the end of the edgeList.
+     * 
+     * @param pixel
+     *            The packed pixel to add
+     */
+    @Override
+    protected void addToEdge(int pixel) {
+        edgeIndex[pixel] = edgeList.size();
+        edgeList.add(pixel);
+    }
+
+    /**
+     * Removes a saturated pixel from the edgeList by moving the last pixel in
+     * the list into its place.
+     * 
+     * @param pixel
+     *            The packed pixel to remove
+     */
+    @Override
+    protected void evict(int pixel) {
+        int index = edgeIndex[pixel];
+        edgeList.removeSwap(index);
+        if (index < edgeList.size()) {
+            edgeIndex[edgeList.get(index)] = index;
         }
     }
     
+    /**
+     * Drops the edgeList, along with everything RandomImage.release() drops.
+     * The empty edgeList makes isFinished() return true.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        edgeList = new IntList();
+        edgeIndex = null;
+    }
+
     /**
      * Returns true if the image is finished, false if not.
      * 
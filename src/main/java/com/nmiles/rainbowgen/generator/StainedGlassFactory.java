@@ -0,0 +1,50 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ImageFactory for StainedGlass images.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class StainedGlassFactory implements ImageFactory {
+    /**
+     * The CPU time StainedGlass takes per pixel, in nanoseconds, as measured
+     * at 1024x1024 on a single core.
+     */
+    private static final double NANOS_PER_PIXEL = 2000;
+
+    /**
+     * The memory StainedGlass's own structures take per pixel at their peak,
+     * in bytes. It is all in its edgeIndex, since its edgeList never holds
+     * more than about 1% of the pixels.
+     */
+    private static final double BYTES_PER_PIXEL = 4;
+
+    /** The parameters StainedGlass takes. */
+    private static final List<ImageParameter> PARAMETERS = Collections.singletonList(
+            new ImageParameter("startingPoints", 1, RandomImage.MAX_COLORS, "The number of regions to grow"));
+
+    @Override
+    public String getType() {
+        return "stainedGlass";
+    }
+
+    @Override
+    public List<ImageParameter> getParameters() {
+        return PARAMETERS;
+    }
+
+    @Override
+    public ImageCost estimateCost(int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+        return ImageCost.estimate(width, height, options, NANOS_PER_PIXEL, BYTES_PER_PIXEL);
+    }
+
+    @Override
+    public RandomImage create(int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+        return StainedGlass.create(width, height, parameters.get("startingPoints"), options);
+    }
+}
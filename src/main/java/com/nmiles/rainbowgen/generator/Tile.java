@@ -0,0 +1,82 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * The things a RandomImage generates with that don't depend on the algorithm:
+ * where its colors come from, where its random numbers come from, where its
+ * pixels are recorded, and what stops it early. A standalone image is a
+ * single tile that covers itself, and builds all of them from its
+ * ImageOptions. A TiledImage is split into several tiles, each generated on
+ * its own thread by its own instance of an algorithm, and it hands each of
+ * them their share of its colors, their own random stream, a record that
+ * feeds its own, and its own cancellation token.
+ *
+ * @author Nathan Miles
+ *
+ */
+final class Tile {
+    /** The colors the tile may use. */
+    final ColorTracker colorTracker;
+
+    /** The tile's random number generator. */
+    final XoshiroRandom rand;
+
+    /** Where the tile's pixels are recorded. */
+    final ImageRecord record;
+
+    /** The TiledImage the tile is part of, or null for a standalone image. */
+    final TiledImage owner;
+
+    /** The index of the tile in its owner, from the top. */
+    final int index;
+
+    /** The token that stops the tile before it is finished. */
+    final CancellationToken cancellation;
+
+    /**
+     * Constructs the single tile of a standalone image. The random number
+     * generator is seeded from the options, and the ColorTracker's generator
+     * is split off of it, so the image depends on nothing but its seed.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param options
+     *            The options to generate the image with
+     */
+    Tile(int width, int height, ImageOptions options) {
+        rand = new XoshiroRandom(options.getSeed());
+        colorTracker = ColorTracker.create(width * height, options.getTrackerType(), rand.split());
+        colorTracker.setDistanceMode(options.getDistanceMode());
+        record = new ImageRecord(width * height, options.getRecordSpillBytes());
+        owner = null;
+        index = 0;
+        cancellation = options.getCancellationToken();
+    }
+
+    /**
+     * Constructs one tile of a TiledImage.
+     *
+     * @param colorTracker
+     *            The tile's share of the colors
+     * @param rand
+     *            The tile's random number generator
+     * @param record
+     *            Where the tile's pixels are recorded
+     * @param owner
+     *            The TiledImage the tile is part of
+     * @param index
+     *            The index of the tile in its owner, from the top
+     * @param cancellation
+     *            The owner's cancellation token
+     */
+    Tile(ColorTracker colorTracker, XoshiroRandom rand, ImageRecord record, TiledImage owner, int index,
+            CancellationToken cancellation) {
+        this.colorTracker = colorTracker;
+        this.rand = rand;
+        this.record = record;
+        this.owner = owner;
+        this.index = index;
+        this.cancellation = cancellation;
+    }
+}
@@ -0,0 +1,255 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A RandomImage that is generated on several threads at once. The image is
+ * split into horizontal bands, or tiles, one per thread, and each tile is
+ * generated by its own instance of the algorithm, exactly as if it were a
+ * whole image of its own. The tiles don't share anything while they grow:
+ *
+ * - Each tile gets its own share of the colors. The colors of the whole image
+ * are dealt out at random to the tiles (see BitSetColorTracker.partition()),
+ * so every tile can still find colors close to any other color, and no color
+ * is used by two tiles.
+ *
+ * - Each tile gets its own random stream, split off of the image's.
+ *
+ * - Each tile records its pixels on its own, and passes each finished chunk
+ * on to the image's record.
+ *
+ * What makes the tiles grow as one image, rather than as a mosaic of separate
+ * ones, is that growth crosses the borders between them. Whenever a tile
+ * populates a pixel on its top or bottom row, the pixel across the border is
+ * handed over to the tile on the other side, which populates it with a color
+ * close to the handed over one and adds it to its edge list, just as if it
+ * had grown there. So growth flows from tile to tile, and a tile that has no
+ * starting point of its own waits until growth reaches it.
+ *
+ * The tiles' trackers are always BitSetColorTrackers, whatever the options
+ * say, since each one needs a cube as big as the whole image's, and a cube of
+ * ints for every thread would take far too much memory.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class TiledImage extends ParallelImage {
+    /**
+     * How long a thread with nothing to grow waits for a pixel to be handed
+     * over before checking whether the image failed, in milliseconds.
+     */
+    private static final long WAIT_MILLIS = 10;
+
+    /**
+     * Constructs the image for a tile. It is implemented by the package
+     * private constructors of the algorithms that take a Tile.
+     *
+     * @author Nathan Miles
+     *
+     */
+    interface TileFactory {
+        /**
+         * Constructs the image for a tile, without any starting points.
+         *
+         * @param width
+         *            The width of the tile
+         * @param height
+         *            The height of the tile
+         * @param tile
+         *            The tile
+         * @return The image
+         */
+        EdgeListImage create(int width, int height, Tile tile);
+    }
+
+    /** The image of every tile, from the top. */
+    private EdgeListImage[] tiles;
+
+    /**
+     * The top row of every tile, from the top. There is one more entry than
+     * there are tiles, which holds the height of the image.
+     */
+    private int[] tops;
+
+    /**
+     * The pixels handed over to every tile and not yet populated. Each one is
+     * packed into a long, with the packed pixel in the tile in the top 31
+     * bits, then a bit that is set if it was handed over from the tile above,
+     * and the color of the pixel across the border in the bottom 32 bits.
+     */
+    private List<BlockingQueue<Long>> inboxes = new ArrayList<>();
+
+    /**
+     * Constructs a new TiledImage, split into as many tiles as the options ask
+     * for threads, or one per row if there are more threads than rows. No
+     * pixels are planted. Use the create() methods of the algorithms instead
+     * of calling this directly.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param options
+     *            The options to generate the image with
+     * @param factory
+     *            Constructs the image for each tile
+     */
+    TiledImage(int width, int height, ImageOptions options, TileFactory factory) {
+        super(width, height, options);
+        int count = Math.max(1, Math.min(options.getThreads(), height));
+        tops = new int[count + 1];
+        int[] sizes = new int[count];
+        for (int i = 0; i <= count; i++) {
+            tops[i] = (int) ((long) i * height / count);
+        }
+        for (int i = 0; i < count; i++) {
+            sizes[i] = width * (tops[i + 1] - tops[i]);
+        }
+        BitSetColorTracker colors = new BitSetColorTracker(width * height, rand.split());
+        colors.setDistanceMode(options.getDistanceMode());
+        BitSetColorTracker[] shares = colors.partition(sizes);
+        tiles = new EdgeListImage[count];
+        for (int i = 0; i < count; i++) {
+            ImageRecord tileRecord = newWorkerRecord(sizes[i], tops[i]);
+            inboxes.add(new LinkedBlockingQueue<Long>());
+            Tile tile = new Tile(shares[i], rand.split(), tileRecord, this, i, cancellation);
+            tiles[i] = factory.create(width, tops[i + 1] - tops[i], tile);
+        }
+    }
+
+    /**
+     * Gets the number of tiles the image is split into, which is also the
+     * number of threads.
+     *
+     * @return The number of tiles
+     */
+    @Override
+    protected int getWorkerCount() {
+        return tiles.length;
+    }
+
+    /**
+     * Finds the tile that holds the given row.
+     *
+     * @param y
+     *            The row
+     * @return The index of the tile
+     */
+    private int tileAt(int y) {
+        int tile = 0;
+        while (tops[tile + 1] <= y) {
+            tile++;
+        }
+        return tile;
+    }
+
+    /**
+     * Plants a pixel in whichever tile holds it. This must only be called
+     * before the first step().
+     *
+     * @param pixel
+     *            The packed pixel. It must be empty.
+     */
+    @Override
+    protected void plant(int pixel) {
+        int y = pixel / width;
+        int tile = tileAt(y);
+        tiles[tile].plant(tiles[tile].pixelAt(pixel % width, y - tops[tile]));
+        countPlanted();
+    }
+
+    @Override
+    protected boolean isEmpty(int pixel) {
+        int y = pixel / width;
+        int tile = tileAt(y);
+        return tiles[tile].isEmpty(tiles[tile].pixelAt(pixel % width, y - tops[tile]));
+    }
+
+    /**
+     * Hands the pixel across a tile's border over to the tile on the other
+     * side. It is called by the tile's thread whenever it populates a pixel
+     * on its top or bottom row.
+     *
+     * @param from
+     *            The index of the tile the pixel was populated in
+     * @param x
+     *            The x coordinate of the pixel
+     * @param up
+     *            true if the pixel is on the tile's top row, false if it is on
+     *            its bottom row
+     * @param color
+     *            The color of the pixel
+     */
+    void handOff(int from, int x, boolean up, int color) {
+        int to = up ? from - 1 : from + 1;
+        if (to < 0 || to >= tiles.length) {
+            return;
+        }
+        EdgeListImage tile = tiles[to];
+        int pixel = tile.pixelAt(x, up ? tile.height - 1 : 0);
+        inboxes.get(to).add(((long) pixel << 33) | (up ? 0 : 1L << 32) | (color & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Generates one tile until it is completely populated. This is what each
+     * thread runs. Between batches, it populates every pixel that has been
+     * handed over to the tile. When the tile has nothing to grow from, which
+     * happens when growth hasn't reached it yet, it waits for a pixel to be
+     * handed over.
+     *
+     * @param index
+     *            The index of the tile
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting
+     */
+    @Override
+    protected void generate(int index) throws InterruptedException {
+        EdgeListImage tile = tiles[index];
+        BlockingQueue<Long> inbox = inboxes.get(index);
+        int pixels = tile.width * tile.height;
+        while (tile.pixelsPlaced < pixels && !shouldStop()) {
+            int before = tile.pixelsPlaced;
+            Long handed = tile.isFinished() ? inbox.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS) : inbox.poll();
+            for (; handed != null; handed = inbox.poll()) {
+                boolean fromAbove = (handed & (1L << 32)) != 0;
+                tile.receive((int) (handed >>> 33), (int) handed.longValue(), fromAbove ? index - 1 : index + 1);
+            }
+            tile.step(BATCH_PIXELS);
+            report(tile.pixelsPlaced - before);
+        }
+        tile.getRecord().makeFinal();
+    }
+
+    /**
+     * Waits for the threads to stop, then drops the tiles and whatever was
+     * left in their inboxes. The tiles that stopped themselves have already
+     * released their own state.
+     */
+    @Override
+    protected void release() {
+        super.release();
+        tiles = null;
+        inboxes = null;
+    }
+
+    /**
+     * Builds a BufferedImage of the image as it is now, from the rasters of
+     * the tiles. If the threads are running, it may catch some of them in the
+     * middle of a batch.
+     *
+     * @return The BufferedImage
+     */
+    @Override
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < tiles.length; i++) {
+            image.setRGB(0, tops[i], width, tiles[i].height, tiles[i].raster, 0, width);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,17 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * The ways a RandomImage can store the colors it hasn't used yet. They all
+ * produce the same kinds of images, but have different memory and speed
+ * characteristics.
+ * 
+ * @author Nathan Miles
+ *
+ */
+public enum TrackerType {
+    /** A flat int array of the cube, plus a list of unused colors. 8 bytes per color. */
+    ARRAY,
+
+    /** A bit per color, laid out in Morton order. 1 bit per color. */
+    BITSET
+}
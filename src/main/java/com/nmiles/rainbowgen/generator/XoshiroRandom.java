@@ -0,0 +1,179 @@
+package com.nmiles.rainbowgen.generator;
+
+/**
+ * A fast, seedable random number generator that can be split into
+ * independent streams. It implements xoshiro256** by David Blackman and
+ * Sebastiano Vigna, which has a period of 2^256 - 1 and passes every standard
+ * statistical test, while costing only a few shifts, rotates, and XORs per
+ * number. See http://prng.di.unimi.it/ for the reference implementation.
+ *
+ * Every image is generated from a single seed, so the same seed and the same
+ * parameters always give the same image. Work that needs its own generator,
+ * such as a ColorTracker or a thread, gets one from split(), which is just as
+ * reproducible.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class XoshiroRandom {
+    /**
+     * The polynomial that advances the state by 2^128 numbers. See jump().
+     */
+    private static final long[] JUMP = { 0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL,
+            0xa9582618e03fc9aaL, 0x39abdc4529b1661cL };
+
+    /** The first word of the state. */
+    private long s0;
+
+    /** The second word of the state. */
+    private long s1;
+
+    /** The third word of the state. */
+    private long s2;
+
+    /** The fourth word of the state. */
+    private long s3;
+
+    /**
+     * Constructs a new XoshiroRandom from the given seed. The seed is expanded
+     * to the 256 bits of state with SplitMix64, as its authors recommend, so
+     * that similar seeds still give unrelated streams and no seed gives the
+     * all-zero state.
+     *
+     * @param seed
+     *            The seed to use
+     */
+    public XoshiroRandom(long seed) {
+        s0 = splitMix(seed += 0x9e3779b97f4a7c15L);
+        s1 = splitMix(seed += 0x9e3779b97f4a7c15L);
+        s2 = splitMix(seed += 0x9e3779b97f4a7c15L);
+        s3 = splitMix(seed + 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * Constructs a new XoshiroRandom with exactly the given state.
+     *
+     * @param s0
+     *            The first word of the state
+     * @param s1
+     *            The second word of the state
+     * @param s2
+     *            The third word of the state
+     * @param s3
+     *            The fourth word of the state
+     */
+    XoshiroRandom(long s0, long s1, long s2, long s3) {
+        this.s0 = s0;
+        this.s1 = s1;
+        this.s2 = s2;
+        this.s3 = s3;
+    }
+
+    /**
+     * Scrambles one step of SplitMix64's counter into a well mixed value.
+     *
+     * @param z
+     *            The counter
+     * @return The mixed value
+     */
+    private static long splitMix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns a random long. All 2^64 values are equally likely.
+     *
+     * @return The random number generated
+     */
+    public long nextLong() {
+        long result = Long.rotateLeft(s1 * 5, 7) * 9;
+        long t = s1 << 17;
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+        return result;
+    }
+
+    /**
+     * Returns a random integer in the range of 0 (inclusive) and max
+     * (exclusive). Every value in the range is exactly equally likely. It
+     * uses Lemire's method: the top 32 bits of a random long are multiplied
+     * by max, and the top half of the product is the result. The few
+     * products that would make some results more likely than others are
+     * detected from the bottom half and rejected, which takes a division only
+     * in the rare case that a product is close enough to need checking.
+     *
+     * @param max
+     *            The exclusive maximum value to return. It must be positive.
+     * @return The random number generated
+     */
+    public int nextInt(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        long product = (nextLong() >>> 32) * max;
+        if ((product & 0xFFFFFFFFL) < max) {
+            // 2^32 % max, the number of products to reject
+            long threshold = (0x100000000L - max) % max;
+            while ((product & 0xFFFFFFFFL) < threshold) {
+                product = (nextLong() >>> 32) * max;
+            }
+        }
+        return (int) (product >>> 32);
+    }
+
+    /**
+     * Returns a random double in the range of 0 (exclusive) and 1 (inclusive).
+     * The lower bound is excluded so that the result can always be passed to
+     * Math.log().
+     *
+     * @return The random number generated
+     */
+    public double nextDoubleNonZero() {
+        return ((nextLong() >>> 11) + 1) * 0x1.0p-53;
+    }
+
+    /**
+     * Advances the state by 2^128 numbers, as if nextLong() had been called
+     * that many times. Streams that start 2^128 numbers apart never overlap
+     * in practice.
+     */
+    public void jump() {
+        long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+        for (long word : JUMP) {
+            for (int bit = 0; bit < 64; bit++) {
+                if ((word & (1L << bit)) != 0) {
+                    t0 ^= s0;
+                    t1 ^= s1;
+                    t2 ^= s2;
+                    t3 ^= s3;
+                }
+                nextLong();
+            }
+        }
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+    }
+
+    /**
+     * Splits off an independent stream. The returned generator continues
+     * exactly where this one is, and this one jumps ahead by 2^128 numbers,
+     * so the two never overlap. Splitting is deterministic, so a generator
+     * split in the same order from the same seed always gives the same
+     * streams.
+     *
+     * @return The new generator
+     */
+    public XoshiroRandom split() {
+        XoshiroRandom split = new XoshiroRandom(s0, s1, s2, s3);
+        jump();
+        return split;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.GrizzlyFuture;
 import org.glassfish.grizzly.websockets.DataFrame;
 import org.glassfish.grizzly.websockets.WebSocket;
 
@@ -19,7 +20,11 @@ import org.glassfish.grizzly.websockets.WebSocket;
  * and blocking other WebSockets from sending messages until the first
  * WebSocket's messages have all been sent. To use it, register WebSocket
  * connections with register() and use the return value, a
- * ConcurrentLinkedQueue, to enqueue messages to be sent.
+ * ConcurrentLinkedQueue, to enqueue messages to be sent. A message is either a
+ * String, which is sent as a text frame, or a byte array, which is sent as a
+ * binary frame. A WebSocket may be registered with a SendListener, which is
+ * told when each of its messages has been sent and how long that took, so
+ * that the sender can pace itself to the connection.
  * 
  * The implementing program MUST call remove() for each WebSocket that it has
  * registered. The WebSocket's onClose() method is a perfect place to do this.
@@ -86,7 +91,7 @@ public class ChunkScheduler implements CompletionHandler<DataFrame>, Runnable {
                 }
                 ListIterator<SocketQueue> iter = socketList.listIterator();
                 SocketQueue current;
-                String message;
+                Object message;
                 // send the first message
                 while (iter.hasNext()) {
                     current = iter.next();
@@ -97,7 +102,7 @@ public class ChunkScheduler implements CompletionHandler<DataFrame>, Runnable {
                          * This class extends CompletionHandler, so we may
                          * notify this class on completion.
                          */
-                        current.socket.send(message).addCompletionHandler(this);
+                        current.send(message).addCompletionHandler(this);
                         sentOne = true;
                         break;
                     }
@@ -107,7 +112,7 @@ public class ChunkScheduler implements CompletionHandler<DataFrame>, Runnable {
                     current = iter.next();
                     message = current.messages.poll();
                     if (message != null) {
-                        current.socket.send(message);
+                        current.send(message);
                     }
                 }
 
@@ -120,6 +125,23 @@ public class ChunkScheduler implements CompletionHandler<DataFrame>, Runnable {
         }
     }
 
+    /**
+     * Sends a message as a text frame if it is a String, or as a binary frame
+     * if it is a byte array.
+     * 
+     * @param socket
+     *            The WebSocket to send the message to
+     * @param message
+     *            The message
+     * @return The future of the frame
+     */
+    private static GrizzlyFuture<DataFrame> send(WebSocket socket, Object message) {
+        if (message instanceof byte[]) {
+            return socket.send((byte[]) message);
+        }
+        return socket.send((String) message);
+    }
+
     /**
      * Invoked when this class is run by the ExecutorService. It starts a batch
      * of messages.
@@ -177,15 +199,31 @@ public class ChunkScheduler implements CompletionHandler<DataFrame>, Runnable {
      * @return The ConcurrentLinkedQueue that the calling method must use to
      *         submit messages
      */
-    public ConcurrentLinkedQueue<String> register(WebSocket socket) {
+    public ConcurrentLinkedQueue<Object> register(WebSocket socket) {
+        return register(socket, null);
+    }
+
+    /**
+     * Registers a WebSocket with the ChunkScheduler, as register(WebSocket)
+     * does, with a listener that is told when each message in the returned
+     * queue has been sent.
+     * 
+     * @param socket
+     *            The WebSocket to register
+     * @param listener
+     *            The listener, or null for none
+     * @return The ConcurrentLinkedQueue that the calling method must use to
+     *         submit messages
+     */
+    public ConcurrentLinkedQueue<Object> register(WebSocket socket, SendListener listener) {
         boolean shouldStartRunner = false;
-        ConcurrentLinkedQueue<String> retQueue = null;
+        ConcurrentLinkedQueue<Object> retQueue = null;
         try {
             listLock.writeLock().lock();
             if (socketList.isEmpty()) {
                 shouldStartRunner = true;
             }
-            SocketQueue newQueue = new SocketQueue(socket);
+            SocketQueue newQueue = new SocketQueue(socket, listener);
             retQueue = newQueue.messages;
             socketList.add(newQueue);
             System.out.println("Registered sockets: " + socketList.size());
@@ -244,17 +282,87 @@ public class ChunkScheduler implements CompletionHandler<DataFrame>, Runnable {
         private WebSocket socket;
 
         /** The queue */
-        private ConcurrentLinkedQueue<String> messages;
+        private ConcurrentLinkedQueue<Object> messages;
+
+        /** The listener for the queue's messages, or null */
+        private SendListener listener;
 
         /**
          * Constructs a new SocketQueue for the given WebSocket
          * 
          * @param socket
          *            The WebSocket
+         * @param listener
+         *            The listener for the queue's messages, or null
          */
-        private SocketQueue(WebSocket socket) {
+        private SocketQueue(WebSocket socket, SendListener listener) {
             this.socket = socket;
+            this.listener = listener;
             messages = new ConcurrentLinkedQueue<>();
         }
+
+        /**
+         * Sends a message from the queue, and tells the listener, if there is
+         * one, once it has been sent.
+         * 
+         * @param message
+         *            The message
+         * @return The future of the frame
+         */
+        private GrizzlyFuture<DataFrame> send(final Object message) {
+            final long start = System.nanoTime();
+            GrizzlyFuture<DataFrame> future = ChunkScheduler.send(socket, message);
+            if (listener != null) {
+                future.addCompletionHandler(new CompletionHandler<DataFrame>() {
+                    @Override
+                    public void completed(DataFrame frame) {
+                        listener.sent(message, System.nanoTime() - start);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        listener.dropped(message);
+                    }
+
+                    @Override
+                    public void failed(Throwable throwable) {
+                        listener.dropped(message);
+                    }
+
+                    @Override
+                    public void updated(DataFrame frame) {
+                        // do nothing
+                    }
+                });
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Told when the messages of a registered WebSocket have been sent.
+     * 
+     * @author Nathan Miles
+     *
+     */
+    public interface SendListener {
+        /**
+         * Called once a message has been sent.
+         * 
+         * @param message
+         *            The message, a String or a byte array
+         * @param nanos
+         *            The time from when the message started sending until it
+         *            was sent, in nanoseconds
+         */
+        void sent(Object message, long nanos);
+
+        /**
+         * Called if a message fails to send, or its sending is cancelled.
+         * 
+         * @param message
+         *            The message, a String or a byte array
+         */
+        void dropped(Object message);
     }
 }
@@ -0,0 +1,230 @@
+package com.nmiles.rainbowgen.server;
+
+/**
+ * Picks how many pixels go in each chunk sent to a WebSocket, from how long
+ * the chunks before took to send. The first chunk is small, so the client
+ * has something to draw as soon as possible. After that, every chunk that is
+ * sent updates an estimate of the connection's throughput, and chunks grow,
+ * at most doubling each time, until one takes about TARGET_NANOS to send, up
+ * to MAX_CHUNK_BYTES. A fast client gets a few big frames rather than
+ * thousands of small ones, and a slow one gets frames it can keep up with.
+ *
+ * It also keeps the number of chunks waiting to be sent down to
+ * MAX_IN_FLIGHT. Pixels that can't be sent yet stay in the image's record
+ * rather than piling up in the ChunkScheduler, and go out in bigger chunks
+ * later. A ChunkSizer is the SendListener of a single job's queue, and keeps
+ * the number and sizes of the chunks it sized, for tuning.
+ *
+ * @author Nathan Miles
+ *
+ */
+class ChunkSizer implements ChunkScheduler.SendListener {
+	/** The number of pixels in the first chunk. */
+	static final int FIRST_CHUNK_PIXELS = 256;
+	/** The fewest pixels in any chunk but the last. */
+	private static final int MIN_CHUNK_PIXELS = 256;
+	/** The most bytes in any chunk. */
+	private static final int MAX_CHUNK_BYTES = 1 << 20;
+	/** How long each chunk should take to send, in nanoseconds. */
+	private static final long TARGET_NANOS = 100_000_000L;
+	/** The most chunks that may be waiting to be sent at once. */
+	private static final int MAX_IN_FLIGHT = 3;
+	/**
+	 * The shortest send time that counts, in nanoseconds, so that a chunk
+	 * that is sent in next to no time doesn't make the throughput look
+	 * endless.
+	 */
+	private static final long MIN_NANOS = 100_000L;
+	/** How much of each new throughput measurement goes into the estimate. */
+	private static final double SMOOTHING = 0.25;
+
+	/** The number of bytes each pixel takes in a chunk. */
+	private final int bytesPerPixel;
+	/** The number of pixels in the next chunk. */
+	private int chunkPixels = FIRST_CHUNK_PIXELS;
+	/**
+	 * The estimated throughput of the connection, in bytes per nanosecond, or
+	 * 0 before the first chunk has been sent.
+	 */
+	private double bytesPerNano;
+	/** The number of chunks that have been queued but not yet sent. */
+	private int inFlight;
+	/** The number of chunks that have been queued. */
+	private int chunks;
+	/** The number of pixels in every chunk that has been queued. */
+	private long pixels;
+	/** The fewest pixels in any chunk that has been queued. */
+	private int minPixels = Integer.MAX_VALUE;
+	/** The most pixels in any chunk that has been queued. */
+	private int maxPixels;
+	/**
+	 * The number of chunks queued with each size, by the bit length of their
+	 * number of pixels, so the chunks in bucket i held from 2^(i-1) to
+	 * 2^i - 1 pixels.
+	 */
+	private final int[] histogram = new int[32];
+	/** The number of bytes in every chunk that has been sent. */
+	private long sentBytes;
+	/** The time spent sending them, in nanoseconds. */
+	private long sentNanos;
+
+	/**
+	 * Constructs a new ChunkSizer.
+	 *
+	 * @param bytesPerPixel
+	 *            The number of bytes each pixel takes in a chunk
+	 */
+	ChunkSizer(int bytesPerPixel) {
+		this.bytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * Gets the number of pixels the next chunk should hold.
+	 *
+	 * @return The number of pixels
+	 */
+	synchronized int getChunkPixels() {
+		return chunkPixels;
+	}
+
+	/**
+	 * Returns true if another chunk may be queued right now.
+	 *
+	 * @return true if fewer than MAX_IN_FLIGHT chunks are waiting to be sent
+	 */
+	synchronized boolean hasRoom() {
+		return inFlight < MAX_IN_FLIGHT;
+	}
+
+	/**
+	 * Waits until another chunk may be queued, or for the given time,
+	 * whichever comes first.
+	 *
+	 * @param millis
+	 *            The longest to wait, in milliseconds
+	 * @return true if another chunk may be queued
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	synchronized boolean awaitRoom(long millis) throws InterruptedException {
+		if (inFlight >= MAX_IN_FLIGHT) {
+			wait(millis);
+		}
+		return inFlight < MAX_IN_FLIGHT;
+	}
+
+	/**
+	 * Counts a chunk that has been queued.
+	 *
+	 * @param chunkPixels
+	 *            The number of pixels in the chunk
+	 */
+	synchronized void queued(int chunkPixels) {
+		inFlight++;
+		chunks++;
+		pixels += chunkPixels;
+		minPixels = Math.min(minPixels, chunkPixels);
+		maxPixels = Math.max(maxPixels, chunkPixels);
+		histogram[32 - Integer.numberOfLeadingZeros(chunkPixels)]++;
+	}
+
+	/**
+	 * Updates the throughput estimate from a chunk that has been sent, and
+	 * sizes the next chunk from it. Messages that aren't chunks are ignored,
+	 * since they are too small to say much about the connection.
+	 */
+	@Override
+	public synchronized void sent(Object message, long nanos) {
+		if (!isChunk(message)) {
+			return;
+		}
+		inFlight--;
+		notifyAll();
+		sentBytes += length(message);
+		sentNanos += nanos;
+		double measured = (double) length(message) / Math.max(nanos, MIN_NANOS);
+		bytesPerNano = bytesPerNano == 0 ? measured : bytesPerNano + SMOOTHING * (measured - bytesPerNano);
+		long wanted = (long) (bytesPerNano * TARGET_NANOS) / bytesPerPixel;
+		long most = Math.min(2L * chunkPixels, MAX_CHUNK_BYTES / bytesPerPixel);
+		chunkPixels = (int) Math.max(MIN_CHUNK_PIXELS, Math.min(wanted, most));
+	}
+
+	/**
+	 * Stops counting a chunk that will never be sent.
+	 */
+	@Override
+	public synchronized void dropped(Object message) {
+		if (isChunk(message)) {
+			inFlight--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Gets the number of bytes in every chunk that has been sent.
+	 *
+	 * @return The number of bytes
+	 */
+	synchronized long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * Gets the time spent sending every chunk that has been sent.
+	 *
+	 * @return The time, in nanoseconds
+	 */
+	synchronized long getSentNanos() {
+		return sentNanos;
+	}
+
+	/**
+	 * Describes the chunks that have been queued, as a JSON object with their
+	 * number, the fewest, most, and mean pixels in them, and a histogram of
+	 * their sizes, from the upper bound of each power of two range of
+	 * pixels to the number of chunks in that range.
+	 *
+	 * @return The JSON object
+	 */
+	synchronized String statsJson() {
+		StringBuilder json = new StringBuilder("{\"count\": ").append(chunks);
+		if (chunks != 0) {
+			json.append(", \"minPixels\": ").append(minPixels);
+			json.append(", \"maxPixels\": ").append(maxPixels);
+			json.append(", \"meanPixels\": ").append(pixels / chunks);
+		}
+		json.append(", \"histogram\": {");
+		String separator = "";
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] != 0) {
+				json.append(separator).append('"').append((1L << i) - 1).append("\": ").append(histogram[i]);
+				separator = ", ";
+			}
+		}
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * Returns true if a message is a chunk: a binary frame, or a JSON chunk
+	 * message.
+	 *
+	 * @param message
+	 *            The message
+	 * @return true if the message is a chunk
+	 */
+	private static boolean isChunk(Object message) {
+		return message instanceof byte[] || ((String) message).startsWith(JobStream.CHUNK_PREFIX);
+	}
+
+	/**
+	 * Gets the length of a message, which is near enough its size in bytes,
+	 * since the text messages are ASCII.
+	 *
+	 * @param message
+	 *            The message
+	 * @return The length
+	 */
+	static int length(Object message) {
+		return message instanceof byte[] ? ((byte[]) message).length : ((String) message).length();
+	}
+}
@@ -0,0 +1,107 @@
+package com.nmiles.rainbowgen.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread that builds a job's chunk messages while its image is being
+ * generated, so that encoding them doesn't slow down generating. The
+ * generating thread publishes the number of pixels its record holds after
+ * each batch into a PixelRing, each event marking the end of a run of packed
+ * pixels that are ready to be read. This thread takes them, and builds and
+ * queues as many chunks of them as the job's stream has room for with
+ * Job.pump(), which hands them on to the ChunkScheduler. It also pumps every
+ * POLL_NANOS while no pixels come, since room opens up as chunks are sent.
+ *
+ * Once the image is finished, the generating thread marks the job as
+ * finished and closes the stage, and goes on without waiting for it. The
+ * stage then queues the rest of the chunks with Job.drain(), so that neither
+ * the generating thread nor the room it was admitted with are held while a
+ * slow client reads them.
+ *
+ * @author Nathan Miles
+ *
+ */
+class EncoderStage extends Thread {
+	/** The most events that may wait in the ring. */
+	private static final int RING_CAPACITY = 1024;
+	/**
+	 * How long to wait for pixels before pumping anyway, in nanoseconds.
+	 */
+	private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	/** The job whose chunks are built. */
+	private final Job job;
+	/** The events from the generating thread. */
+	private final PixelRing ring = new PixelRing(RING_CAPACITY);
+
+	/**
+	 * Constructs a new EncoderStage for a job. It must be started before any
+	 * pixels are published.
+	 *
+	 * @param job
+	 *            The job
+	 */
+	EncoderStage(Job job) {
+		super("encoder-" + job.getId());
+		setDaemon(true);
+		this.job = job;
+	}
+
+	/**
+	 * Tells the stage how many pixels the job's record holds, waiting if it
+	 * has fallen too far behind. Only the generating thread may call this.
+	 *
+	 * @param pixels
+	 *            The number of pixels in the record's finished chunks
+	 */
+	void publish(int pixels) {
+		ring.publish(pixels);
+	}
+
+	/**
+	 * Tells the stage that no more pixels are coming, without waiting for it
+	 * to finish with the ones it has. If the job is finished by then, the
+	 * stage goes on to drain it. Only the generating thread may call this.
+	 */
+	void close() {
+		ring.close();
+	}
+
+	/**
+	 * Takes events until the ring is closed and empty, pumping the job after
+	 * each batch of them, then drains the job if it is finished. If pumping
+	 * fails, the rest of the events are still taken, so that the generating
+	 * thread is never left waiting for room.
+	 */
+	@Override
+	public void run() {
+		int published = 0;
+		boolean failed = false;
+		while (!ring.isDrained()) {
+			long event = ring.take(POLL_NANOS);
+			// each event covers the pixels of the ones before it
+			while (event >= 0) {
+				published = (int) event;
+				event = ring.take(0);
+			}
+			if (failed) {
+				continue;
+			}
+			try {
+				job.pump(published);
+			} catch (RuntimeException e) {
+				System.out.print(e.getMessage());
+				e.printStackTrace();
+				failed = true;
+			}
+		}
+		if (!failed && job.isFinished()) {
+			try {
+				job.drain();
+			} catch (RuntimeException e) {
+				System.out.print(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+}
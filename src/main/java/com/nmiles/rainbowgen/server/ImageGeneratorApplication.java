@@ -1,6 +1,11 @@
 package com.nmiles.rainbowgen.server;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.glassfish.grizzly.websockets.DataFrame;
 import org.glassfish.grizzly.websockets.WebSocket;
@@ -8,11 +13,15 @@ import org.glassfish.grizzly.websockets.WebSocketApplication;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
-import com.nmiles.rainbowgen.generator.FastIterator;
-import com.nmiles.rainbowgen.generator.GlassIterator;
+import com.nmiles.rainbowgen.generator.CancellationToken;
+import com.nmiles.rainbowgen.generator.DistanceMode;
+import com.nmiles.rainbowgen.generator.ImageCost;
+import com.nmiles.rainbowgen.generator.ImageFactories;
+import com.nmiles.rainbowgen.generator.ImageFactory;
+import com.nmiles.rainbowgen.generator.ImageOptions;
 import com.nmiles.rainbowgen.generator.ImageRecord;
 import com.nmiles.rainbowgen.generator.RandomImage;
-import com.nmiles.rainbowgen.generator.StainedGlass;
+import com.nmiles.rainbowgen.generator.TrackerType;
 
 /**
  * The WebSocket endpoint for the server. This class manages everything about
@@ -24,8 +33,143 @@ import com.nmiles.rainbowgen.generator.StainedGlass;
 public class ImageGeneratorApplication extends WebSocketApplication {
 	/** The max dimension that any image may have in the x or y direction. */
 	private static final int MAX_DIMENSIONS = 4096;
+	/**
+	 * The number of pixels generated between publishing the record's pixels
+	 * to the job's encoder stage. It is the size of the record's own chunks,
+	 * so new pixels can be sent after every batch.
+	 */
+	private static final int BATCH_PIXELS = 2000;
+	/** How often expired jobs are looked for, in milliseconds. */
+	private static final long REAP_MILLIS = 5 * 1000;
 	/** A blank byte array for sending pings. */
 	private static final byte[] PING_DATA = {};
+	/**
+	 * The longest any job may run, in milliseconds. A job that asks for a
+	 * longer maxMillis, or doesn't ask for one, gets this instead, so no job
+	 * can hold a core indefinitely.
+	 */
+	private static final long MAX_JOB_MILLIS = 10 * 60 * 1000;
+	/**
+	 * The number of bytes of pixels each job's record keeps on the heap before
+	 * spilling the rest to a temp file. It can be set with the
+	 * RECORD_SPILL_BYTES environment variable.
+	 */
+	private static final int RECORD_SPILL_BYTES = recordSpillBytes();
+	/**
+	 * How many times slower than the machine the cost estimates were
+	 * measured on this one generates images, which admission's estimates are
+	 * scaled by. It can be set with the COST_CPU_SCALE environment variable.
+	 */
+	private static final double COST_CPU_SCALE = costCpuScale();
+
+	/**
+	 * Every job that is running, or finished recently enough that its client
+	 * may still reconnect to it, by id.
+	 */
+	final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+	/**
+	 * Decides when each job may run. Jobs may hold up to three quarters of
+	 * the heap between them, leaving the rest for sending their chunks, and
+	 * may use every core.
+	 */
+	private final JobAdmission admission = new JobAdmission(Runtime.getRuntime().maxMemory() / 4 * 3,
+			Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Reads the number of bytes of pixels each job's record keeps on the heap
+	 * from the RECORD_SPILL_BYTES environment variable.
+	 * 
+	 * @return The number of bytes, or ImageRecord.DEFAULT_SPILL_BYTES if the
+	 *         variable isn't set
+	 */
+	private static int recordSpillBytes() {
+		String spillBytes = System.getenv("RECORD_SPILL_BYTES");
+		return spillBytes == null ? ImageRecord.DEFAULT_SPILL_BYTES : Integer.parseInt(spillBytes);
+	}
+
+	/**
+	 * Reads how many times slower than the machine the cost estimates were
+	 * measured on this one is from the COST_CPU_SCALE environment variable.
+	 * 
+	 * @return The factor, or 1 if the variable isn't set
+	 */
+	private static double costCpuScale() {
+		String scale = System.getenv("COST_CPU_SCALE");
+		return scale == null ? 1 : Double.parseDouble(scale);
+	}
+
+	/**
+	 * The cache of finished images' records, or null if there is none. See
+	 * RecordCache.fromEnvironment() for how it is set up.
+	 */
+	private final RecordCache cache = RecordCache.fromEnvironment();
+
+	/**
+	 * Constructs a new ImageGeneratorApplication, which looks for expired jobs
+	 * every REAP_MILLIS.
+	 */
+	public ImageGeneratorApplication() {
+		ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "job-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reaper.scheduleWithFixedDelay(this::reapJobs, REAP_MILLIS, REAP_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels every job that has been without a stream for longer than its
+	 * grace period, and forgets it and closes its record once it has stopped
+	 * generating.
+	 */
+	private void reapJobs() {
+		long now = System.currentTimeMillis();
+		for (Job job : jobs.values()) {
+			if (job.isExpired(now)) {
+				job.getCancellation().cancel();
+				if (!job.isGenerating()) {
+					jobs.remove(job.getId());
+					job.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reconnects a client to a job that is running or finished recently, and
+	 * streams the chunks after the last one the client got, without
+	 * generating anything again. The client is told the job has resumed
+	 * first, or gets an error if the job is gone or the chunk hasn't been
+	 * sent yet.
+	 * 
+	 * @param stream
+	 *            The stream to the client's new WebSocket
+	 * @param jobId
+	 *            The id of the job, or null
+	 * @param lastChunkIndex
+	 *            The index of the last chunk the client got, or -1 if it got
+	 *            none
+	 */
+	void resume(JobStream stream, String jobId, int lastChunkIndex) {
+		Job job = jobId == null ? null : jobs.get(jobId);
+		if (job == null) {
+			stream.queue.add("{\"type\": \"error\", \"message\": \"That image is no longer available.\"}");
+			return;
+		}
+		try {
+			job.attach(stream, lastChunkIndex + 1, "{\"type\": \"resumed\", \"jobId\": \"" + jobId
+					+ "\", \"format\": \"" + stream.getFormat() + "\"}");
+		} catch (IllegalArgumentException e) {
+			stream.queue.add("{\"type\": \"error\", \"message\": \"That chunk hasn't been sent yet.\"}");
+			return;
+		}
+		System.out.println("Resumed job " + jobId + " after chunk " + lastChunkIndex);
+		// a running job's own thread sends its chunks, but a finished one has none
+		if (job.isFinished()) {
+			job.drain();
+		}
+	}
 
 	/**
 	 * Called when a connected WebSocket sends a message.
@@ -38,9 +182,15 @@ public class ImageGeneratorApplication extends WebSocketApplication {
 
 	/**
 	 * Called when a WebSocket disconnects or is disconnected from the server.
+	 * Every job streaming to it is detached, and keeps going for its grace
+	 * period in case the client reconnects. Jobs that haven't started yet
+	 * are cancelled right away.
 	 */
 	@Override
 	public void onClose(WebSocket socket, DataFrame frame) {
+		for (Job job : jobs.values()) {
+			job.detach(socket);
+		}
 		ChunkScheduler.getInstance().remove(socket);
 	}
 
@@ -56,6 +206,11 @@ public class ImageGeneratorApplication extends WebSocketApplication {
 		private WebSocket websocket;
 		/** The data that was originally sent with the image request */
 		private String data;
+		/**
+		 * Whether the client asked for chunks as binary frames (see
+		 * ImageRecord.getBinaryPixels()) rather than as hex in JSON
+		 */
+		private boolean binary;
 
 		/**
 		 * Constructs a new ImageThread for the given websocket with the
@@ -76,82 +231,266 @@ public class ImageGeneratorApplication extends WebSocketApplication {
 		 */
 		public void run() {
 			// read and check input
-			String type = "";
-			JSONObject obj = null;
+			ImageFactory factory = null;
+			Map<String, Integer> parameters = null;
 			int width = 0, height = 0;
+			long maxMillis = MAX_JOB_MILLIS;
+			ImageOptions options = new ImageOptions();
+			options.setRecordSpillBytes(RECORD_SPILL_BYTES);
+			options.setCpuScale(COST_CPU_SCALE);
 			System.out.println("Creating image: " + data);
 			// parse the JSON contained in data
 			try {
 				JSONParser parser = new JSONParser();
-				obj = (JSONObject) parser.parse(data);
-				type = (String) obj.get("type");
+				JSONObject obj = (JSONObject) parser.parse(data);
+				if ("resume".equals(obj.get("type"))) {
+					binary = "binary".equals(checkFormat(obj));
+					// qualified, since Thread has a resume() of its own
+					ImageGeneratorApplication.this.resume(new JobStream(websocket, binary),
+							(String) obj.get("jobId"), ((Long) obj.get("lastChunkIndex")).intValue());
+					return;
+				}
+				factory = ImageFactories.get((String) obj.get("type"));
+				if (factory == null) {
+					throw new IllegalArgumentException("Unknown type " + obj.get("type"));
+				}
 				width = ((Long) obj.get("width")).intValue();
 				height = ((Long) obj.get("height")).intValue();
 				if (width <= 0 || height <= 0 || width > MAX_DIMENSIONS
 						|| height > MAX_DIMENSIONS) {
 					throw new IllegalArgumentException();
 				}
+				// optional settings shared by every image type
+				String tracker = (String) obj.get("tracker");
+				if (tracker != null) {
+					options.setTrackerType(TrackerType.valueOf(tracker.toUpperCase()));
+				}
+				String distance = (String) obj.get("distance");
+				if (distance != null) {
+					options.setDistanceMode(DistanceMode.valueOf(distance.toUpperCase()));
+				}
+				/*
+				 * The seed may also be a string, since JavaScript numbers
+				 * can't hold every long
+				 */
+				Object seed = obj.get("seed");
+				if (seed instanceof String) {
+					options.setSeed(Long.parseLong((String) seed));
+				} else if (seed != null) {
+					options.setSeed((Long) seed);
+				}
+				// more threads than cores would only add overhead
+				Long threads = (Long) obj.get("threads");
+				if (threads != null) {
+					options.setThreads((int) Math.min(threads,
+							Runtime.getRuntime().availableProcessors()));
+				}
+				Boolean concurrentSeeds = (Boolean) obj.get("concurrentSeeds");
+				if (concurrentSeeds != null) {
+					options.setConcurrentSeeds(concurrentSeeds);
+				}
+				Long requestedMillis = (Long) obj.get("maxMillis");
+				if (requestedMillis != null) {
+					if (requestedMillis <= 0) {
+						throw new IllegalArgumentException("maxMillis must be positive");
+					}
+					maxMillis = Math.min(requestedMillis, MAX_JOB_MILLIS);
+				}
+				binary = "binary".equals(checkFormat(obj));
+				// the parameters of the image type
+				parameters = ImageFactories.checkParameters(factory, obj);
 			} catch (Exception e) {
 				System.out.println(e.getMessage());
 				websocket.send("Parse error");
 				return;
 			}
-			ChunkScheduler scheduler = ChunkScheduler.getInstance();
-			ConcurrentLinkedQueue<String> queue = scheduler.register(websocket);
-			// build image
-			RandomImage image = null;
-			ImageRecord record = null;
-			int chunksSent = 0;
+			// the deadline counts from here, so it covers setting up the image too
+			CancellationToken cancellation = new CancellationToken(maxMillis);
+			options.setCancellationToken(cancellation);
+			Job job = new Job(UUID.randomUUID().toString(), cancellation);
+			jobs.put(job.getId(), job);
+			// tell the client the job's id, so it can reconnect if it has to, the
+			// seed, so it can ask for the same image again, and which format the
+			// chunks are coming in
+			JobStream stream = new JobStream(websocket, binary);
+			job.attach(stream, 0, "{\"type\": \"seed\", \"jobId\": \"" + job.getId() + "\", \"seed\": \""
+					+ options.getSeed() + "\", \"format\": \"" + stream.getFormat() + "\"}");
+			try {
+				generate(job, factory, parameters, width, height, options);
+			} finally {
+				// a job that never got going has nothing worth keeping
+				if (!job.isFinished()) {
+					jobs.remove(job.getId());
+					job.close();
+				}
+			}
+		}
+
+		/**
+		 * Checks the format a request asks for.
+		 * 
+		 * @param obj
+		 *            The request
+		 * @return The format, "hex" or "binary", or null if the request
+		 *         doesn't say
+		 * @throws IllegalArgumentException
+		 *             If the format is neither
+		 */
+		private String checkFormat(JSONObject obj) {
+			String format = (String) obj.get("format");
+			if (format != null && !format.equals("hex") && !format.equals("binary")) {
+				throw new IllegalArgumentException("Unknown format " + format);
+			}
+			return format;
+		}
+
+		/**
+		 * Waits for the server to have room for the image, then generates it
+		 * and queues its chunks for the job's stream. An image that is
+		 * estimated to need more memory than the server has, or more time than
+		 * a job may take, is turned away before anything is allocated for it.
+		 * If the image runs out of time, the chunks it managed to generate are
+		 * sent, followed by a done message marked as partial. If the WebSocket
+		 * closes, the image carries on without a stream until the job expires.
+		 * An image that is in the record cache is streamed from there instead.
+		 * 
+		 * @param job
+		 *            The job
+		 * @param factory
+		 *            The factory for the type of image
+		 * @param parameters
+		 *            The value of every parameter of the type, by name
+		 * @param width
+		 *            The width of the image
+		 * @param height
+		 *            The height of the image
+		 * @param options
+		 *            The options to generate the image with, including its
+		 *            cancellation token
+		 */
+		private void generate(Job job, ImageFactory factory, Map<String, Integer> parameters, int width,
+				int height, ImageOptions options) {
+			CancellationToken cancellation = options.getCancellationToken();
+			ImageCost cost = factory.estimateCost(width, height, parameters, options);
+			System.out.println("Estimated cost: " + cost);
+			String cacheKey = cache == null ? null
+					: RecordCache.key(factory.getType(), width, height, parameters, options);
+			if (cacheKey != null) {
+				ImageRecord cached = cache.get(cacheKey, cost);
+				System.out.println("Record cache " + (cached == null ? "miss" : "hit") + ": " + cache.getStats());
+				if (cached != null) {
+					job.start(cached);
+					job.finish(false);
+					job.drain();
+					return;
+				}
+			}
+			if (!admission.fits(cost)
+					|| cost.getCpuSeconds() / options.getThreads() * 1000 > MAX_JOB_MILLIS) {
+				job.send("{\"type\": \"error\", \"message\": \"That image is too big for this server.\"}");
+				return;
+			}
+			try {
+				if (admission.isBusy(cost, options.getThreads())) {
+					job.send("{\"type\": \"queued\"}");
+				}
+				if (!admission.admit(cost, options.getThreads(), cancellation)) {
+					if (cancellation.isExpired()) {
+						job.send("{\"type\": \"error\", \"message\": \"The server is too busy right now.\"}");
+					}
+					return;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			generateImage(job, factory, parameters, width, height, options, cost, cacheKey);
+		}
+
+		/**
+		 * Generates the image, once it has been admitted, while an
+		 * EncoderStage builds its chunks and queues them for the job's stream
+		 * on another thread. The time spent generating is kept for the done
+		 * message, apart from the time spent waiting for the encoder stage.
+		 * The image's room in the admission is given back as soon as its
+		 * record is final, and the encoder stage is left to queue the rest of
+		 * its chunks.
+		 * 
+		 * @param job
+		 *            The job
+		 * @param factory
+		 *            The factory for the type of image
+		 * @param parameters
+		 *            The value of every parameter of the type, by name
+		 * @param width
+		 *            The width of the image
+		 * @param height
+		 *            The height of the image
+		 * @param options
+		 *            The options to generate the image with, including its
+		 *            cancellation token
+		 * @param cost
+		 *            The estimated cost of the image, which it was admitted
+		 *            with
+		 * @param cacheKey
+		 *            The key to cache the finished image's record under, or
+		 *            null if it can't be cached
+		 */
+		private void generateImage(Job job, ImageFactory factory, Map<String, Integer> parameters, int width,
+				int height, ImageOptions options, ImageCost cost, String cacheKey) {
+			RandomImage image;
+			ImageRecord record;
+			EncoderStage encoder = new EncoderStage(job);
+			long generateNanos = 0;
 			try {
+				encoder.start();
 				/*
 				 * Send a ping just in case the client was getting jumpy about
 				 * timing out
 				 */
-				websocket.sendPing(PING_DATA);
-				/*
-				 * If you add a new image type, you need to add another option
-				 * here.
-				 */
-				switch (type) {
-					case "fastIterator":
-						int individualPercent = ((Long) obj.get("individualPercent")).intValue();
-						image = new FastIterator(width, height, individualPercent);
-						break;
-					case "stainedGlass":
-						int startingPoints = ((Long) obj.get("startingPoints")).intValue();
-						image = new StainedGlass(width, height, startingPoints);
-						break;
-					case "glassIterator":
-                        int switchToGlass = ((Long) obj.get("switchToGlass")).intValue();
-                        int switchToIterator = ((Long) obj.get("switchToIterator")).intValue();
-					    individualPercent = ((Long) obj.get("individualPercent")).intValue();
-					    image = new GlassIterator(width, height, switchToGlass, switchToIterator, individualPercent);
+				if (websocket.isConnected()) {
+					websocket.sendPing(PING_DATA);
 				}
-
+				long start = System.nanoTime();
+				image = factory.create(width, height, parameters, options);
 				record = image.getRecord();
+				job.start(record);
+				// the first batch is as small as the first chunk, so it goes out right away
+				image.step(ChunkSizer.FIRST_CHUNK_PIXELS);
+				record.flush();
+				generateNanos += System.nanoTime() - start;
+				encoder.publish(record.getNumPixels());
 				while (!image.isFinished()) {
-					if (record.getNumChunks() > chunksSent) {
-						if (!websocket.isConnected()) {
-							return;
-						}
-						queue.add("{\"type\": \"chunk\", \"chunk\": \""
-								+ record.getChunk(chunksSent++) + "\"}");
-					}
-					image.nextPixel();
+					start = System.nanoTime();
+					image.step(BATCH_PIXELS);
+					generateNanos += System.nanoTime() - start;
+					encoder.publish(record.getNumPixels());
 				}
+				record.makeFinal();
 			} catch (Exception e) {
 				System.out.print(e.getMessage());
 				e.printStackTrace();
-				queue.add("{\"type\": \"error\", \"message\": \"Something went wrong while generating your image.\"}");
+				encoder.close();
+				job.fail("{\"type\": \"error\", \"message\": \"Something went wrong while generating your image.\"}");
 				return;
+			} finally {
+				admission.release(cost, options.getThreads());
 			}
-
-			record.makeFinal();
-			if (chunksSent < record.getNumChunks()) {
-				queue.add("{\"type\": \"chunk\", \"chunk\": \""
-						+ record.getChunk(chunksSent++) + "\"}");
+			boolean partial = image.isStopped();
+			job.generated(record.getNumPixels(), generateNanos);
+			if (partial) {
+				if (options.getCancellationToken().isExpired()) {
+					System.out.println("Ran out of time after " + image.getPixelsPlaced() + " pixels");
+				} else {
+					System.out.println("Job " + job.getId() + " expired after " + image.getPixelsPlaced() + " pixels");
+				}
+			}
+			// the encoder stage sends the rest while the record is saved
+			job.finish(partial);
+			encoder.close();
+			if (!partial && cacheKey != null) {
+				cache.put(cacheKey, record);
+				System.out.println("Record cache: " + cache.getStats());
 			}
-			queue.add("{\"type\": \"done\"}");
 		}
 	}
 }
@@ -0,0 +1,468 @@
+package com.nmiles.rainbowgen.server;
+
+import java.util.Arrays;
+
+import org.glassfish.grizzly.websockets.WebSocket;
+
+import com.nmiles.rainbowgen.generator.CancellationToken;
+import com.nmiles.rainbowgen.generator.ImageRecord;
+
+/**
+ * An image that is being generated, or was recently, and the stream its
+ * chunks are sent to. A job outlives the WebSocket that asked for it: if the
+ * WebSocket closes, the job is detached, and keeps generating for
+ * GRACE_MILLIS, so that its client can reconnect and attach a new stream
+ * that picks up after the last chunk it got. A finished job keeps its record
+ * for the same grace period after its stream is detached, or after its done
+ * message is queued, whichever comes first, so a client that stays connected
+ * doesn't hold the record forever. Once the grace period is over, the job has
+ * expired, and should be cancelled, then closed once it has stopped
+ * generating.
+ *
+ * The job counts its chunks across every stream, by the pixel each started
+ * at, so that a client can say which chunk it got last. Chunks are queued by
+ * its EncoderStage as the pixels are published to it with pump(), and by
+ * whichever thread calls drain() once the job is finished. Only one thread
+ * builds chunks at a time, under encodeLock, so they are queued in order,
+ * but the job's monitor is only held to pick each chunk and to queue it, so
+ * detaching, sending and checking for expiry never wait for a chunk to be
+ * built.
+ *
+ * The job also keeps how long each stage of its pipeline spent on it, so
+ * that the done message can say which one held it back: generating the
+ * pixels, encoding them into chunks, and sending the chunks.
+ *
+ * @author Nathan Miles
+ *
+ */
+class Job {
+	/**
+	 * How long a job is kept without a stream before it expires, in
+	 * milliseconds.
+	 */
+	static final long GRACE_MILLIS = 60 * 1000;
+	/**
+	 * How long drain() waits for room to queue another chunk before checking
+	 * whether its WebSocket is still connected, in milliseconds.
+	 */
+	private static final long SEND_WAIT_MILLIS = 100;
+
+	/** The job's id, which its client reconnects with. */
+	private final String id;
+	/** The job's cancellation token. */
+	private final CancellationToken cancellation;
+	/**
+	 * The lock held while chunks are built and while the record is closed,
+	 * which is always taken before the job's monitor.
+	 */
+	private final Object encodeLock = new Object();
+	/** The image's record, or null before it is generated. */
+	private ImageRecord record;
+	/** Whether the image is being generated. */
+	private boolean generating;
+	/** Whether the image has been generated, as far as it will be. */
+	private boolean finished;
+	/** Whether the image ran out of time before it was finished. */
+	private boolean partial;
+	/** Whether the job has been closed. */
+	private boolean closed;
+	/** The stream the chunks are sent to, or null if it is detached. */
+	private JobStream stream;
+	/** When the stream was detached, from System.currentTimeMillis(). */
+	private long detachedAt;
+	/**
+	 * When the done message was last queued, from System.currentTimeMillis(),
+	 * or 0 if it hasn't been.
+	 */
+	private long doneAt;
+	/** The index of the first pixel of every chunk that has been queued. */
+	private int[] chunkStarts = new int[64];
+	/** The number of chunks that have been queued. */
+	private int chunks;
+	/** The number of pixels that have been queued. */
+	private int pixelsSent;
+	/**
+	 * The number of the record's pixels that have been published to the
+	 * encoder stage, and may be queued before the job is finished.
+	 */
+	private int published;
+	/** The number of pixels generated. */
+	private int generatedPixels;
+	/** The time spent generating them, in nanoseconds. */
+	private long generateNanos;
+	/** The number of pixels encoded into chunks, for every stream. */
+	private long encodedPixels;
+	/** The number of bytes of chunks they were encoded into. */
+	private long encodedBytes;
+	/** The time spent encoding them, in nanoseconds. */
+	private long encodeNanos;
+
+	/**
+	 * Constructs a new Job, without a stream.
+	 *
+	 * @param id
+	 *            The job's id
+	 * @param cancellation
+	 *            The job's cancellation token
+	 */
+	Job(String id, CancellationToken cancellation) {
+		this.id = id;
+		this.cancellation = cancellation;
+		detachedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the job's id, which its client reconnects with.
+	 *
+	 * @return The id
+	 */
+	String getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the job's cancellation token.
+	 *
+	 * @return The cancellation token
+	 */
+	CancellationToken getCancellation() {
+		return cancellation;
+	}
+
+	/**
+	 * Attaches a stream, in place of any stream that is attached, and queues
+	 * its first message. The chunks from the given one on are sent to it,
+	 * including any that were queued for an earlier stream.
+	 *
+	 * @param newStream
+	 *            The stream
+	 * @param fromChunk
+	 *            The index of the first chunk to send, which is 0 for a new
+	 *            job, or one past the last chunk the client got
+	 * @param firstMessage
+	 *            The message to send before any chunks
+	 * @throws IllegalArgumentException
+	 *             If the chunk hasn't been queued yet, and isn't the next one
+	 *             to be
+	 */
+	synchronized void attach(JobStream newStream, int fromChunk, String firstMessage) {
+		if (fromChunk < 0 || fromChunk > chunks) {
+			throw new IllegalArgumentException("Chunk " + fromChunk + " of " + chunks);
+		}
+		if (fromChunk < chunks) {
+			pixelsSent = chunkStarts[fromChunk];
+			chunks = fromChunk;
+		}
+		stream = newStream;
+		stream.queue.add(firstMessage);
+	}
+
+	/**
+	 * Detaches the stream, if it streams to the given WebSocket, which has
+	 * closed. The grace period starts from now. A job that hasn't started
+	 * generating has nothing worth keeping, so it is cancelled right away.
+	 *
+	 * @param websocket
+	 *            The WebSocket
+	 */
+	synchronized void detach(WebSocket websocket) {
+		if (stream != null && stream.websocket == websocket) {
+			stream = null;
+			detachedAt = System.currentTimeMillis();
+			if (record == null) {
+				cancellation.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Queues a message for the stream, if one is attached.
+	 *
+	 * @param message
+	 *            The message
+	 */
+	synchronized void send(String message) {
+		if (stream != null) {
+			stream.queue.add(message);
+		}
+	}
+
+	/**
+	 * Marks the image as being generated into the given record.
+	 *
+	 * @param record
+	 *            The image's record
+	 */
+	synchronized void start(ImageRecord record) {
+		this.record = record;
+		generating = true;
+	}
+
+	/**
+	 * Marks the image as no longer being generated, since something went
+	 * wrong, and queues an error message for the stream, if one is attached.
+	 * The job isn't finished, so it can't be resumed.
+	 *
+	 * @param message
+	 *            The error message
+	 */
+	synchronized void fail(String message) {
+		generating = false;
+		send(message);
+	}
+
+	/**
+	 * Queues as many chunks of the record's published pixels as the stream's
+	 * sizer allows, without waiting. Until the image is finished, a chunk is
+	 * only queued once there are enough pixels to fill it, and pixels that
+	 * can't be queued yet wait in the record.
+	 *
+	 * @param pixels
+	 *            The number of pixels that have been published, from the
+	 *            start of the record
+	 */
+	void pump(int pixels) {
+		synchronized (this) {
+			published = Math.max(published, pixels);
+		}
+		queueChunks();
+	}
+
+	/**
+	 * Records how long the image took to generate, for the done message.
+	 *
+	 * @param pixels
+	 *            The number of pixels generated
+	 * @param nanos
+	 *            The time spent generating them, in nanoseconds
+	 */
+	synchronized void generated(int pixels, long nanos) {
+		generatedPixels = pixels;
+		generateNanos = nanos;
+	}
+
+	/**
+	 * Marks the image as generated, as far as it will be, without waiting for
+	 * its chunks to be sent. The rest of them are queued by whichever thread
+	 * calls drain() next. The record must be final.
+	 *
+	 * @param partial
+	 *            Whether the image ran out of time before it was finished
+	 */
+	void finish(boolean partial) {
+		synchronized (encodeLock) {
+			synchronized (this) {
+				generating = false;
+				finished = true;
+				this.partial = partial;
+				if (closed) {
+					record.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues every chunk of a finished job that hasn't been queued for the
+	 * stream, waiting for room as needed, then the done message. It returns
+	 * early if the stream is detached or its WebSocket closes.
+	 *
+	 * @throws IllegalStateException
+	 *             If the job isn't finished
+	 */
+	void drain() {
+		try {
+			while (true) {
+				JobStream current;
+				synchronized (this) {
+					if (!finished) {
+						throw new IllegalStateException("The job isn't finished");
+					}
+					current = stream;
+				}
+				if (current == null || queueChunks()) {
+					return;
+				}
+				if (!current.sizer.awaitRoom(SEND_WAIT_MILLIS) && !current.websocket.isConnected()) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues as many chunks as the stream's sizer allows, each of the size it
+	 * picks, without waiting, then the done message if the job is finished
+	 * and every chunk has been queued. Until the job is finished, only
+	 * published pixels are queued. Once it is, a chunk may be smaller than the
+	 * sizer picks, to send the last of the pixels.
+	 *
+	 * Each chunk is built outside the job's monitor. If a new stream is
+	 * attached meanwhile, the chunk is dropped, since the new stream starts
+	 * from the chunk its client asked for.
+	 *
+	 * @return true if there is nothing left to queue: the stream is detached,
+	 *         the job is closed, or the done message has been queued
+	 */
+	private boolean queueChunks() {
+		synchronized (encodeLock) {
+			while (true) {
+				JobStream current;
+				ImageRecord source;
+				int first;
+				int count;
+				synchronized (this) {
+					current = stream;
+					source = record;
+					if (current == null || closed) {
+						return true;
+					}
+					if (source == null) {
+						return false;
+					}
+					first = pixelsSent;
+					int left = (finished ? source.getNumPixels() : published) - first;
+					if (finished && left == 0) {
+						queueDone(current);
+						return true;
+					}
+					count = current.sizer.getChunkPixels();
+					if (finished) {
+						count = Math.min(count, left);
+					}
+					if (left < count || !current.sizer.hasRoom()) {
+						return false;
+					}
+				}
+				long start = System.nanoTime();
+				Object message = current.chunkMessage(source, first, count);
+				long nanos = System.nanoTime() - start;
+				synchronized (this) {
+					encodeNanos += nanos;
+					encodedPixels += count;
+					encodedBytes += ChunkSizer.length(message);
+					if (stream != current || pixelsSent != first) {
+						continue;
+					}
+					current.sizer.queued(count);
+					current.queue.add(message);
+					if (chunks == chunkStarts.length) {
+						chunkStarts = Arrays.copyOf(chunkStarts, 2 * chunks);
+					}
+					chunkStarts[chunks++] = first;
+					pixelsSent = first + count;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues the done message for a stream that every chunk has been queued
+	 * for, unless it already has been, and starts the grace period. The
+	 * caller must hold the job's monitor.
+	 *
+	 * @param current
+	 *            The stream
+	 */
+	private void queueDone(JobStream current) {
+		if (current.doneSent) {
+			return;
+		}
+		current.doneSent = true;
+		doneAt = System.currentTimeMillis();
+		String stats = current.sizer.statsJson();
+		String stages = stagesJson(current);
+		System.out.println("Chunks sent: " + stats);
+		System.out.println("Stages: " + stages);
+		current.queue.add("{\"type\": \"done\", " + (partial ? "\"partial\": true, " : "") + "\"chunks\": " + stats
+				+ ", \"stages\": " + stages + "}");
+	}
+
+	/**
+	 * Describes the throughput of each stage of the job's pipeline, as a JSON
+	 * object with the pixels or bytes each handled and how many it handled
+	 * per second of its own time. Generating is left out if the image came
+	 * from the record cache, and sending only counts the chunks the stream
+	 * has sent so far.
+	 *
+	 * @param current
+	 *            The stream the chunks are being sent to
+	 * @return The JSON object
+	 */
+	private String stagesJson(JobStream current) {
+		StringBuilder json = new StringBuilder("{");
+		if (generateNanos != 0) {
+			json.append("\"generate\": {\"pixels\": ").append(generatedPixels);
+			json.append(", \"pixelsPerSecond\": ").append(perSecond(generatedPixels, generateNanos)).append("}, ");
+		}
+		json.append("\"encode\": {\"pixels\": ").append(encodedPixels);
+		json.append(", \"bytes\": ").append(encodedBytes);
+		json.append(", \"pixelsPerSecond\": ").append(perSecond(encodedPixels, encodeNanos));
+		json.append(", \"bytesPerSecond\": ").append(perSecond(encodedBytes, encodeNanos)).append("}, ");
+		json.append("\"send\": {\"bytes\": ").append(current.sizer.getSentBytes());
+		json.append(", \"bytesPerSecond\": ")
+				.append(perSecond(current.sizer.getSentBytes(), current.sizer.getSentNanos()));
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * Works out a rate per second.
+	 *
+	 * @param count
+	 *            The number of things handled
+	 * @param nanos
+	 *            The time they took, in nanoseconds
+	 * @return The number handled per second, or 0 if they took no time
+	 */
+	private static long perSecond(long count, long nanos) {
+		return nanos == 0 ? 0 : Math.round(count * 1e9 / nanos);
+	}
+
+	/**
+	 * Returns true if the image has been generated, as far as it will be.
+	 *
+	 * @return true if the job is finished
+	 */
+	synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns true if the image is being generated.
+	 *
+	 * @return true if the job is generating
+	 */
+	synchronized boolean isGenerating() {
+		return generating;
+	}
+
+	/**
+	 * Returns true if the job has been without a stream, or its done message
+	 * has been queued, for longer than the grace period.
+	 *
+	 * @param now
+	 *            The time, from System.currentTimeMillis()
+	 * @return true if the job has expired
+	 */
+	synchronized boolean isExpired(long now) {
+		return stream == null && now - detachedAt > GRACE_MILLIS || doneAt != 0 && now - doneAt > GRACE_MILLIS;
+	}
+
+	/**
+	 * Closes the job's record, deleting the file it spilled to, if it did.
+	 * If the job is still generating, the record is closed once it finishes.
+	 * If a chunk is being built, this waits for it.
+	 */
+	void close() {
+		synchronized (encodeLock) {
+			synchronized (this) {
+				closed = true;
+				if (record != null && !generating) {
+					record.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.nmiles.rainbowgen.server;
+
+import java.util.LinkedList;
+
+import com.nmiles.rainbowgen.generator.CancellationToken;
+import com.nmiles.rainbowgen.generator.ImageCost;
+
+/**
+ * Decides which jobs may run, from what their ImageFactories estimate they
+ * cost, before anything is allocated for them. A job that could never fit in
+ * the server's memory is turned away, and the rest wait their turn until
+ * there is enough memory and enough free cores for them, first come, first
+ * served. Jobs must call release() with the same cost and threads once they
+ * are done, whatever happens.
+ *
+ * @author Nathan Miles
+ *
+ */
+class JobAdmission {
+	/**
+	 * How long a waiting job waits before checking whether it has been
+	 * cancelled, in milliseconds.
+	 */
+	private static final long WAIT_MILLIS = 100;
+
+	/** The memory that running jobs may hold between them, in bytes. */
+	private final long memoryBudget;
+
+	/** The number of cores that running jobs may use between them. */
+	private final int cores;
+
+	/** The memory held by the running jobs, in bytes. */
+	private long memoryInUse;
+
+	/** The number of cores used by the running jobs. */
+	private int coresInUse;
+
+	/** The jobs that are waiting to run, in the order they arrived. */
+	private final LinkedList<Object> waiting = new LinkedList<>();
+
+	/**
+	 * Constructs a new JobAdmission.
+	 *
+	 * @param memoryBudget
+	 *            The memory that running jobs may hold between them, in bytes
+	 * @param cores
+	 *            The number of cores that running jobs may use between them
+	 */
+	JobAdmission(long memoryBudget, int cores) {
+		this.memoryBudget = memoryBudget;
+		this.cores = cores;
+	}
+
+	/**
+	 * Returns true if a job with the given cost could ever run, which it can
+	 * if it fits in the memory budget on its own.
+	 *
+	 * @param cost
+	 *            The job's estimated cost
+	 * @return true if the job could run
+	 */
+	boolean fits(ImageCost cost) {
+		return cost.getBytes() <= memoryBudget;
+	}
+
+	/**
+	 * Returns true if a job with the given cost and number of threads would
+	 * have to wait to run.
+	 *
+	 * @param cost
+	 *            The job's estimated cost
+	 * @param threads
+	 *            The number of threads the job runs on
+	 * @return true if the job would have to wait
+	 */
+	synchronized boolean isBusy(ImageCost cost, int threads) {
+		return !waiting.isEmpty() || !hasRoom(cost, threads);
+	}
+
+	/**
+	 * Waits until every job that arrived earlier has started, and there is
+	 * enough memory and there are enough cores for the given job, then counts
+	 * them as in use. The job must fit (see fits()), and must not have more
+	 * threads than there are cores.
+	 *
+	 * @param cost
+	 *            The job's estimated cost
+	 * @param threads
+	 *            The number of threads the job runs on
+	 * @param cancellation
+	 *            The job's cancellation token. If it is cancelled while the
+	 *            job waits, the job gives up its place.
+	 * @return true if the job may run, or false if it was cancelled
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	synchronized boolean admit(ImageCost cost, int threads, CancellationToken cancellation)
+			throws InterruptedException {
+		Object ticket = new Object();
+		waiting.add(ticket);
+		try {
+			while (waiting.getFirst() != ticket || !hasRoom(cost, threads)) {
+				if (cancellation.isCancelled()) {
+					return false;
+				}
+				wait(WAIT_MILLIS);
+			}
+			memoryInUse += cost.getBytes();
+			coresInUse += threads;
+			return true;
+		} finally {
+			waiting.remove(ticket);
+			// the next job in line may fit now
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Gives back the memory and cores of a job that was admitted.
+	 *
+	 * @param cost
+	 *            The job's estimated cost
+	 * @param threads
+	 *            The number of threads the job ran on
+	 */
+	synchronized void release(ImageCost cost, int threads) {
+		memoryInUse -= cost.getBytes();
+		coresInUse -= threads;
+		notifyAll();
+	}
+
+	/**
+	 * Returns true if there is enough memory and there are enough cores for a
+	 * job right now.
+	 *
+	 * @param cost
+	 *            The job's estimated cost
+	 * @param threads
+	 *            The number of threads the job runs on
+	 * @return true if the job fits alongside the running jobs
+	 */
+	private boolean hasRoom(ImageCost cost, int threads) {
+		return memoryInUse + cost.getBytes() <= memoryBudget && coresInUse + threads <= cores;
+	}
+}
@@ -0,0 +1,100 @@
+package com.nmiles.rainbowgen.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.glassfish.grizzly.websockets.WebSocket;
+
+import com.nmiles.rainbowgen.generator.ImageRecord;
+
+/**
+ * A WebSocket that a job's chunks are being streamed to, in the format its
+ * client asked for. A job may be streamed to several in turn, if its client
+ * reconnects, and each gets its own queue in the ChunkScheduler and its own
+ * ChunkSizer.
+ * 
+ * @author Nathan Miles
+ *
+ */
+class JobStream {
+	/** The start of every JSON chunk message. */
+	static final String CHUNK_PREFIX = "{\"type\": \"chunk\"";
+	/** The number of bytes each pixel takes in a hex chunk. */
+	private static final int HEX_PIXEL_BYTES = 2 * ImageRecord.BINARY_PIXEL_BYTES;
+
+	/** The WebSocket. */
+	final WebSocket websocket;
+	/**
+	 * Whether the client asked for chunks as binary frames (see
+	 * ImageRecord.getBinaryPixels()) rather than as hex in JSON.
+	 */
+	final boolean binary;
+	/** The listener of the queue, which picks the size of each chunk. */
+	final ChunkSizer sizer;
+	/** The WebSocket's message queue. */
+	final ConcurrentLinkedQueue<Object> queue;
+	/** Whether the done message has been queued. */
+	boolean doneSent;
+
+	/**
+	 * Constructs a new JobStream, and registers it with the ChunkScheduler.
+	 * 
+	 * @param websocket
+	 *            The WebSocket
+	 * @param binary
+	 *            Whether the client asked for binary chunks
+	 */
+	JobStream(WebSocket websocket, boolean binary) {
+		this.websocket = websocket;
+		this.binary = binary;
+		sizer = new ChunkSizer(binary ? ImageRecord.BINARY_PIXEL_BYTES : HEX_PIXEL_BYTES);
+		queue = ChunkScheduler.getInstance().register(websocket, sizer);
+	}
+
+	/**
+	 * Constructs a new JobStream whose messages go to the given queue, without
+	 * registering it with the ChunkScheduler. Nothing is sent unless the
+	 * caller takes the messages from the queue and tells the sizer.
+	 * 
+	 * @param websocket
+	 *            The WebSocket, which may be null
+	 * @param binary
+	 *            Whether the client asked for binary chunks
+	 * @param queue
+	 *            The queue
+	 */
+	JobStream(WebSocket websocket, boolean binary, ConcurrentLinkedQueue<Object> queue) {
+		this.websocket = websocket;
+		this.binary = binary;
+		sizer = new ChunkSizer(binary ? ImageRecord.BINARY_PIXEL_BYTES : HEX_PIXEL_BYTES);
+		this.queue = queue;
+	}
+
+	/**
+	 * Gets the name of the format of the chunks, as used in requests.
+	 * 
+	 * @return "binary" or "hex"
+	 */
+	String getFormat() {
+		return binary ? "binary" : "hex";
+	}
+
+	/**
+	 * Builds the message for a chunk in the format the client asked for: a
+	 * binary frame holding the pixels' binary form, or a JSON chunk message
+	 * holding their hex.
+	 * 
+	 * @param record
+	 *            The record the pixels are in
+	 * @param first
+	 *            The index of the first pixel in the chunk
+	 * @param count
+	 *            The number of pixels in the chunk
+	 * @return The message, a byte array or a String
+	 */
+	Object chunkMessage(ImageRecord record, int first, int count) {
+		if (binary) {
+			return record.getBinaryPixels(first, count);
+		}
+		return CHUNK_PREFIX + ", \"chunk\": \"" + record.getHexPixels(first, count) + "\"}";
+	}
+}
@@ -0,0 +1,131 @@
+package com.nmiles.rainbowgen.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring buffer that hands events from exactly one producer thread to
+ * exactly one consumer thread, without locks. The producer owns the tail and
+ * the consumer owns the head, so each index is only ever written by one
+ * thread, and a volatile write of it publishes the slots before it. A
+ * producer that finds the ring full waits for the consumer to catch up, so a
+ * slow consumer holds the producer back rather than letting events pile up.
+ *
+ * Events are non-negative longs. Once the producer has closed the ring, the
+ * consumer gets the events that are left, then -1 for good.
+ *
+ * @author Nathan Miles
+ *
+ */
+class PixelRing {
+	/** How long either side parks at a time while it waits, in nanoseconds. */
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/** The events, at their index modulo the capacity. */
+	private final long[] slots;
+	/** The capacity minus one, to find an index's slot with a mask. */
+	private final int mask;
+	/** The index of the next event to take, written only by the consumer. */
+	private volatile long head;
+	/** The index of the next event to publish, written only by the producer. */
+	private volatile long tail;
+	/** Whether the producer has closed the ring. */
+	private volatile boolean closed;
+	/** The consumer, if it is parked waiting for an event, or null. */
+	private volatile Thread waiting;
+
+	/**
+	 * Constructs a new, empty PixelRing.
+	 *
+	 * @param capacity
+	 *            The most events the ring holds at once, which must be a
+	 *            power of two
+	 * @throws IllegalArgumentException
+	 *             If the capacity isn't a power of two
+	 */
+	PixelRing(int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity " + capacity + " isn't a power of two");
+		}
+		slots = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds an event to the ring, waiting for room if it is full. Only the
+	 * producer may call this.
+	 *
+	 * @param event
+	 *            The event, which must not be negative
+	 * @throws IllegalStateException
+	 *             If the ring has been closed
+	 */
+	void publish(long event) {
+		if (closed) {
+			throw new IllegalStateException("The ring has been closed");
+		}
+		long index = tail;
+		while (index - head == slots.length) {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		slots[(int) index & mask] = event;
+		tail = index + 1;
+		Thread consumer = waiting;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Closes the ring, so that the consumer stops once it has taken the
+	 * events that are left. Only the producer may call this.
+	 */
+	void close() {
+		closed = true;
+		Thread consumer = waiting;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Takes the next event, waiting up to the given time for one to be
+	 * published. Only the consumer may call this.
+	 *
+	 * @param timeoutNanos
+	 *            The longest to wait, in nanoseconds
+	 * @return The event, or -1 if none was published in time, or the ring is
+	 *         closed and empty
+	 */
+	long take(long timeoutNanos) {
+		long index = head;
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (index == tail) {
+			// the last events may be published just before it is closed
+			if (closed && index == tail) {
+				return -1;
+			}
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return -1;
+			}
+			waiting = Thread.currentThread();
+			if (index == tail && !closed) {
+				LockSupport.parkNanos(Math.min(left, PARK_NANOS * 10));
+			}
+			waiting = null;
+		}
+		long event = slots[(int) index & mask];
+		head = index + 1;
+		return event;
+	}
+
+	/**
+	 * Returns true if the ring has been closed and every event in it taken.
+	 *
+	 * @return true if the consumer has nothing left to take
+	 */
+	boolean isDrained() {
+		return closed && head == tail;
+	}
+}
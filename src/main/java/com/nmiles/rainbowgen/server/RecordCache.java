@@ -0,0 +1,308 @@
+package com.nmiles.rainbowgen.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.nmiles.rainbowgen.generator.ImageCost;
+import com.nmiles.rainbowgen.generator.ImageOptions;
+import com.nmiles.rainbowgen.generator.ImageRecord;
+
+/**
+ * A cache of the records of finished images on disk, so that an image that is
+ * asked for again is streamed from its file rather than generated again. An
+ * image can only be cached if it can be reproduced from its request: its
+ * type, size, parameters, ColorTracker settings, and seed. That rules out
+ * images generated on more than one thread, which depend on how fast each
+ * thread runs.
+ *
+ * Each record is saved with ImageRecord.save(), in a file named after a hash
+ * of its request, and opened with ImageRecord.open(), which maps it into
+ * memory. The files take up at most maxBytes between them. When a new one
+ * doesn't fit, the least recently used ones are deleted. Files are touched
+ * when they are used, so the order survives a restart.
+ *
+ * @author Nathan Miles
+ *
+ */
+class RecordCache {
+	/** The version of the keys, which changes whenever the records would. */
+	private static final String KEY_VERSION = "1";
+	/** The end of the name of every file in the cache. */
+	private static final String SUFFIX = ".rec";
+	/** The number of bytes in a megabyte, for the stats. */
+	private static final double MEGABYTE = 1 << 20;
+
+	/** The directory the files are in. */
+	private final Path directory;
+	/** The most bytes the files may take up between them. */
+	private final long maxBytes;
+	/**
+	 * The size of every file, by name, from the least recently used to the
+	 * most.
+	 */
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+	/** The number of bytes the files take up between them. */
+	private long bytes;
+	/** The number of times a cacheable image has been looked for. */
+	private long lookups;
+	/** The number of times a cacheable image was found. */
+	private long hits;
+	/** The number of bytes of records that were streamed from the cache. */
+	private long bytesSaved;
+	/** The estimated CPU time of the images that were found, in seconds. */
+	private double cpuSecondsSaved;
+
+	/**
+	 * Constructs a new RecordCache in the given directory, which is created if
+	 * it doesn't exist. Files that are already there are kept, from the most
+	 * recently modified back, as far as they fit, and any that were left half
+	 * written are deleted.
+	 *
+	 * @param directory
+	 *            The directory
+	 * @param maxBytes
+	 *            The most bytes the files may take up between them
+	 * @throws IOException
+	 *             If the directory can't be created or read
+	 */
+	RecordCache(Path directory, long maxBytes) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+		List<Path> existing = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				existing.add(file);
+			}
+		}
+		existing.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+		for (Path file : existing) {
+			long size = Files.size(file);
+			files.put(file.getFileName().toString(), size);
+			bytes += size;
+		}
+		// files that were being written when the server last stopped
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.tmp")) {
+			for (Path file : stream) {
+				delete(file);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Creates the cache described by the RECORD_CACHE_DIR and
+	 * RECORD_CACHE_BYTES environment variables. The directory defaults to
+	 * rainbowgen-cache in the temp directory, and the size to a gigabyte. A
+	 * size of 0 turns the cache off.
+	 *
+	 * @return The cache, or null if it is turned off or can't be created
+	 */
+	static RecordCache fromEnvironment() {
+		String dir = System.getenv("RECORD_CACHE_DIR");
+		String size = System.getenv("RECORD_CACHE_BYTES");
+		long maxBytes = size == null ? 1L << 30 : Long.parseLong(size);
+		if (maxBytes <= 0) {
+			return null;
+		}
+		Path directory = dir == null ? Paths.get(System.getProperty("java.io.tmpdir"), "rainbowgen-cache")
+				: Paths.get(dir);
+		try {
+			RecordCache cache = new RecordCache(directory, maxBytes);
+			System.out.println("Record cache in " + directory + ": " + cache.getStats());
+			return cache;
+		} catch (IOException e) {
+			System.out.println("No record cache: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the key of an image's request, or null if the image can't be
+	 * cached.
+	 *
+	 * @param type
+	 *            The type of the image
+	 * @param width
+	 *            The width of the image
+	 * @param height
+	 *            The height of the image
+	 * @param parameters
+	 *            The value of every parameter of the type, by name
+	 * @param options
+	 *            The options the image is generated with
+	 * @return The key, or null if the image is generated on more than one
+	 *         thread
+	 */
+	static String key(String type, int width, int height, Map<String, Integer> parameters, ImageOptions options) {
+		if (options.getThreads() != 1) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder(KEY_VERSION);
+		key.append(';').append(type).append(';').append(width).append('x').append(height);
+		key.append(';').append(options.getTrackerType()).append(';').append(options.getDistanceMode());
+		key.append(';').append(options.getSeed());
+		for (Map.Entry<String, Integer> parameter : new TreeMap<>(parameters).entrySet()) {
+			key.append(';').append(parameter.getKey()).append('=').append(parameter.getValue());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Looks for an image's record, and opens it if it is there.
+	 *
+	 * @param key
+	 *            The key of the image's request, from key()
+	 * @param cost
+	 *            The estimated cost of generating the image, which is counted
+	 *            as saved if it is there
+	 * @return The record, or null if it isn't there
+	 */
+	synchronized ImageRecord get(String key, ImageCost cost) {
+		lookups++;
+		String name = fileName(key);
+		if (files.get(name) == null) {
+			return null;
+		}
+		Path file = directory.resolve(name);
+		try {
+			ImageRecord record = ImageRecord.open(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			hits++;
+			bytesSaved += files.get(name);
+			cpuSecondsSaved += cost.getCpuSeconds();
+			return record;
+		} catch (IOException e) {
+			System.out.println("Dropping " + file + " from the record cache: " + e.getMessage());
+			bytes -= files.remove(name);
+			delete(file);
+			return null;
+		}
+	}
+
+	/**
+	 * Saves a finished image's record, making room for it by deleting the
+	 * least recently used records. A record that is bigger than the whole
+	 * cache isn't saved.
+	 *
+	 * @param key
+	 *            The key of the image's request, from key()
+	 * @param record
+	 *            The record, which must be final
+	 */
+	void put(String key, ImageRecord record) {
+		long size = (long) record.getNumPixels() * ImageRecord.BINARY_PIXEL_BYTES;
+		if (size > maxBytes) {
+			return;
+		}
+		String name = fileName(key);
+		Path temp = null;
+		try {
+			// written under another name first, so a half written file is never found
+			temp = Files.createTempFile(directory, name, ".tmp");
+			record.save(temp);
+			synchronized (this) {
+				Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				Long replaced = files.put(name, size);
+				bytes += size - (replaced == null ? 0 : replaced);
+				evict();
+			}
+		} catch (IOException | IllegalStateException e) {
+			// the record may have been closed while it was being saved
+			System.out.println("Couldn't cache a record: " + e.getMessage());
+			if (temp != null) {
+				delete(temp);
+			}
+		}
+	}
+
+	/**
+	 * Describes how well the cache is doing: its hit rate, what it has saved,
+	 * and how full it is.
+	 *
+	 * @return The description
+	 */
+	synchronized String getStats() {
+		return String.format("%d hits in %d lookups (%.0f%%), %.1f MB and %.1f CPU-seconds saved, %d records, "
+				+ "%.1f MB of %.1f MB", hits, lookups, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+				bytesSaved / MEGABYTE, cpuSecondsSaved, files.size(), bytes / MEGABYTE, maxBytes / MEGABYTE);
+	}
+
+	/**
+	 * Deletes the least recently used files until the rest fit.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> file = eldest.next();
+			bytes -= file.getValue();
+			eldest.remove();
+			// a record that is open keeps its mapping after its file is gone
+			delete(directory.resolve(file.getKey()));
+		}
+	}
+
+	/**
+	 * Gets the name of the file for a key: a SHA-256 hash of it, in hex.
+	 *
+	 * @param key
+	 *            The key
+	 * @return The name of the file
+	 */
+	static String fileName(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash) {
+				name.append(String.format("%02x", b));
+			}
+			return name.append(SUFFIX).toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Gets when a file was last modified, or the epoch if that can't be read.
+	 *
+	 * @param file
+	 *            The file
+	 * @return The time
+	 */
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	/**
+	 * Deletes a file, if it can.
+	 *
+	 * @param file
+	 *            The file
+	 */
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.out.println("Couldn't delete " + file + ": " + e.getMessage());
+		}
+	}
+}
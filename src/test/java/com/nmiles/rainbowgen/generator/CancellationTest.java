@@ -0,0 +1,171 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that every kind of image stops at the next step() once its
+ * cancellation token is cancelled or expires, that it lets go of its raster,
+ * and that its record still holds exactly the pixels it populated.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class CancellationTest {
+    /** The width of the single threaded test images. */
+    private static final int WIDTH = 128;
+
+    /** The height of the single threaded test images. */
+    private static final int HEIGHT = 96;
+
+    /**
+     * The width and height of the test images that worker threads generate.
+     * The workers keep going while step() returns, so their images are big
+     * enough that they can't finish before the token is cancelled.
+     */
+    private static final int PARALLEL_SIZE = 512;
+
+    @Test
+    public void cancelledImagesStopWithTheirPixelsRecorded() {
+        for (Kind kind : kinds()) {
+            CancellationToken token = new CancellationToken();
+            RandomImage image = kind.create(token);
+            int pixels = image.width * image.height;
+            while (image.getPixelsPlaced() < pixels / 3) {
+                image.step(1000);
+            }
+            token.cancel();
+            assertEquals(kind.toString(), 0, image.step(1000));
+            assertTrue(kind.toString(), image.isStopped());
+            assertTrue(kind.toString(), image.isFinished());
+            assertNull(kind.toString(), image.raster);
+            assertTrue(kind.toString(), image.getPixelsPlaced() < pixels);
+            assertEquals(kind.toString(), image.getPixelsPlaced(), countRecorded(image));
+        }
+    }
+
+    @Test
+    public void expiredImagesStopBeforeGenerating() {
+        for (Kind kind : kinds()) {
+            RandomImage image = kind.create(new CancellationToken(0));
+            int planted = image.getPixelsPlaced();
+            assertEquals(kind.toString(), 0, image.step(1000));
+            assertTrue(kind.toString(), image.isStopped());
+            assertEquals(kind.toString(), planted, image.getPixelsPlaced());
+            assertEquals(kind.toString(), planted, countRecorded(image));
+        }
+    }
+
+    @Test
+    public void uncancelledImagesFinish() {
+        RandomImage image = new Kind("stainedGlass", 4, false).create(new CancellationToken(60 * 1000));
+        TestImages.finish(image);
+        assertFalse(image.isStopped());
+        assertEquals(image.width * image.height, image.getPixelsPlaced());
+    }
+
+    /**
+     * Gets every kind of image to test: every type on one thread, and
+     * StainedGlass both tiled and with concurrent seeds.
+     *
+     * @return The kinds
+     */
+    private static List<Kind> kinds() {
+        List<Kind> kinds = new ArrayList<>();
+        for (String type : TestImages.TYPES) {
+            kinds.add(new Kind(type, 1, false));
+        }
+        kinds.add(new Kind("stainedGlass", 4, false));
+        kinds.add(new Kind("stainedGlass", 4, true));
+        return kinds;
+    }
+
+    /**
+     * Finalizes an image's record, and counts the pixels in it, checking
+     * that none of them appears twice.
+     *
+     * @param image
+     *            The image
+     * @return The number of pixels in the record
+     */
+    private static int countRecorded(RandomImage image) {
+        ImageRecord record = image.getRecord();
+        record.makeFinal();
+        BitSet seen = new BitSet(image.width * image.height);
+        int pixels = 0;
+        for (int i = 0; i < record.getNumChunks(); i++) {
+            String chunk = record.getChunk(i);
+            for (int j = 0; j < chunk.length(); j += 12) {
+                int x = Integer.parseInt(chunk.substring(j, j + 3), 16);
+                int y = Integer.parseInt(chunk.substring(j + 3, j + 6), 16);
+                assertFalse("recorded twice: " + x + ", " + y, seen.get(y * image.width + x));
+                seen.set(y * image.width + x);
+                pixels++;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A type of image, and how many threads generate it.
+     */
+    private static final class Kind {
+        /** The type, as used in requests. */
+        private final String type;
+
+        /** The number of threads. */
+        private final int threads;
+
+        /** Whether the seeds are grown concurrently rather than in tiles. */
+        private final boolean concurrentSeeds;
+
+        /**
+         * Constructs a new Kind.
+         *
+         * @param type
+         *            The type, as used in requests
+         * @param threads
+         *            The number of threads
+         * @param concurrentSeeds
+         *            Whether the seeds are grown concurrently rather than in
+         *            tiles
+         */
+        Kind(String type, int threads, boolean concurrentSeeds) {
+            this.type = type;
+            this.threads = threads;
+            this.concurrentSeeds = concurrentSeeds;
+        }
+
+        /**
+         * Creates an image of this kind with the given cancellation token.
+         *
+         * @param token
+         *            The cancellation token
+         * @return The image
+         */
+        RandomImage create(CancellationToken token) {
+            ImageOptions options = new ImageOptions();
+            options.setSeed(type.hashCode() + threads);
+            options.setCancellationToken(token);
+            options.setThreads(threads);
+            options.setConcurrentSeeds(concurrentSeeds);
+            if (threads > 1) {
+                return TestImages.create(type, PARALLEL_SIZE, PARALLEL_SIZE, options);
+            }
+            return TestImages.create(type, WIDTH, HEIGHT, options);
+        }
+
+        @Override
+        public String toString() {
+            return type + (threads > 1 ? (concurrentSeeds ? " concurrent" : " tiled") : "");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.Random;
+
+/**
+ * A simple benchmark for the ColorTracker. It is not a unit test, so it is not
+ * run by the build. Run it by hand with the test classpath, e.g.
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes com.nmiles.rainbowgen.generator.ColorTrackerBenchmark
+ * </pre>
+ *
+ * For each TrackerType, it reports how much heap a full-size (256x256x256)
+ * tracker retains. It then fills the tracker in random order and, at several
+ * fill levels, measures the average cost of a closest color query centered on
+ * a random color, and of drawing a random unused color. This is repeated for
+ * every DistanceMode. Every run fills the tracker in the same order and
+ * queries it with the same colors.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ColorTrackerBenchmark {
+    /** The number of colors in the tracker being measured. */
+    private static final int COLORS = ColorTracker.MAX_COLORS;
+
+    /** The fill levels at which queries are timed. */
+    private static final double[] FILL_LEVELS = { 0.0, 0.5, 0.9, 0.99, 0.999, 0.9999, 0.99999, 0.999999 };
+
+    /** The number of queries timed at each fill level. */
+    private static final int QUERIES = 2000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            Command line arguments. None are used.
+     */
+    public static void main(String[] args) {
+        int[] order = shuffledColors(new Random(42));
+        for (TrackerType type : TrackerType.values()) {
+            for (DistanceMode mode : DistanceMode.values()) {
+                run(type, mode, order);
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmark for one type of tracker.
+     *
+     * @param type
+     *            The type of tracker to measure
+     * @param mode
+     *            The distance mode to query with
+     * @param order
+     *            The order to mark colors used in
+     */
+    private static void run(TrackerType type, DistanceMode mode, int[] order) {
+        Random rand = new Random(7);
+        IntList closestColors = new IntList();
+        long before = usedHeap();
+        ColorTracker tracker = ColorTracker.create(COLORS, type, new XoshiroRandom(7));
+        tracker.setDistanceMode(mode);
+        long retained = usedHeap() - before;
+        System.out.printf("%s, %s: %d KB retained%n", type, mode, retained / 1024);
+        int used = 0;
+        System.out.println("fill        queries  ns/query  ns/random");
+        for (double fill : FILL_LEVELS) {
+            int target = (int) (COLORS * fill);
+            for (; used < target; used++) {
+                tracker.markUsed(order[used]);
+            }
+            // let the JIT settle on this fill level before anything is timed
+            for (int i = 0; i < QUERIES; i++) {
+                tracker.getClosestColors(order[rand.nextInt(COLORS)], closestColors);
+            }
+            long found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                tracker.getClosestColors(order[rand.nextInt(COLORS)], closestColors);
+                found += closestColors.size();
+            }
+            long elapsed = System.nanoTime() - start;
+            // time drawing random unused colors at this fill level
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                found += tracker.getRandomUnused() == 0 ? 1 : 0;
+            }
+            long randomElapsed = System.nanoTime() - start;
+            System.out.printf("%-10s  %7d  %8d  %9d  (%d found)%n", fill, QUERIES, elapsed / QUERIES,
+                    randomElapsed / QUERIES, found);
+        }
+    }
+
+    /**
+     * Gets the number of bytes in use on the heap after a garbage collection.
+     *
+     * @return The used heap in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Builds every 24-bit color, as ColorTracker represents it, in a random
+     * order.
+     *
+     * @param rand
+     *            The Random to shuffle with
+     * @return The shuffled colors
+     */
+    private static int[] shuffledColors(Random rand) {
+        int[] colors = new int[COLORS];
+        for (int i = 0; i < COLORS; i++) {
+            colors[i] = 0xFF000000 | i;
+        }
+        for (int i = COLORS - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int tmp = colors[i];
+            colors[i] = colors[j];
+            colors[j] = tmp;
+        }
+        return colors;
+    }
+}
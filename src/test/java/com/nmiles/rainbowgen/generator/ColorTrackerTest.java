@@ -0,0 +1,297 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the closest color search finds exactly the colors that a brute
+ * force scan of the whole cube finds, for every kind of tracker, at every
+ * dimension up to 64, and at random fill levels, in both distance modes.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ColorTrackerTest {
+    /** The largest dimension to test. */
+    private static final int MAX_DIMENSION = 64;
+
+    /**
+     * The number of unused colors to leave at each fill level, or -1 for a
+     * random fill level. The last few are sparse enough that the search
+     * walks the OccupancyIndex rather than scanning directly.
+     */
+    private static final int[] LEFT = { -1, -1, -1, -1, 200, 20, 1 };
+
+    /** The number of colors looked for at each fill level. */
+    private static final int QUERIES = 40;
+
+    @Test
+    public void cubeSearchMatchesBruteForce() {
+        Random rand = new Random(11);
+        for (int dimension = 1; dimension <= MAX_DIMENSION; dimension *= 2) {
+            for (int kind = 0; kind < 3; kind++) {
+                check(dimension, kind, DistanceMode.CUBE, rand);
+            }
+        }
+    }
+
+    @Test
+    public void euclideanSearchMatchesBruteForce() {
+        Random rand = new Random(12);
+        for (int dimension = 1; dimension <= MAX_DIMENSION; dimension *= 2) {
+            for (int kind = 0; kind < 3; kind++) {
+                check(dimension, kind, DistanceMode.EUCLIDEAN, rand);
+            }
+        }
+    }
+
+    @Test
+    public void euclideanSearchReachesPastTheOffsetRings() {
+        int last = MAX_DIMENSION - 1;
+        // around the edge of the rings' reach of 32 cells, and well past it
+        int[][] left = { { 0, 0, 0 }, { 32, 0, 0 }, { 0, 32, 0 }, { 32, 1, 0 }, { 31, 8, 0 }, { last, last, last },
+                { last, 0, last } };
+        int[][] from = { { 0, 0, 0 }, { last, last, last }, { 0, last, 0 }, { 16, 16, 16 }, { 48, 0, 0 } };
+        for (int kind = 0; kind < 3; kind++) {
+            // first with every cell left, then with each one left alone
+            for (int alone = -1; alone < left.length; alone++) {
+                int cells = MAX_DIMENSION * MAX_DIMENSION * MAX_DIMENSION;
+                ColorTracker tracker = create(cells, kind, 5);
+                tracker.setDistanceMode(DistanceMode.EUCLIDEAN);
+                boolean[] used = new boolean[cells];
+                Arrays.fill(used, true);
+                for (int i = 0; i < left.length; i++) {
+                    if (alone < 0 || i == alone) {
+                        used[cellOf(tracker, left[i])] = false;
+                    }
+                }
+                for (int cell = 0; cell < cells; cell++) {
+                    if (used[cell]) {
+                        tracker.markUsed(colorOf(tracker, cell));
+                    }
+                }
+                IntList closestColors = new IntList();
+                for (int[] start : from) {
+                    int color = colorOf(tracker, cellOf(tracker, start));
+                    tracker.getClosestColors(color, closestColors);
+                    int[] found = new int[closestColors.size()];
+                    for (int i = 0; i < found.length; i++) {
+                        found[i] = closestColors.get(i);
+                    }
+                    Arrays.sort(found);
+                    assertArrayEquals(kind + " " + alone + " " + Arrays.toString(start),
+                            bruteForce(tracker, used, color, DistanceMode.EUCLIDEAN), found);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills a tracker a little more at a time, up to a single unused color,
+     * and checks the search at random colors at each step.
+     *
+     * @param dimension
+     *            The dimension of the tracker's cube
+     * @param kind
+     *            0 for an ArrayColorTracker, 1 for a BitSetColorTracker, 2
+     *            for a ConcurrentColorTracker
+     * @param mode
+     *            The distance mode to search with
+     * @param rand
+     *            The Random to pick fill levels and colors with
+     */
+    private static void check(int dimension, int kind, DistanceMode mode, Random rand) {
+        int cells = dimension * dimension * dimension;
+        ColorTracker tracker = create(cells, kind, rand.nextLong());
+        tracker.setDistanceMode(mode);
+        boolean[] used = new boolean[cells];
+        int[] order = shuffledCells(cells, rand);
+        IntList closestColors = new IntList();
+        int marked = 0;
+        for (int left : LEFT) {
+            // a random level is a random amount of the way from the last to full
+            int target = left < 0 ? marked + (int) ((cells - marked - 1) * rand.nextDouble())
+                    : Math.max(marked, cells - left);
+            for (; marked < target; marked++) {
+                int cell = order[marked];
+                used[cell] = true;
+                tracker.markUsed(colorOf(tracker, cell));
+            }
+            for (int query = 0; query < QUERIES; query++) {
+                int color = 0xFF000000 | rand.nextInt(1 << 24);
+                tracker.getClosestColors(color, closestColors);
+                int[] found = new int[closestColors.size()];
+                for (int i = 0; i < found.length; i++) {
+                    found[i] = closestColors.get(i);
+                }
+                Arrays.sort(found);
+                String message = dimension + " " + kind + " " + mode + " " + marked + " "
+                        + Integer.toHexString(color);
+                assertArrayEquals(message, bruteForce(tracker, used, color, mode), found);
+            }
+        }
+    }
+
+    /**
+     * Creates a tracker with every color in its cube unused.
+     *
+     * @param colors
+     *            The number of colors, which fills a cube
+     * @param kind
+     *            0 for an ArrayColorTracker, 1 for a BitSetColorTracker, 2
+     *            for a ConcurrentColorTracker
+     * @param seed
+     *            The seed of the tracker's random number generator
+     * @return The tracker
+     */
+    private static ColorTracker create(int colors, int kind, long seed) {
+        XoshiroRandom rand = new XoshiroRandom(seed);
+        switch (kind) {
+            case 0:
+                return new ArrayColorTracker(colors, rand);
+            case 1:
+                return new BitSetColorTracker(colors, rand);
+            default:
+                return new ConcurrentColorTracker(colors, rand);
+        }
+    }
+
+    /**
+     * Finds the closest unused colors to a color by measuring the distance to
+     * every cell of the cube. The color's own cell doesn't count.
+     *
+     * @param tracker
+     *            The tracker, for the shape of its cube
+     * @param used
+     *            Whether each cell is used, by cell number
+     * @param color
+     *            The color to match
+     * @param mode
+     *            How to measure the distance
+     * @return The closest colors, sorted
+     */
+    private static int[] bruteForce(ColorTracker tracker, boolean[] used, int color, DistanceMode mode) {
+        int r = ((color >> 16) & 0xFF) >> tracker.scalarShift;
+        int g = ((color >> 8) & 0xFF) >> tracker.scalarShift;
+        int b = (color & 0xFF) >> tracker.scalarShift;
+        int best = Integer.MAX_VALUE;
+        IntList closest = new IntList();
+        for (int cell = 0; cell < used.length; cell++) {
+            if (used[cell]) {
+                continue;
+            }
+            int dr = Math.abs(cellR(tracker, cell) - r);
+            int dg = Math.abs(cellG(tracker, cell) - g);
+            int db = Math.abs(cellB(tracker, cell) - b);
+            int distance = mode == DistanceMode.CUBE ? Math.max(dr, Math.max(dg, db))
+                    : dr * dr + dg * dg + db * db;
+            if (distance == 0 || distance > best) {
+                continue;
+            }
+            if (distance < best) {
+                best = distance;
+                closest.clear();
+            }
+            closest.add(colorOf(tracker, cell));
+        }
+        int[] colors = new int[closest.size()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = closest.get(i);
+        }
+        Arrays.sort(colors);
+        return colors;
+    }
+
+    /**
+     * Gets the color of a cell, numbered (r << 2 * dimensionShift) |
+     * (g << dimensionShift) | b.
+     *
+     * @param tracker
+     *            The tracker
+     * @param cell
+     *            The cell number
+     * @return The color
+     */
+    private static int colorOf(ColorTracker tracker, int cell) {
+        return tracker.colorAt(cellR(tracker, cell), cellG(tracker, cell), cellB(tracker, cell));
+    }
+
+    /**
+     * Gets the number of the cell at the given indices.
+     *
+     * @param tracker
+     *            The tracker
+     * @param rgb
+     *            The r, g, and b indices
+     * @return The cell number
+     */
+    private static int cellOf(ColorTracker tracker, int[] rgb) {
+        return (((rgb[0] << tracker.dimensionShift) | rgb[1]) << tracker.dimensionShift) | rgb[2];
+    }
+
+    /**
+     * Gets the r index of a cell.
+     *
+     * @param tracker
+     *            The tracker
+     * @param cell
+     *            The cell number
+     * @return The r index
+     */
+    private static int cellR(ColorTracker tracker, int cell) {
+        return cell >> (2 * tracker.dimensionShift);
+    }
+
+    /**
+     * Gets the g index of a cell.
+     *
+     * @param tracker
+     *            The tracker
+     * @param cell
+     *            The cell number
+     * @return The g index
+     */
+    private static int cellG(ColorTracker tracker, int cell) {
+        return (cell >> tracker.dimensionShift) & tracker.lastCell;
+    }
+
+    /**
+     * Gets the b index of a cell.
+     *
+     * @param tracker
+     *            The tracker
+     * @param cell
+     *            The cell number
+     * @return The b index
+     */
+    private static int cellB(ColorTracker tracker, int cell) {
+        return cell & tracker.lastCell;
+    }
+
+    /**
+     * Gets every cell number in a random order.
+     *
+     * @param cells
+     *            The number of cells
+     * @param rand
+     *            The Random to shuffle with
+     * @return The cell numbers
+     */
+    private static int[] shuffledCells(int cells, Random rand) {
+        int[] order = new int[cells];
+        for (int i = 0; i < cells; i++) {
+            order[i] = i;
+        }
+        for (int i = cells - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,138 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+/**
+ * Checks that threads sharing a ConcurrentColorTracker or a
+ * ConcurrentStainedGlass never use a color twice or populate a pixel twice.
+ * The tracker and the square images use every color in their cubes, so the
+ * threads end up fighting over the last few colors, and the threads' regions
+ * grow into each other, so they fight over pixels too. Each check is repeated,
+ * since any one run may happen not to race.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ConcurrentStainedGlassTest {
+    /** The number of threads to contend with. */
+    private static final int THREADS = 8;
+
+    /** The number of times each check is repeated. */
+    private static final int REPEATS = 20;
+
+    @Test
+    public void trackerGivesOutEveryColorOnce() throws InterruptedException {
+        for (int repeat = 0; repeat < REPEATS; repeat++) {
+            // 16x16x16, so every color in the cube is unused
+            final int colors = 4096;
+            final ConcurrentColorTracker tracker = new ConcurrentColorTracker(colors, new XoshiroRandom(repeat));
+            final AtomicIntegerArray claims = new AtomicIntegerArray(colors);
+            final AtomicInteger claimed = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                final XoshiroRandom rand = new XoshiroRandom(repeat * THREADS + i);
+                threads[i] = new Thread(() -> {
+                    IntList closest = new IntList();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (claimed.get() < colors) {
+                        tracker.getClosestColors(0xFF000000 | rand.nextInt(1 << 24), closest);
+                        for (int j = 0; j < closest.size(); j++) {
+                            int color = closest.get(j);
+                            if (tracker.tryMarkUsed(color)) {
+                                // the cell of the color in the cube
+                                claims.incrementAndGet(((color >> 12) & 0xF00) | ((color >> 8) & 0xF0)
+                                        | ((color >> 4) & 0xF));
+                                claimed.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(colors, claimed.get());
+            assertEquals(0, tracker.getRemaining());
+            for (int cell = 0; cell < colors; cell++) {
+                assertEquals("claims of cell " + cell, 1, claims.get(cell));
+            }
+        }
+    }
+
+    @Test
+    public void imagePopulatesEveryPixelOnceWithUniqueColors() {
+        for (int repeat = 0; repeat < REPEATS; repeat++) {
+            check(64, 64, repeat % 2 == 0 ? THREADS : 100, repeat);
+            check(97, 31, 3, repeat);
+        }
+    }
+
+    /**
+     * Generates a whole ConcurrentStainedGlass on THREADS threads, then checks
+     * that its record holds every pixel exactly once, that no color appears
+     * twice, and that the record matches the finished image.
+     *
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param startingPoints
+     *            The number of starting points
+     * @param seed
+     *            The seed to use
+     */
+    private static void check(int width, int height, int startingPoints, long seed) {
+        ImageOptions options = new ImageOptions();
+        options.setThreads(THREADS);
+        options.setConcurrentSeeds(true);
+        options.setSeed(seed);
+        RandomImage image = StainedGlass.create(width, height, startingPoints, options);
+        while (!image.isFinished()) {
+            image.step(500);
+        }
+        ImageRecord record = image.getRecord();
+        record.makeFinal();
+        int[] written = new int[width * height];
+        int[] recorded = new int[width * height];
+        BitSet used = new BitSet(1 << 24);
+        int pixels = 0;
+        for (int i = 0; i < record.getNumChunks(); i++) {
+            String chunk = record.getChunk(i);
+            for (int j = 0; j < chunk.length(); j += 12) {
+                int x = Integer.parseInt(chunk.substring(j, j + 3), 16);
+                int y = Integer.parseInt(chunk.substring(j + 3, j + 6), 16);
+                int color = Integer.parseInt(chunk.substring(j + 6, j + 12), 16);
+                written[y * width + x]++;
+                recorded[y * width + x] = color;
+                assertFalse("reused " + Integer.toHexString(color), used.get(color));
+                used.set(color);
+                pixels++;
+            }
+        }
+        assertEquals(width * height, pixels);
+        assertEquals(width * height, image.pixelsPlaced);
+        BufferedImage finished = image.toBufferedImage();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("writes to " + x + ", " + y, 1, written[y * width + x]);
+                assertEquals(recorded[y * width + x], finished.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that FastIterator's simulated walk, RandomImage.walk(), picks pixels
+ * and leaves the cursor with the same chances as the walk it replaced, which
+ * stepped through the list one pixel at a time and turned around at the
+ * ends.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class FastIteratorTest {
+    /** The number of walks taken for each case. */
+    private static final int WALKS = 100000;
+
+    /** The sizes of the lists walked. */
+    private static final int[] SIZES = { 1, 2, 7, 40 };
+
+    /** The chances of stopping at each pixel, out of 1000. */
+    private static final int[] PERCENTS = { 1, 30, 500, 1000 };
+
+    @Test
+    public void walkMatchesSteppingThroughTheList() {
+        Random rand = new Random(17);
+        for (int percent : PERCENTS) {
+            for (int size : SIZES) {
+                // from either end, and from the middle
+                for (int gap : new int[] { 0, size / 2, size }) {
+                    check(size, gap, percent, rand);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the same number of walks through FastIterator.choosePixelFromList()
+     * and the old walk from the same cursor, and checks that each pixel and
+     * cursor it can end up at comes up about as often in both.
+     *
+     * @param size
+     *            The size of the list
+     * @param gap
+     *            The cursor to start from
+     * @param percent
+     *            The chance of stopping at each pixel, out of 1000
+     * @param rand
+     *            The Random for the old walk
+     */
+    private static void check(int size, int gap, int percent, Random rand) {
+        FastIterator image = new FastIterator(4, 4, percent);
+        image.edgeList = new IndexedIntList();
+        for (int i = 0; i < size; i++) {
+            image.edgeList.add(i, i);
+        }
+        // counted by pixel * (size + 1) + cursor
+        long[] simulated = new long[size * (size + 1)];
+        long[] stepped = new long[simulated.length];
+        for (int i = 0; i < WALKS; i++) {
+            image.cursor = gap;
+            int pixel = image.choosePixelFromList();
+            simulated[pixel * (size + 1) + image.cursor]++;
+            stepped[stepThrough(size, gap, percent, rand)]++;
+        }
+        for (int i = 0; i < simulated.length; i++) {
+            // allow six standard deviations of the difference of the counts
+            double p = (simulated[i] + stepped[i]) / (2.0 * WALKS);
+            double allowed = 6 * Math.sqrt(2 * WALKS * p * (1 - p)) + 2;
+            String message = "size " + size + " gap " + gap + " percent " + percent + " pixel " + i / (size + 1)
+                    + " cursor " + i % (size + 1) + ": " + simulated[i] + " vs " + stepped[i];
+            assertTrue(message, Math.abs(simulated[i] - stepped[i]) <= allowed);
+        }
+    }
+
+    /**
+     * Walks through a list one pixel at a time, just as FastIterator did with
+     * a ListIterator before the walk was simulated. After returning a pixel
+     * while moving right, the cursor is after it, and after returning one
+     * while moving left, the cursor is before it.
+     *
+     * @param size
+     *            The size of the list
+     * @param cursor
+     *            The cursor to start from
+     * @param percent
+     *            The chance of stopping at each pixel, out of 1000
+     * @param rand
+     *            The Random to walk with
+     * @return The pixel stopped at times (size + 1), plus the cursor after
+     */
+    private static int stepThrough(int size, int cursor, int percent, Random rand) {
+        boolean right = rand.nextInt(2) == 0;
+        for (;;) {
+            if (right) {
+                if (cursor < size) {
+                    if (rand.nextInt(1000) < percent) {
+                        return cursor * (size + 1) + cursor + 1;
+                    }
+                    cursor++;
+                } else {
+                    right = false;
+                }
+            } else {
+                if (cursor > 0) {
+                    if (rand.nextInt(1000) < percent) {
+                        return (cursor - 1) * (size + 1) + cursor - 1;
+                    }
+                    cursor--;
+                } else {
+                    right = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that GlassIterator's simulated ListIterator stays on the same pixel
+ * when pixels are evicted from around it.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class GlassIteratorTest {
+    /** The width and height of the test image. */
+    private static final int SIZE = 16;
+
+    @Test
+    public void evictKeepsTheIteratorOnItsPixel() {
+        Random rand = new Random(3);
+        for (int run = 0; run < 50; run++) {
+            GlassIterator image = new GlassIterator(SIZE, SIZE, 30, 30, 30);
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < image.edgeList.size(); i++) {
+                expected.add(image.edgeList.get(i));
+            }
+            // append every other pixel, in a random order
+            for (int pixel : shuffledPixels(rand)) {
+                if (!expected.contains(pixel)) {
+                    image.iteratorPos = expected.size();
+                    image.addToEdge(pixel);
+                    expected.add(pixel);
+                }
+            }
+            int position = rand.nextInt(expected.size());
+            image.iteratorPos = position;
+            while (expected.size() > 1) {
+                int index = rand.nextInt(expected.size());
+                int current = expected.get(position);
+                image.evict(expected.remove(index));
+                if (index < position) {
+                    position--;
+                    // a pixel before it moves it back onto the same pixel
+                    assertEquals(current, (int) expected.get(position));
+                } else if (index > position) {
+                    assertEquals(current, (int) expected.get(position));
+                }
+                // evicting its own pixel leaves it on the one that followed
+                assertEquals(position, image.iteratorPos);
+                assertEquals(expected.size(), image.edgeList.size());
+                if (position < expected.size()) {
+                    assertEquals((int) expected.get(position), image.edgeList.get(image.iteratorPos));
+                } else {
+                    // past the end, just as a ListIterator after the last
+                    position = rand.nextInt(expected.size());
+                    image.iteratorPos = position;
+                }
+            }
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals((int) expected.get(i), image.edgeList.get(i));
+            }
+        }
+    }
+
+    /**
+     * Gets every packed pixel of the test image in a random order.
+     *
+     * @param rand
+     *            The Random to shuffle with
+     * @return The pixels
+     */
+    private static int[] shuffledPixels(Random rand) {
+        int[] pixels = new int[SIZE * SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i;
+        }
+        for (int i = pixels.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int tmp = pixels[i];
+            pixels[i] = pixels[j];
+            pixels[j] = tmp;
+        }
+        return pixels;
+    }
+}
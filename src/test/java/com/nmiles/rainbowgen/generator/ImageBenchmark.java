@@ -0,0 +1,341 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A simple benchmark for whole images. It is not a unit test, so it is not run
+ * by the build. Run it by hand with the test classpath, e.g.
+ *
+ * <pre>
+ * mvn test-compile
+ * java -Xmx4g -cp target/classes:target/test-classes com.nmiles.rainbowgen.generator.ImageBenchmark [first|full|walk|glass|threads|codec]
+ * </pre>
+ *
+ * The "first" section measures, for every ColorTracker dimension and
+ * TrackerType, the time to the first pixel: the time from constructing a
+ * StainedGlass until its first nextPixel() returns. The image sizes are picked
+ * so that the tracker has to throw away a good share of its colors, as most
+ * real requests do.
+ *
+ * The "full" section generates a whole image with each algorithm and reports
+ * the time it took, the number of nextPixel() calls it took, and how much
+ * memory was allocated along the way.
+ *
+ * The "walk" section generates a FastIterator at a range of individualPercent
+ * values, since the chance of stopping at each edge pixel decides how far its
+ * walk goes between pixels.
+ *
+ * The "glass" section generates large StainedGlass images with few and many
+ * starting points. Many starting points means many separate regions growing
+ * at once, and so a much longer edgeList.
+ *
+ * The "threads" section generates the same StainedGlass and FastIterator with
+ * every number of threads from 1 to the number of cores, and reports the
+ * speedup over a single thread. StainedGlass is generated both as tiles and
+ * with concurrent seeds.
+ *
+ * The "codec" section records a StainedGlass and a FastIterator of every size
+ * in CODEC_SIDES, then compresses their records with a RecordEncoder, one
+ * record chunk at a time, and reports the bytes per pixel, the ratio to the
+ * binary and hex forms, and how many pixels a second it encodes and decodes.
+ * With no argument, every section is run.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ImageBenchmark {
+    /** The number of times each measurement is repeated. The best is kept. */
+    private static final int REPEATS = 5;
+
+    /** The width and height of the images in the "full" section. */
+    private static final int FULL_SIDE = 1024;
+
+    /** The individualPercent values used in the "walk" section. */
+    private static final int[] WALK_PERCENTS = { 1, 10, 100, 300, 1000 };
+
+    /** The width and height of the images in the "glass" section. */
+    private static final int GLASS_SIDE = 4096;
+
+    /** The startingPoints values used in the "glass" section. */
+    private static final int[] GLASS_STARTING_POINTS = { 1, 100, 10000 };
+
+    /** The width and height of the images in the "threads" section. */
+    private static final int THREADS_SIDE = 2048;
+
+    /** The widths and heights of the images in the "codec" section. */
+    private static final int[] CODEC_SIDES = { 1024, 4096 };
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            Command line arguments. None are used.
+     */
+    public static void main(String[] args) {
+        String section = args.length > 0 ? args[0] : "";
+        if (section.isEmpty() || section.equals("first")) {
+            firstPixel();
+        }
+        if (section.isEmpty() || section.equals("full")) {
+            fullImages();
+        }
+        if (section.isEmpty() || section.equals("walk")) {
+            walks();
+        }
+        if (section.isEmpty() || section.equals("glass")) {
+            largeGlass();
+        }
+        if (section.isEmpty() || section.equals("threads")) {
+            threads();
+        }
+        if (section.isEmpty() || section.equals("codec")) {
+            codec();
+        }
+    }
+
+    /**
+     * Runs the "first" section: the time to the first pixel for every
+     * dimension.
+     */
+    private static void firstPixel() {
+        System.out.println("dimension  size        type     ms to first pixel");
+        for (int dimension = 1; dimension <= 256; dimension *= 2) {
+            // about 9/16 of the tracker's colors are needed at this size
+            int side = Math.max(1, (int) Math.sqrt(dimension * (double) dimension * dimension * 9 / 16));
+            for (TrackerType type : TrackerType.values()) {
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < REPEATS; i++) {
+                    best = Math.min(best, timeToFirstPixel(side, type));
+                }
+                System.out.printf("%-9d  %-10s  %-7s  %8.2f%n", dimension, side + "x" + side, type,
+                        best / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Times how long it takes to get the first pixel out of a new
+     * StainedGlass.
+     *
+     * @param side
+     *            The width and height of the image
+     * @param type
+     *            The type of tracker to use
+     * @return The time in nanoseconds
+     */
+    private static long timeToFirstPixel(int side, TrackerType type) {
+        ImageOptions options = new ImageOptions();
+        options.setTrackerType(type);
+        long start = System.nanoTime();
+        RandomImage image = new StainedGlass(side, side, 1, options);
+        if (!image.isFinished()) {
+            image.nextPixel();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the "full" section: whole images with every algorithm. Each one is
+     * generated twice, and only the second is reported, so the JIT has
+     * settled.
+     */
+    private static void fullImages() {
+        System.out.printf("%dx%d images%n", FULL_SIDE, FULL_SIDE);
+        System.out.println("algorithm      type         ms      steps  MB allocated");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        for (int kind = 0; kind < 3; kind++) {
+            for (TrackerType type : TrackerType.values()) {
+                for (int run = 0; run < 2; run++) {
+                    long allocated = threads.getCurrentThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    RandomImage image = newImage(kind, type);
+                    long steps = 0;
+                    while (!image.isFinished()) {
+                        image.nextPixel();
+                        steps++;
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+                    if (run == 1) {
+                        System.out.printf("%-13s  %-7s  %7d  %9d  %12d%n", image.getClass().getSimpleName(),
+                                type, elapsed / 1000000, steps, allocated >> 20);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the "walk" section: whole FastIterators at every individualPercent
+     * in WALK_PERCENTS. As in the "full" section, only the second of two runs
+     * is reported.
+     */
+    private static void walks() {
+        System.out.printf("%dx%d FastIterator%n", FULL_SIDE, FULL_SIDE);
+        System.out.println("individualPercent       ms");
+        ImageOptions options = new ImageOptions();
+        options.setTrackerType(TrackerType.BITSET);
+        for (int percent : WALK_PERCENTS) {
+            long elapsed = 0;
+            for (int run = 0; run < 2; run++) {
+                long start = System.nanoTime();
+                RandomImage image = new FastIterator(FULL_SIDE, FULL_SIDE, percent, options);
+                while (!image.isFinished()) {
+                    image.nextPixel();
+                }
+                elapsed = System.nanoTime() - start;
+            }
+            System.out.printf("%-17d  %7d%n", percent, elapsed / 1000000);
+        }
+    }
+
+    /**
+     * Runs the "glass" section: a whole StainedGlass for every startingPoints
+     * in GLASS_STARTING_POINTS. The images are big enough that the JIT
+     * settles early in the first one, so each is only generated once.
+     */
+    private static void largeGlass() {
+        System.out.printf("%dx%d StainedGlass%n", GLASS_SIDE, GLASS_SIDE);
+        System.out.println("startingPoints       ms      steps");
+        ImageOptions options = new ImageOptions();
+        options.setTrackerType(TrackerType.BITSET);
+        for (int startingPoints : GLASS_STARTING_POINTS) {
+            long start = System.nanoTime();
+            RandomImage image = new StainedGlass(GLASS_SIDE, GLASS_SIDE, startingPoints, options);
+            long steps = 0;
+            while (!image.isFinished()) {
+                image.nextPixel();
+                steps++;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-14d  %7d  %9d%n", startingPoints, elapsed / 1000000, steps);
+        }
+    }
+
+    /**
+     * Runs the "threads" section: a whole StainedGlass, as tiles and with
+     * concurrent seeds, and a whole FastIterator with every number of threads
+     * up to the number of cores. As in the "full" section, only the second of
+     * two runs is reported.
+     */
+    private static void threads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%dx%d images, %d cores%n", THREADS_SIDE, THREADS_SIDE, cores);
+        System.out.println("algorithm      threads       ms  speedup");
+        String[] names = { "StainedGlass", "FastIterator", "Concurrent" };
+        for (int kind = 0; kind < names.length; kind++) {
+            long single = 0;
+            for (int threads = 1; threads <= cores; threads++) {
+                ImageOptions options = new ImageOptions();
+                options.setTrackerType(TrackerType.BITSET);
+                options.setThreads(threads);
+                options.setConcurrentSeeds(kind == 2);
+                long elapsed = 0;
+                for (int run = 0; run < 2; run++) {
+                    long start = System.nanoTime();
+                    RandomImage image = kind == 1 ? FastIterator.create(THREADS_SIDE, THREADS_SIDE, 300, options)
+                            : StainedGlass.create(THREADS_SIDE, THREADS_SIDE, 100, options);
+                    while (!image.isFinished()) {
+                        image.step(2000);
+                    }
+                    elapsed = System.nanoTime() - start;
+                }
+                if (threads == 1) {
+                    single = elapsed;
+                }
+                System.out.printf("%-13s  %7d  %7d  %7.2f%n", names[kind], threads, elapsed / 1000000,
+                        (double) single / elapsed);
+            }
+        }
+    }
+
+    /**
+     * Runs the "codec" section: the compression ratio and speed of the
+     * RecordEncoder on real records. Each record is parsed into pixels first,
+     * so only the codec is timed. The best of REPEATS runs is kept.
+     */
+    private static void codec() {
+        System.out.println("algorithm      size       bytes/pixel  vs binary  vs hex  Mpixels/s in  Mpixels/s out");
+        for (int side : CODEC_SIDES) {
+            for (int kind = 0; kind < 2; kind++) {
+                ImageOptions options = new ImageOptions();
+                options.setSeed(kind);
+                RandomImage image = kind == 0 ? StainedGlass.create(side, side, 10, options)
+                        : FastIterator.create(side, side, 300, options);
+                while (!image.isFinished()) {
+                    image.step(2000);
+                }
+                ImageRecord record = image.getRecord();
+                record.makeFinal();
+                int[][] chunks = new int[record.getNumChunks()][];
+                for (int i = 0; i < chunks.length; i++) {
+                    String hex = record.getChunk(i);
+                    chunks[i] = new int[hex.length() / 12 * 3];
+                    for (int j = 0; j < chunks[i].length; j += 3) {
+                        int at = j / 3 * 12;
+                        chunks[i][j] = Integer.parseInt(hex.substring(at, at + 3), 16);
+                        chunks[i][j + 1] = Integer.parseInt(hex.substring(at + 3, at + 6), 16);
+                        chunks[i][j + 2] = 0xFF000000 | Integer.parseInt(hex.substring(at + 6, at + 12), 16);
+                    }
+                }
+                String name = kind == 0 ? "StainedGlass" : "FastIterator";
+                image = null;
+                record = null;
+                long bestEncode = Long.MAX_VALUE;
+                long bestDecode = Long.MAX_VALUE;
+                long bytes = 0;
+                byte[][] coded = new byte[chunks.length][];
+                for (int run = 0; run < REPEATS; run++) {
+                    long start = System.nanoTime();
+                    RecordEncoder encoder = new RecordEncoder(side, side);
+                    bytes = 0;
+                    for (int i = 0; i < chunks.length; i++) {
+                        int[] pixels = chunks[i];
+                        for (int j = 0; j < pixels.length; j += 3) {
+                            encoder.addPixel(pixels[j], pixels[j + 1], pixels[j + 2]);
+                        }
+                        coded[i] = encoder.endChunk();
+                        bytes += coded[i].length;
+                    }
+                    bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    RecordDecoder decoder = new RecordDecoder(side, side);
+                    for (int i = 0; i < chunks.length; i++) {
+                        if (!Arrays.equals(chunks[i], decoder.decodeChunk(coded[i]))) {
+                            throw new IllegalStateException("Chunk " + i + " didn't decode to its pixels");
+                        }
+                    }
+                    bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+                }
+                double pixels = (double) side * side;
+                System.out.printf("%-13s  %4dx%-4d  %11.2f  %8.1fx  %5.1fx  %12.1f  %13.1f%n", name, side, side,
+                        bytes / pixels, pixels * ImageRecord.BINARY_PIXEL_BYTES / bytes, pixels * 12 / bytes,
+                        pixels * 1000 / bestEncode, pixels * 1000 / bestDecode);
+            }
+        }
+    }
+
+    /**
+     * Constructs one of the image algorithms with typical parameters.
+     *
+     * @param kind
+     *            0 for StainedGlass, 1 for FastIterator, 2 for GlassIterator
+     * @param type
+     *            The type of tracker to use
+     * @return The new image
+     */
+    private static RandomImage newImage(int kind, TrackerType type) {
+        ImageOptions options = new ImageOptions();
+        options.setTrackerType(type);
+        switch (kind) {
+            case 0:
+                return new StainedGlass(FULL_SIDE, FULL_SIDE, 10, options);
+            case 1:
+                return new FastIterator(FULL_SIDE, FULL_SIDE, 300, options);
+            default:
+                return new GlassIterator(FULL_SIDE, FULL_SIDE, 500, 500, 300, options);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that the built in algorithms are registered, that their parameters
+ * are checked, and that their factories make the same images as their
+ * constructors.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ImageFactoriesTest {
+    /** The width of the test images. */
+    private static final int WIDTH = 61;
+
+    /** The height of the test images. */
+    private static final int HEIGHT = 47;
+
+    @Test
+    public void builtInAlgorithmsAreRegistered() {
+        assertEquals(3, ImageFactories.getAll().size());
+        for (String type : new String[] { "stainedGlass", "fastIterator", "glassIterator" }) {
+            assertNotNull(type, ImageFactories.get(type));
+        }
+    }
+
+    @Test
+    public void factoriesMakeTheSameImagesAsConstructors() {
+        Map<String, Object> request = new HashMap<>();
+        request.put("startingPoints", 5L);
+        request.put("individualPercent", 30L);
+        request.put("switchToGlass", 50L);
+        request.put("switchToIterator", 50L);
+        assertArrayEquals(generate("stainedGlass", request), finish(new StainedGlass(WIDTH, HEIGHT, 5, options())));
+        assertArrayEquals(generate("fastIterator", request), finish(new FastIterator(WIDTH, HEIGHT, 30, options())));
+        assertArrayEquals(generate("glassIterator", request),
+                finish(new GlassIterator(WIDTH, HEIGHT, 50, 50, 30, options())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingParametersAreRejected() {
+        ImageFactories.checkParameters(ImageFactories.get("glassIterator"), new HashMap<String, Object>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outOfRangeParametersAreRejected() {
+        Map<String, Object> request = new HashMap<>();
+        request.put("individualPercent", 1001L);
+        ImageFactories.checkParameters(ImageFactories.get("fastIterator"), request);
+    }
+
+    @Test
+    public void costsGrowWithTheImage() {
+        // with the whole record on the heap, so that every part of the cost grows
+        ImageOptions options = options();
+        options.setRecordSpillBytes(Integer.MAX_VALUE);
+        for (ImageFactory factory : ImageFactories.getAll()) {
+            ImageCost small = factory.estimateCost(256, 256, null, options);
+            ImageCost big = factory.estimateCost(4096, 4096, null, options);
+            assertTrue(factory.getType(), small.getCpuSeconds() > 0 && small.getBytes() > 0);
+            assertTrue(factory.getType(), big.getCpuSeconds() > small.getCpuSeconds() * 100);
+            assertTrue(factory.getType(), big.getBytes() > small.getBytes() * 100);
+            // a record that spills keeps less of the big image on the heap
+            assertTrue(factory.getType(), factory.estimateCost(4096, 4096, null, options()).getBytes() < big.getBytes());
+        }
+    }
+
+    @Test
+    public void cpuScaleScalesOnlyTheCpuTime() {
+        ImageOptions scaled = options();
+        scaled.setCpuScale(2.5);
+        for (ImageFactory factory : ImageFactories.getAll()) {
+            ImageCost cost = factory.estimateCost(1024, 1024, null, options());
+            ImageCost scaledCost = factory.estimateCost(1024, 1024, null, scaled);
+            assertEquals(factory.getType(), cost.getCpuSeconds() * 2.5, scaledCost.getCpuSeconds(), 1e-9);
+            assertEquals(factory.getType(), cost.getBytes(), scaledCost.getBytes());
+        }
+    }
+
+    /**
+     * Creates the options every test image is generated with.
+     *
+     * @return The options
+     */
+    private static ImageOptions options() {
+        ImageOptions options = new ImageOptions();
+        options.setSeed(42);
+        return options;
+    }
+
+    /**
+     * Generates a whole image with the factory for the given type.
+     *
+     * @param type
+     *            The type
+     * @param request
+     *            The parameters, as in a request
+     * @return The finished raster
+     */
+    private static int[] generate(String type, Map<String, Object> request) {
+        ImageFactory factory = ImageFactories.get(type);
+        return finish(factory.create(WIDTH, HEIGHT, ImageFactories.checkParameters(factory, request), options()));
+    }
+
+    /**
+     * Finishes an image.
+     *
+     * @param image
+     *            The image
+     * @return The finished raster
+     */
+    private static int[] finish(RandomImage image) {
+        while (!image.isFinished()) {
+            image.step(1000);
+        }
+        return image.raster;
+    }
+}
@@ -1,5 +1,132 @@
 package com.nmiles.rainbowgen.generator;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * Checks that the binary form of an ImageRecord's chunks holds the same
+ * pixels as their hex form, that runs of pixels match the chunks wherever
+ * they start and end, that a record that spills to a file holds the same
+ * chunks as one that doesn't, and that a saved record opens with the same
+ * pixels.
+ *
+ * @author Nathan Miles
+ *
+ */
 public class ImageRecordTest {
-	
+    @Test
+    public void binaryChunksMatchHexChunks() {
+        ImageRecord record = new ImageRecord(4500);
+        XoshiroRandom rand = new XoshiroRandom(7);
+        // corners and extremes first, then enough random pixels for three chunks
+        record.addPixel(0, 0, 0xFF000000);
+        record.addPixel(4095, 4095, 0xFFFFFFFF);
+        record.addPixel(4095, 0, 0xFF123456);
+        for (int i = 3; i < 4500; i++) {
+            record.addPixel(rand.nextInt(4096), rand.nextInt(4096), 0xFF000000 | rand.nextInt(1 << 24));
+        }
+        record.makeFinal();
+        assertEquals(3, record.getNumChunks());
+        for (int i = 0; i < record.getNumChunks(); i++) {
+            String hex = record.getChunk(i);
+            byte[] binary = record.getBinaryChunk(i);
+            assertEquals(hex.length() / 12 * ImageRecord.BINARY_PIXEL_BYTES, binary.length);
+            for (int j = 0; j < binary.length; j += ImageRecord.BINARY_PIXEL_BYTES) {
+                int pixel = j / ImageRecord.BINARY_PIXEL_BYTES * 12;
+                int xy = ((binary[j] & 0xFF) << 16) | ((binary[j + 1] & 0xFF) << 8) | (binary[j + 2] & 0xFF);
+                int color = ((binary[j + 3] & 0xFF) << 16) | ((binary[j + 4] & 0xFF) << 8) | (binary[j + 5] & 0xFF);
+                assertEquals(Integer.parseInt(hex.substring(pixel, pixel + 3), 16), xy >>> 12);
+                assertEquals(Integer.parseInt(hex.substring(pixel + 3, pixel + 6), 16), xy & 0xFFF);
+                assertEquals(Integer.parseInt(hex.substring(pixel + 6, pixel + 12), 16), color);
+            }
+        }
+    }
+
+    @Test
+    public void spilledChunksMatchHeapChunks() {
+        // enough pixels to fill more than one mapped segment past the heap
+        int pixels = PixelStore.SEGMENT_BYTES / ImageRecord.BINARY_PIXEL_BYTES + 5000;
+        ImageRecord heap = new ImageRecord(pixels, Integer.MAX_VALUE);
+        ImageRecord spilled = new ImageRecord(pixels, 1000);
+        XoshiroRandom rand = new XoshiroRandom(11);
+        for (int i = 0; i < pixels; i++) {
+            int x = rand.nextInt(4096);
+            int y = rand.nextInt(4096);
+            int color = rand.nextInt(1 << 24);
+            heap.addPixel(x, y, color);
+            spilled.addPixel(x, y, color);
+        }
+        heap.makeFinal();
+        spilled.makeFinal();
+        assertEquals(heap.getNumChunks(), spilled.getNumChunks());
+        for (int i = 0; i < heap.getNumChunks(); i++) {
+            assertArrayEquals(heap.getBinaryChunk(i), spilled.getBinaryChunk(i));
+        }
+        spilled.close();
+        try {
+            spilled.getBinaryChunk(0);
+            fail("A closed record gave a chunk");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void pixelRunsMatchChunks() {
+        ImageRecord record = new ImageRecord(5000);
+        XoshiroRandom rand = new XoshiroRandom(3);
+        for (int i = 0; i < 300; i++) {
+            record.addPixel(rand.nextInt(4096), rand.nextInt(4096), rand.nextInt(1 << 24));
+        }
+        // a flushed chunk is short, and the pixels after it start a new one
+        record.flush();
+        assertEquals(300, record.getNumPixels());
+        for (int i = 300; i < 5000; i++) {
+            record.addPixel(rand.nextInt(4096), rand.nextInt(4096), rand.nextInt(1 << 24));
+        }
+        record.makeFinal();
+        assertEquals(4, record.getNumChunks());
+        StringBuilder chunks = new StringBuilder();
+        for (int i = 0; i < record.getNumChunks(); i++) {
+            chunks.append(record.getChunk(i));
+        }
+        StringBuilder runs = new StringBuilder();
+        for (int first = 0, count = 1; first < record.getNumPixels(); first += count, count *= 3) {
+            count = Math.min(count, record.getNumPixels() - first);
+            runs.append(record.getHexPixels(first, count));
+        }
+        assertEquals(chunks.toString(), runs.toString());
+    }
+
+    @Test
+    public void savedRecordsOpenWithTheSamePixels() throws IOException {
+        ImageRecord record = new ImageRecord(4321, 1000);
+        XoshiroRandom rand = new XoshiroRandom(5);
+        for (int i = 0; i < 4321; i++) {
+            record.addPixel(rand.nextInt(4096), rand.nextInt(4096), rand.nextInt(1 << 24));
+        }
+        record.makeFinal();
+        Path file = Files.createTempFile("record", ".rec");
+        try {
+            record.save(file);
+            assertEquals(4321L * ImageRecord.BINARY_PIXEL_BYTES, Files.size(file));
+            ImageRecord opened = ImageRecord.open(file);
+            assertEquals(record.getNumPixels(), opened.getNumPixels());
+            assertEquals(3, opened.getNumChunks());
+            assertArrayEquals(record.getBinaryPixels(0, 4321), opened.getBinaryPixels(0, 4321));
+            opened.close();
+            // the file stays for the next time
+            assertTrue(Files.exists(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
 }
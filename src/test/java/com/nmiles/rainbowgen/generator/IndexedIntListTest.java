@@ -0,0 +1,111 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks an IndexedIntList against an ArrayList put through the same random
+ * inserts and removes.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class IndexedIntListTest {
+    /** The number of random operations in each run. */
+    private static final int OPERATIONS = 20000;
+
+    @Test
+    public void matchesArrayList() {
+        for (int seed = 0; seed < 8; seed++) {
+            check(new Random(seed), 1 + seed * 40);
+        }
+    }
+
+    @Test
+    public void emptiesAndRefills() {
+        Random rand = new Random(99);
+        IndexedIntList list = new IndexedIntList(1);
+        List<Integer> expected = new ArrayList<>();
+        List<Integer> nodes = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 300; i++) {
+                int index = rand.nextInt(expected.size() + 1);
+                int value = rand.nextInt();
+                nodes.add(index, list.add(index, value));
+                expected.add(index, value);
+            }
+            compare(list, expected, nodes);
+            // remove everything through its node, in a random order
+            while (!expected.isEmpty()) {
+                int index = rand.nextInt(expected.size());
+                list.removeNode(nodes.remove(index));
+                expected.remove(index);
+            }
+            assertTrue(list.isEmpty());
+        }
+    }
+
+    /**
+     * Runs random inserts and removes, keeping the list's size around the
+     * given target, and compares it with an ArrayList after every few.
+     *
+     * @param rand
+     *            The Random to choose the operations with
+     * @param target
+     *            The size the list wanders around
+     */
+    private static void check(Random rand, int target) {
+        IndexedIntList list = new IndexedIntList();
+        List<Integer> expected = new ArrayList<>();
+        // the node holding each element, in the same order
+        List<Integer> nodes = new ArrayList<>();
+        for (int op = 0; op < OPERATIONS; op++) {
+            boolean grow = expected.isEmpty() || rand.nextInt(2 * target) >= expected.size();
+            if (grow) {
+                int index = rand.nextInt(expected.size() + 1);
+                int value = rand.nextInt();
+                nodes.add(index, list.add(index, value));
+                expected.add(index, value);
+            } else if (rand.nextBoolean()) {
+                int index = rand.nextInt(expected.size());
+                int node = nodes.remove(index);
+                assertEquals(index, list.indexOf(node));
+                list.removeNode(node);
+                expected.remove(index);
+            } else {
+                int index = rand.nextInt(expected.size());
+                nodes.remove(index);
+                assertEquals((int) expected.remove(index), list.remove(index));
+            }
+            if (op % 97 == 0) {
+                compare(list, expected, nodes);
+            }
+        }
+        compare(list, expected, nodes);
+    }
+
+    /**
+     * Checks that every element and every node's index matches.
+     *
+     * @param list
+     *            The list under test
+     * @param expected
+     *            The elements it should hold
+     * @param nodes
+     *            The node that should hold each element
+     */
+    private static void compare(IndexedIntList list, List<Integer> expected, List<Integer> nodes) {
+        assertEquals(expected.size(), list.size());
+        assertEquals(expected.isEmpty(), list.isEmpty());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("get " + i, (int) expected.get(i), list.get(i));
+            assertEquals("indexOf " + i, i, list.indexOf(nodes.get(i)));
+        }
+    }
+}
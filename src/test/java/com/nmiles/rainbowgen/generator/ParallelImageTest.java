@@ -0,0 +1,79 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that a ParallelImage whose workers stop before the image is
+ * populated fails instead of leaving its runner waiting for it forever, unless
+ * they stopped because it was cancelled.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class ParallelImageTest {
+    @Test(expected = IllegalStateException.class)
+    public void workersThatStopShortFail() {
+        RandomImage image = new ShortImage(new ImageOptions(), null);
+        // each step() returns as soon as the workers are done
+        for (int i = 0; i < 10; i++) {
+            image.step(1000);
+        }
+    }
+
+    @Test
+    public void cancelledWorkersThatStopShortAreStopped() {
+        ImageOptions options = new ImageOptions();
+        CancellationToken token = new CancellationToken();
+        options.setCancellationToken(token);
+        RandomImage image = new ShortImage(options, token);
+        assertEquals(20, image.step(1000));
+        assertFalse(image.isFinished());
+        assertEquals(0, image.step(1000));
+        assertTrue(image.isStopped());
+        assertTrue(image.isFinished());
+    }
+
+    /**
+     * A 16x16 ParallelImage whose two workers populate 10 pixels each, then
+     * stop.
+     */
+    private static final class ShortImage extends ParallelImage {
+        /** The token the workers cancel as they stop, or null. */
+        private final CancellationToken token;
+
+        /**
+         * Constructs a new ShortImage.
+         *
+         * @param options
+         *            The options to generate the image with
+         * @param token
+         *            The token the workers cancel as they stop, or null to
+         *            stop without cancelling
+         */
+        ShortImage(ImageOptions options, CancellationToken token) {
+            super(16, 16, options);
+            this.token = token;
+        }
+
+        @Override
+        protected int getWorkerCount() {
+            return 2;
+        }
+
+        @Override
+        protected void generate(int worker) {
+            if (token != null) {
+                token.cancel();
+            }
+            report(10);
+        }
+
+        @Override
+        protected void plant(int pixel) {
+        }
+    }
+}
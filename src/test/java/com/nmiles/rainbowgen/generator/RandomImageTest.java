@@ -0,0 +1,59 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that images are exactly reproducible from their type, parameters,
+ * and seed.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class RandomImageTest {
+    /** The width of the test images. */
+    private static final int WIDTH = 61;
+
+    /** The height of the test images. */
+    private static final int HEIGHT = 47;
+
+    @Test
+    public void sameSeedGivesSameImage() {
+        for (TrackerType type : TrackerType.values()) {
+            for (String kind : TestImages.TYPES) {
+                assertArrayEquals(type + " " + kind, generate(kind, type, 42), generate(kind, type, 42));
+            }
+        }
+    }
+
+    @Test
+    public void differentSeedsGiveDifferentImages() {
+        for (TrackerType type : TrackerType.values()) {
+            for (String kind : TestImages.TYPES) {
+                assertFalse(type + " " + kind, Arrays.equals(generate(kind, type, 1), generate(kind, type, 2)));
+            }
+        }
+    }
+
+    /**
+     * Generates a whole image.
+     *
+     * @param kind
+     *            The type of image
+     * @param type
+     *            The type of tracker to use
+     * @param seed
+     *            The seed to use
+     * @return The finished raster
+     */
+    private static int[] generate(String kind, TrackerType type, long seed) {
+        ImageOptions options = new ImageOptions();
+        options.setTrackerType(type);
+        options.setSeed(seed);
+        return TestImages.finish(TestImages.create(kind, WIDTH, HEIGHT, options));
+    }
+}
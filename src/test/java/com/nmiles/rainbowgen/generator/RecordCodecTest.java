@@ -0,0 +1,99 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that RecordDecoder gives back exactly the pixels that went into
+ * RecordEncoder, chunk by chunk, for real images of several sizes, so that
+ * every colorShift is covered, and that the codec beats the binary form.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class RecordCodecTest {
+    @Test
+    public void chunksDecodeToTheirPixels() {
+        for (String kind : TestImages.TYPES) {
+            // 4096 colors need a 16x16x16 cube, and 12000 a 32x32x32 one
+            roundTrip(kind, 64, 64);
+            roundTrip(kind, 120, 100);
+            roundTrip(kind, 300, 7);
+        }
+    }
+
+    @Test
+    public void everyCoordinateAndColorSurvives() {
+        // 4096x4096 images use every color, so their colorShift is 0
+        RecordEncoder encoder = new RecordEncoder(4096, 4096);
+        RecordDecoder decoder = new RecordDecoder(4096, 4096);
+        XoshiroRandom rand = new XoshiroRandom(3);
+        int[] pixels = new int[3 * 5000];
+        for (int i = 0; i < pixels.length; i += 3) {
+            pixels[i] = i < 30 ? (i % 2) * 4095 : rand.nextInt(4096);
+            pixels[i + 1] = i < 30 ? (i % 4 / 2) * 4095 : rand.nextInt(4096);
+            pixels[i + 2] = 0xFF000000 | (i < 30 ? (i % 2) * 0xFFFFFF : rand.nextInt(1 << 24));
+        }
+        for (int start = 0; start < pixels.length; start += 3000) {
+            int end = Math.min(pixels.length, start + 3000);
+            for (int i = start; i < end; i += 3) {
+                encoder.addPixel(pixels[i], pixels[i + 1], pixels[i + 2]);
+            }
+            assertArrayEquals(Arrays.copyOfRange(pixels, start, end), decoder.decodeChunk(encoder.endChunk()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedChunksAreRejected() {
+        RecordEncoder encoder = new RecordEncoder(64, 64);
+        for (int i = 0; i < 100; i++) {
+            encoder.addPixel(i % 64, i / 64, 0xFF000000 | (i << 4));
+        }
+        byte[] chunk = encoder.endChunk();
+        new RecordDecoder(64, 64).decodeChunk(Arrays.copyOf(chunk, chunk.length / 2));
+    }
+
+    /**
+     * Generates a whole image, encodes its record one record chunk at a time,
+     * and checks that every chunk decodes to the pixels that went into it.
+     *
+     * @param kind
+     *            The type of image
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     */
+    private static void roundTrip(String kind, int width, int height) {
+        ImageOptions options = new ImageOptions();
+        options.setSeed(kind.hashCode());
+        RandomImage image = TestImages.create(kind, width, height, options);
+        TestImages.finish(image);
+        ImageRecord record = image.getRecord();
+        record.makeFinal();
+        RecordEncoder encoder = new RecordEncoder(width, height);
+        RecordDecoder decoder = new RecordDecoder(width, height);
+        long binaryBytes = 0;
+        long codedBytes = 0;
+        for (int i = 0; i < record.getNumChunks(); i++) {
+            String hex = record.getChunk(i);
+            int[] pixels = new int[hex.length() / 12 * 3];
+            for (int j = 0; j < pixels.length; j += 3) {
+                int at = j / 3 * 12;
+                pixels[j] = Integer.parseInt(hex.substring(at, at + 3), 16);
+                pixels[j + 1] = Integer.parseInt(hex.substring(at + 3, at + 6), 16);
+                pixels[j + 2] = 0xFF000000 | Integer.parseInt(hex.substring(at + 6, at + 12), 16);
+                encoder.addPixel(pixels[j], pixels[j + 1], pixels[j + 2]);
+            }
+            byte[] chunk = encoder.endChunk();
+            assertArrayEquals(kind + " " + width + "x" + height + " chunk " + i, pixels, decoder.decodeChunk(chunk));
+            binaryBytes += pixels.length / 3 * ImageRecord.BINARY_PIXEL_BYTES;
+            codedBytes += chunk.length;
+        }
+        assertTrue(kind + " " + width + "x" + height, codedBytes < binaryBytes);
+    }
+}
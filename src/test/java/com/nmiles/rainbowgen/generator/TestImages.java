@@ -0,0 +1,64 @@
+package com.nmiles.rainbowgen.generator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Makes the images that tests generate, with the factory of each built in
+ * algorithm, so that every test uses the same parameters for the same type.
+ *
+ * @author Nathan Miles
+ *
+ */
+final class TestImages {
+    /** The type of every built in algorithm. */
+    static final String[] TYPES = { "stainedGlass", "fastIterator", "glassIterator" };
+
+    /** The parameters every test image is made with, as in a request. */
+    private static final Map<String, Object> PARAMETERS = new HashMap<>();
+
+    static {
+        PARAMETERS.put("startingPoints", 5L);
+        PARAMETERS.put("individualPercent", 30L);
+        PARAMETERS.put("switchToGlass", 50L);
+        PARAMETERS.put("switchToIterator", 50L);
+    }
+
+    /**
+     * This class only has static methods.
+     */
+    private TestImages() {
+    }
+
+    /**
+     * Creates an image of the given type with the test parameters.
+     *
+     * @param type
+     *            The type, as used in requests
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param options
+     *            The options to generate the image with
+     * @return The image
+     */
+    static RandomImage create(String type, int width, int height, ImageOptions options) {
+        ImageFactory factory = ImageFactories.get(type);
+        return factory.create(width, height, ImageFactories.checkParameters(factory, PARAMETERS), options);
+    }
+
+    /**
+     * Generates the rest of an image.
+     *
+     * @param image
+     *            The image
+     * @return The finished raster
+     */
+    static int[] finish(RandomImage image) {
+        while (!image.isFinished()) {
+            image.step(1000);
+        }
+        return image.raster;
+    }
+}
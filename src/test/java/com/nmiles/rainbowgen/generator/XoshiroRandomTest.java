@@ -0,0 +1,164 @@
+package com.nmiles.rainbowgen.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+/**
+ * Checks XoshiroRandom against outputs of the reference C implementations of
+ * xoshiro256** and SplitMix64, and checks that nextInt() stays in range and
+ * that split streams don't overlap.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class XoshiroRandomTest {
+    /** The outputs of the reference xoshiro256** from the state 1, 2, 3, 4. */
+    private static final long[] FROM_1234 = { 11520L, 0L, 1509978240L, 1215971899390074240L,
+            1216172134540287360L, 607988272756665600L };
+
+    /**
+     * The outputs of the reference xoshiro256** from the state 1, 2, 3, 4,
+     * after one jump().
+     */
+    private static final long[] JUMPED_FROM_1234 = { -4912596984176294952L, 7126240192422241655L,
+            3805973808039778091L, -6898863543051131232L };
+
+    /** The outputs of the reference SplitMix64 from the seed 1234567. */
+    private static final String[] SPLIT_MIX_1234567 = { "6457827717110365317", "3203168211198807973",
+            "9817491932198370423", "4593380528125082431", "16408922859458223821" };
+
+    /**
+     * The outputs of the reference xoshiro256** seeded with the first four
+     * outputs of SplitMix64 from the seed 1234567.
+     */
+    private static final long[] SEEDED_1234567 = { 3504822795582309479L, 1819558768956484042L,
+            1250851346055027673L, -1506512398609557514L };
+
+    @Test
+    public void matchesReferenceOutputs() {
+        XoshiroRandom rand = new XoshiroRandom(1, 2, 3, 4);
+        for (long expected : FROM_1234) {
+            assertEquals(expected, rand.nextLong());
+        }
+    }
+
+    @Test
+    public void jumpMatchesReference() {
+        XoshiroRandom rand = new XoshiroRandom(1, 2, 3, 4);
+        rand.jump();
+        for (long expected : JUMPED_FROM_1234) {
+            assertEquals(expected, rand.nextLong());
+        }
+    }
+
+    @Test
+    public void seedIsExpandedWithSplitMix() {
+        // SplittableRandom's nextLong() is SplitMix64
+        SplittableRandom splitMix = new SplittableRandom(1234567);
+        for (String expected : SPLIT_MIX_1234567) {
+            assertEquals(Long.parseUnsignedLong(expected), splitMix.nextLong());
+        }
+        XoshiroRandom rand = new XoshiroRandom(1234567);
+        for (long expected : SEEDED_1234567) {
+            assertEquals(expected, rand.nextLong());
+        }
+        // and any other seed gives the same as its SplitMix64 state
+        for (long seed : new long[] { 0, -1, 42, Long.MIN_VALUE, 0x9e3779b97f4a7c15L }) {
+            splitMix = new SplittableRandom(seed);
+            XoshiroRandom expected = new XoshiroRandom(splitMix.nextLong(), splitMix.nextLong(),
+                    splitMix.nextLong(), splitMix.nextLong());
+            rand = new XoshiroRandom(seed);
+            for (int i = 0; i < 100; i++) {
+                assertEquals("seed " + seed, expected.nextLong(), rand.nextLong());
+            }
+        }
+    }
+
+    @Test
+    public void nextIntStaysInRange() {
+        XoshiroRandom rand = new XoshiroRandom(7);
+        int[] bounds = { 1, 2, 3, 7, 1000, (1 << 30) + 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE };
+        for (int bound : bounds) {
+            for (int i = 0; i < 100000; i++) {
+                int value = rand.nextInt(bound);
+                assertTrue(bound + ": " + value, value >= 0 && value < bound);
+            }
+        }
+    }
+
+    @Test
+    public void nextIntIsUniform() {
+        XoshiroRandom rand = new XoshiroRandom(8);
+        /* 2^32 is 8 / 3 times 3 << 29, so without rejection, every value
+         * that is 2 modulo 3 would come up only two thirds as often as the
+         * others */
+        int[] bounds = { 3, 7, 3 << 29 };
+        for (int bound : bounds) {
+            int buckets = bound < 8 ? bound : 3;
+            long[] counts = new long[buckets];
+            int draws = 600000;
+            for (int i = 0; i < draws; i++) {
+                counts[rand.nextInt(bound) % buckets]++;
+            }
+            double expected = (double) draws / buckets;
+            double chiSquare = 0;
+            for (long count : counts) {
+                chiSquare += (count - expected) * (count - expected) / expected;
+            }
+            // beyond the 0.1% critical value for up to 6 degrees of freedom
+            assertTrue(bound + ": " + chiSquare, chiSquare < 30);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nextIntRejectsZero() {
+        new XoshiroRandom(1).nextInt(0);
+    }
+
+    @Test
+    public void splitContinuesAndJumps() {
+        XoshiroRandom parent = new XoshiroRandom(99);
+        XoshiroRandom unsplit = new XoshiroRandom(99);
+        XoshiroRandom jumped = new XoshiroRandom(99);
+        jumped.jump();
+        XoshiroRandom child = parent.split();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(unsplit.nextLong(), child.nextLong());
+            assertEquals(jumped.nextLong(), parent.nextLong());
+        }
+    }
+
+    @Test
+    public void splitStreamsDontOverlap() {
+        XoshiroRandom parent = new XoshiroRandom(5);
+        XoshiroRandom[] streams = new XoshiroRandom[8];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = parent.split();
+        }
+        Set<Long> seen = new HashSet<>();
+        long[] matchingBits = new long[streams.length - 1];
+        int draws = 20000;
+        for (int i = 0; i < draws; i++) {
+            long previous = 0;
+            for (int s = 0; s < streams.length; s++) {
+                long value = streams[s].nextLong();
+                assertTrue("repeated " + value, seen.add(value));
+                if (s > 0) {
+                    matchingBits[s - 1] += Long.bitCount(~(value ^ previous));
+                }
+                previous = value;
+            }
+        }
+        // neighboring streams agree on about half of their bits
+        for (long matching : matchingBits) {
+            double fraction = matching / (64.0 * draws);
+            assertTrue("matching " + fraction, Math.abs(fraction - 0.5) < 0.005);
+        }
+    }
+}
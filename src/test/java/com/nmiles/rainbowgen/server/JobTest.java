@@ -0,0 +1,139 @@
+package com.nmiles.rainbowgen.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Test;
+
+import com.nmiles.rainbowgen.generator.CancellationToken;
+import com.nmiles.rainbowgen.generator.ImageRecord;
+
+/**
+ * Checks that a Job resumes a new stream from the chunk its client asks for,
+ * that it turns away chunks it hasn't sent and ids it doesn't know, and that
+ * a finished job expires once its done message has been queued, even with its
+ * stream still attached. The streams queue their messages without a
+ * ChunkScheduler, so the tests read them from the queue.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class JobTest {
+	/** The number of pixels in the test record. */
+	private static final int PIXELS = 1000;
+
+	@Test
+	public void attachRewindsToTheChunkAskedFor() {
+		ImageRecord record = record();
+		Job job = new Job("job", new CancellationToken());
+		job.start(record);
+		ConcurrentLinkedQueue<Object> first = new ConcurrentLinkedQueue<>();
+		job.attach(new JobStream(null, false, first), 0, "seed");
+		// the sizer lets three first chunks wait to be sent
+		job.pump(3 * ChunkSizer.FIRST_CHUNK_PIXELS);
+		assertEquals("seed", first.poll());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(chunk(record, i * ChunkSizer.FIRST_CHUNK_PIXELS, ChunkSizer.FIRST_CHUNK_PIXELS), first.poll());
+		}
+		assertTrue(first.isEmpty());
+
+		// the client got chunk 0, so chunks 1 and 2 are sent again
+		ConcurrentLinkedQueue<Object> second = new ConcurrentLinkedQueue<>();
+		job.attach(new JobStream(null, false, second), 1, "resumed");
+		job.pump(3 * ChunkSizer.FIRST_CHUNK_PIXELS);
+		assertEquals("resumed", second.poll());
+		for (int i = 1; i < 3; i++) {
+			assertEquals(chunk(record, i * ChunkSizer.FIRST_CHUNK_PIXELS, ChunkSizer.FIRST_CHUNK_PIXELS),
+					second.poll());
+		}
+		assertTrue(second.isEmpty());
+		// and chunk 3 is the next one, so a client that got chunk 2 may ask for it
+		job.attach(new JobStream(null, false, new ConcurrentLinkedQueue<>()), 3, "resumed");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void attachRejectsChunksThatHaventBeenSent() {
+		Job job = new Job("job", new CancellationToken());
+		job.start(record());
+		job.attach(new JobStream(null, false, new ConcurrentLinkedQueue<>()), 0, "seed");
+		job.pump(ChunkSizer.FIRST_CHUNK_PIXELS);
+		job.attach(new JobStream(null, false, new ConcurrentLinkedQueue<>()), 2, "resumed");
+	}
+
+	@Test
+	public void resumeReportsUnknownJobsAndUnsentChunks() {
+		ImageGeneratorApplication application = new ImageGeneratorApplication();
+		ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+		application.resume(new JobStream(null, false, queue), "missing", -1);
+		assertEquals("{\"type\": \"error\", \"message\": \"That image is no longer available.\"}", queue.poll());
+		assertTrue(queue.isEmpty());
+
+		Job job = new Job("job", new CancellationToken());
+		job.start(record());
+		application.jobs.put(job.getId(), job);
+		application.resume(new JobStream(null, false, queue), job.getId(), 0);
+		assertEquals("{\"type\": \"error\", \"message\": \"That chunk hasn't been sent yet.\"}", queue.poll());
+		assertTrue(queue.isEmpty());
+
+		application.resume(new JobStream(null, false, queue), job.getId(), -1);
+		assertEquals("{\"type\": \"resumed\", \"jobId\": \"job\", \"format\": \"hex\"}", queue.poll());
+	}
+
+	@Test
+	public void finishedJobsExpireWithTheirStreamAttached() {
+		Job job = new Job("job", new CancellationToken());
+		job.start(record());
+		ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+		JobStream stream = new JobStream(null, false, queue);
+		job.attach(stream, 0, "seed");
+		long now = System.currentTimeMillis();
+		assertFalse(job.isExpired(now + 2 * Job.GRACE_MILLIS));
+
+		job.pump(PIXELS);
+		// send the waiting chunks, so the rest fit
+		for (Object message : queue) {
+			stream.sizer.sent(message, 1000000);
+		}
+		job.finish(false);
+		job.drain();
+		Object last = null;
+		for (Object message : queue) {
+			last = message;
+		}
+		assertTrue(String.valueOf(last), ((String) last).startsWith("{\"type\": \"done\""));
+		assertFalse(job.isExpired(now));
+		assertTrue(job.isExpired(System.currentTimeMillis() + Job.GRACE_MILLIS + 1));
+	}
+
+	/**
+	 * Creates a final record of PIXELS pixels, each a different color.
+	 *
+	 * @return The record
+	 */
+	private static ImageRecord record() {
+		ImageRecord record = new ImageRecord(PIXELS);
+		for (int i = 0; i < PIXELS; i++) {
+			record.addPixel(i % 100, i / 100, i * 4099);
+		}
+		record.makeFinal();
+		return record;
+	}
+
+	/**
+	 * Builds the hex chunk message for some of a record's pixels.
+	 *
+	 * @param record
+	 *            The record
+	 * @param first
+	 *            The index of the first pixel
+	 * @param count
+	 *            The number of pixels
+	 * @return The message
+	 */
+	private static String chunk(ImageRecord record, int first, int count) {
+		return JobStream.CHUNK_PREFIX + ", \"chunk\": \"" + record.getHexPixels(first, count) + "\"}";
+	}
+}
@@ -0,0 +1,75 @@
+package com.nmiles.rainbowgen.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks that a PixelRing hands every event from its producer thread to its
+ * consumer thread in order, holding the producer back while the ring is
+ * full, and that the consumer gets -1 once the ring is closed and empty.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class PixelRingTest {
+	/** The number of events the producer publishes. */
+	private static final int EVENTS = 100000;
+
+	@Test(timeout = 30000)
+	public void eventsArriveInOrderAcrossThreads() throws InterruptedException {
+		final PixelRing ring = new PixelRing(4);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread producer = new Thread(() -> {
+			try {
+				for (int i = 0; i < EVENTS; i++) {
+					ring.publish(i);
+				}
+				ring.close();
+			} catch (Throwable t) {
+				failure.set(t);
+			}
+		});
+		producer.start();
+		// nothing is taken yet, so the producer fills the ring and waits
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (producer.getState() != Thread.State.TIMED_WAITING && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(Thread.State.TIMED_WAITING, producer.getState());
+		assertFalse(ring.isDrained());
+
+		long expected = 0;
+		while (!ring.isDrained()) {
+			long event = ring.take(TimeUnit.MILLISECONDS.toNanos(1));
+			if (event >= 0) {
+				assertEquals(expected++, event);
+			}
+		}
+		producer.join();
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertEquals(EVENTS, expected);
+		assertEquals(-1, ring.take(0));
+		assertEquals(-1, ring.take(TimeUnit.MILLISECONDS.toNanos(1)));
+		assertTrue(ring.isDrained());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void publishingAfterCloseFails() {
+		PixelRing ring = new PixelRing(2);
+		ring.close();
+		ring.publish(1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityMustBeAPowerOfTwo() {
+		new PixelRing(3);
+	}
+}
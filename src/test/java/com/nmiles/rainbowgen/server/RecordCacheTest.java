@@ -0,0 +1,221 @@
+package com.nmiles.rainbowgen.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.nmiles.rainbowgen.generator.ImageCost;
+import com.nmiles.rainbowgen.generator.ImageOptions;
+import com.nmiles.rainbowgen.generator.ImageRecord;
+
+/**
+ * Checks that a RecordCache gives back the records it was given, evicts the
+ * least recently used ones to stay within its size, picks up where it left
+ * off after a restart, and only caches images that can be reproduced.
+ *
+ * @author Nathan Miles
+ *
+ */
+public class RecordCacheTest {
+	/** The number of pixels in each test record. */
+	private static final int PIXELS = 100;
+	/** The number of bytes each test record takes up on disk. */
+	private static final long RECORD_BYTES = PIXELS * ImageRecord.BINARY_PIXEL_BYTES;
+	/** The cost the lookups are counted with. */
+	private static final ImageCost COST = new ImageCost(1, 1);
+
+	/** The directory the cache is in. */
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordsComeBackAsTheyWereSaved() throws IOException {
+		RecordCache cache = new RecordCache(folder.getRoot().toPath(), 10 * RECORD_BYTES);
+		assertNull(cache.get("a", COST));
+		cache.put("a", record(1));
+		ImageRecord cached = cache.get("a", COST);
+		assertNotNull(cached);
+		assertArrayEquals(record(1).getBinaryPixels(0, PIXELS), cached.getBinaryPixels(0, PIXELS));
+		cached.close();
+	}
+
+	@Test
+	public void leastRecentlyUsedRecordsAreEvicted() throws IOException {
+		RecordCache cache = new RecordCache(folder.getRoot().toPath(), 2 * RECORD_BYTES);
+		cache.put("a", record(1));
+		cache.put("b", record(2));
+		// using a makes b the least recently used
+		close(cache.get("a", COST));
+		cache.put("c", record(3));
+		assertNull(cache.get("b", COST));
+		assertPresent(cache, "a");
+		assertPresent(cache, "c");
+		assertEquals(2, countFiles("*.rec"));
+	}
+
+	@Test
+	public void filesStayWithinMaxBytes() throws IOException {
+		long maxBytes = 3 * RECORD_BYTES + RECORD_BYTES / 2;
+		RecordCache cache = new RecordCache(folder.getRoot().toPath(), maxBytes);
+		for (int i = 0; i < 10; i++) {
+			cache.put("key" + i, record(i));
+			assertTrue(totalBytes() <= maxBytes);
+		}
+		assertEquals(3, countFiles("*.rec"));
+		// a record bigger than the whole cache isn't saved
+		RecordCache small = new RecordCache(folder.newFolder().toPath(), RECORD_BYTES - 1);
+		small.put("a", record(1));
+		assertNull(small.get("a", COST));
+	}
+
+	@Test
+	public void restartKeepsTheMostRecentlyModifiedFiles() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		RecordCache cache = new RecordCache(directory, 3 * RECORD_BYTES);
+		cache.put("a", record(1));
+		cache.put("b", record(2));
+		cache.put("c", record(3));
+		// b, then c, then a, whatever order they were saved in
+		long now = System.currentTimeMillis();
+		touch(directory, "b", now - 30000);
+		touch(directory, "c", now - 20000);
+		touch(directory, "a", now - 10000);
+
+		// only two fit now, so b goes first
+		RecordCache restarted = new RecordCache(directory, 2 * RECORD_BYTES);
+		assertEquals(2, countFiles("*.rec"));
+		restarted.put("d", record(4));
+		// then c, which is older than a
+		assertNull(restarted.get("b", COST));
+		assertNull(restarted.get("c", COST));
+		assertPresent(restarted, "a");
+		assertPresent(restarted, "d");
+	}
+
+	@Test
+	public void halfWrittenFilesAreDeleted() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		Files.write(directory.resolve("abc.rec123.tmp"), new byte[7]);
+		new RecordCache(directory, 10 * RECORD_BYTES);
+		assertEquals(0, countFiles("*.tmp"));
+	}
+
+	@Test
+	public void onlySingleThreadedImagesHaveKeys() {
+		ImageOptions options = new ImageOptions();
+		options.setSeed(42);
+		HashMap<String, Integer> parameters = new HashMap<>();
+		parameters.put("startingPoints", 5);
+		assertNotNull(RecordCache.key("stainedGlass", 10, 10, parameters, options));
+		options.setThreads(2);
+		assertNull(RecordCache.key("stainedGlass", 10, 10, parameters, options));
+	}
+
+	/**
+	 * Creates a final record of PIXELS pixels, whose colors depend on a
+	 * number, so that records with different numbers differ.
+	 *
+	 * @param n
+	 *            The number
+	 * @return The record
+	 */
+	private static ImageRecord record(int n) {
+		ImageRecord record = new ImageRecord(PIXELS);
+		for (int i = 0; i < PIXELS; i++) {
+			record.addPixel(i % 10, i / 10, n * 1000 + i);
+		}
+		record.makeFinal();
+		return record;
+	}
+
+	/**
+	 * Checks that a key's record is in the cache.
+	 *
+	 * @param cache
+	 *            The cache
+	 * @param key
+	 *            The key
+	 */
+	private static void assertPresent(RecordCache cache, String key) {
+		ImageRecord record = cache.get(key, COST);
+		assertNotNull(key, record);
+		record.close();
+	}
+
+	/**
+	 * Closes a record, if there is one.
+	 *
+	 * @param record
+	 *            The record, or null
+	 */
+	private static void close(ImageRecord record) {
+		if (record != null) {
+			record.close();
+		}
+	}
+
+	/**
+	 * Sets when a key's file was last modified.
+	 *
+	 * @param directory
+	 *            The directory the cache is in
+	 * @param key
+	 *            The key
+	 * @param millis
+	 *            The time, from System.currentTimeMillis()
+	 * @throws IOException
+	 *             If the time can't be set
+	 */
+	private static void touch(Path directory, String key, long millis) throws IOException {
+		Files.setLastModifiedTime(directory.resolve(RecordCache.fileName(key)), FileTime.fromMillis(millis));
+	}
+
+	/**
+	 * Counts the files in the cache's directory that match a glob.
+	 *
+	 * @param glob
+	 *            The glob
+	 * @return The number of files
+	 * @throws IOException
+	 *             If the directory can't be read
+	 */
+	private int countFiles(String glob) throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(), glob)) {
+			for (@SuppressWarnings("unused") Path file : stream) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds up the sizes of the records in the cache's directory.
+	 *
+	 * @return The number of bytes
+	 * @throws IOException
+	 *             If the directory can't be read
+	 */
+	private long totalBytes() throws IOException {
+		long bytes = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(), "*.rec")) {
+			for (Path file : stream) {
+				bytes += Files.size(file);
+			}
+		}
+		return bytes;
+	}
+}
@@ -11,6 +11,8 @@ var doneRendering = false;
 
 var websocket = null;
 var uri;
+// ask for chunks as binary frames, 6 bytes a pixel, when typed arrays are there to decode them
+var binaryChunks = typeof Uint8Array !== "undefined";
 downloadElement = document.getElementById("downloadWrapper");
 playPauseButton = document.getElementById("playpause");
 
@@ -36,6 +38,10 @@ function paintCanvasBlack(){
 }
 
 var clientDisconnected = false;
+// the id of the job generating the image, so the stream can be resumed if it drops
+var jobId = null;
+var resumeAttempts = 0;
+var MAX_RESUME_ATTEMPTS = 3;
 function getImage(imageType) {
 	if (websocket !== null && websocket.readyState == 1){
 		clientDisconnected = true;
@@ -51,6 +57,9 @@ function getImage(imageType) {
 	chunkCounter = 0;
 	chunkIndex = 0;
 	gotWholeImage = false;
+	jobId = null;
+	resumeAttempts = 0;
+	clientDisconnected = false;
 	paintCanvasBlack();
 	play();
 	connect(imageType);
@@ -77,15 +86,29 @@ function connect(imageType){
 		alert('WebSocket is not supported by this browser.');
 		return;
 	}
+	if (binaryChunks){
+		websocket.binaryType = "arraybuffer";
+	}
+	var thisSocket = websocket;
 	websocket.onopen = function(){
 		switch (imageType){
+			case "resume":
+				// pick up after the last chunk we got
+				websocket.send(JSON.stringify({
+					"type": "resume",
+					"jobId": jobId,
+					"lastChunkIndex": chunks.length - 1,
+					"format": binaryChunks ? "binary" : "hex"
+				}));
+				break;
 			case "fastIterator":
 				var percent = parseInt($("#iteratorPercent").val());
 				websocket.send(JSON.stringify({
 					"type": "fastIterator",
 					"width": width,
 					"height": height,
-					"individualPercent": percent
+					"individualPercent": percent,
+					"format": binaryChunks ? "binary" : "hex"
 				}));
 				break;
 			case "stainedGlass":
@@ -94,7 +117,8 @@ function connect(imageType){
 					"type": "stainedGlass",
 					"width": width,
 					"height": height,
-					"startingPoints": startingPoints
+					"startingPoints": startingPoints,
+					"format": binaryChunks ? "binary" : "hex"
 				}));
 				break;
 			case "glassIterator":
@@ -107,13 +131,28 @@ function connect(imageType){
 					"height": height,
 					"switchToGlass": switchToGlass,
 					"switchToIterator": switchToIterator,
-					"individualPercent": giPercent
+					"individualPercent": giPercent,
+					"format": binaryChunks ? "binary" : "hex"
 				}));
 				break;
 		}
 	}
 
 	websocket.onclose = function() {
+		if (thisSocket !== websocket){
+			// an older connection, for an image we've moved on from
+			return;
+		}
+		if (!clientDisconnected && !gotWholeImage && jobId !== null && resumeAttempts < MAX_RESUME_ATTEMPTS){
+			resumeAttempts++;
+			console.log("Lost the connection, resuming after chunk " + (chunks.length - 1));
+			setTimeout(function(){
+				if (!clientDisconnected && !gotWholeImage){
+					connect("resume");
+				}
+			}, 1000 * resumeAttempts);
+			return;
+		}
 		setTimeout( function(){
 			if (!clientDisconnected && !gotWholeImage){
 				downloadElement.style.visibility = 'hidden';
@@ -124,14 +163,38 @@ function connect(imageType){
 	}
 
 	websocket.onmessage = function(event) {
+		if (typeof event.data !== "string"){
+			// a binary chunk
+			addChunk(new Uint8Array(event.data));
+			return;
+		}
 		var data = JSON.parse(event.data);
 		var type = data.type;
 		switch (type){
+			case "seed":
+				console.log("Seed: " + data.seed);
+				jobId = data.jobId;
+				break;
+			case "resumed":
+				console.log("Resumed job " + data.jobId);
+				break;
+			case "queued":
+				console.log("The server is busy, so the image is waiting its turn.");
+				break;
 			case "chunk":
 				addChunk(data.chunk);
 				break;
 			case "done":
 				console.log("Done. Got " + chunks.length + " chunks.");
+				if (data.chunks){
+					console.log("Chunk sizes in pixels: " + JSON.stringify(data.chunks));
+				}
+				if (data.stages){
+					console.log("Throughput of each stage: " + JSON.stringify(data.stages));
+				}
+				if (data.partial){
+					console.log("The image ran out of time, so it is incomplete.");
+				}
 				gotWholeImage = true;
 				websocket.close();
 				downloadElement.style.visibility = 'hidden';
@@ -186,11 +249,22 @@ function step(timestamp) {
 	pixelsThisFrame = 0;
 	outerLoop:
 	for (; pixelsThisFrame <= ppf && chunkCounter < chunks.length; chunkCounter++){
-		var end = chunks[chunkCounter].length;
-		for (;chunkIndex < end; chunkIndex += 12, pixelsThisFrame++){
-			x = parseInt(chunks[chunkCounter].substring(chunkIndex, chunkIndex + 3), 16);
-			y = parseInt(chunks[chunkCounter].substring(chunkIndex + 3, chunkIndex + 6), 16);
-			color = "#" + chunks[chunkCounter].substring(chunkIndex + 6, chunkIndex + 12);
+		var chunk = chunks[chunkCounter];
+		var end = chunk.length;
+		var binary = typeof chunk !== "string";
+		// binary pixels are 6 bytes: 12 bits each of x and y, then r, g, and b
+		var pixelLength = binary ? 6 : 12;
+		for (;chunkIndex < end; chunkIndex += pixelLength, pixelsThisFrame++){
+			if (binary){
+				x = (chunk[chunkIndex] << 4) | (chunk[chunkIndex + 1] >> 4);
+				y = ((chunk[chunkIndex + 1] & 0xF) << 8) | chunk[chunkIndex + 2];
+				color = "rgb(" + chunk[chunkIndex + 3] + "," + chunk[chunkIndex + 4] + ","
+					+ chunk[chunkIndex + 5] + ")";
+			} else {
+				x = parseInt(chunk.substring(chunkIndex, chunkIndex + 3), 16);
+				y = parseInt(chunk.substring(chunkIndex + 3, chunkIndex + 6), 16);
+				color = "#" + chunk.substring(chunkIndex + 6, chunkIndex + 12);
+			}
 			context.fillStyle = color;
 			context.fillRect(x, y, 1, 1);
 			if (pixelsThisFrame >= ppf){